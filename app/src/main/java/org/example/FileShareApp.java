@@ -10,6 +10,7 @@ import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.scene.image.ImageView;
@@ -20,14 +21,30 @@ import javafx.stage.StageStyle;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FileShareApp extends Application {
 
     private P2P p2p;
+    private FileShareService service;
+    // The load whose result the file list is waiting for; replaced when the selection changes
+    private CompletableFuture<?> fileListLoad;
+    // The search whose hits the file list shows, or null
+    private SearchResults shownSearch;
     private ListView<FileItem> fileListView;
     private ComboBox<String> peerSelector;
+    private ProgressBar transferProgressBar;
+    private Label transferStatusLabel;
 
     // Constants
     private static final String BACKGROUND_COLOR = "#1e1e1e";
@@ -37,7 +54,9 @@ public class FileShareApp extends Application {
 
     @Override
     public void start(Stage primaryStage) {
-        p2p = new P2P();
+        // Shares survive restarts of the app
+        p2p = new P2P(new ServerConfig().setStateDirectory(Paths.get(System.getProperty("user.home"), ".p2p-file-share")));
+        service = new FileShareService(p2p);
 
         VBox root = createRoot();
         HBox titleBar = createTitleBar(primaryStage);
@@ -72,9 +91,11 @@ public class FileShareApp extends Application {
 
         VBox dragDropArea = createDragDropArea();
         fileListView = createFileListView();
+        TextField searchField = createSearchField();
         HBox bottomControls = createBottomControls();
+        VBox transferStatus = createTransferStatus();
 
-        content.getChildren().addAll(titleLabel, subtitleLabel, dragDropArea, new Label("Uploaded files"), fileListView, bottomControls);
+        content.getChildren().addAll(titleLabel, subtitleLabel, dragDropArea, new Label("Uploaded files"), searchField, fileListView, bottomControls, transferStatus);
         return content;
     }
 
@@ -92,6 +113,13 @@ public class FileShareApp extends Application {
         return listView;
     }
 
+    private TextField createSearchField() {
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search all peers");
+        searchField.setOnAction(e -> search(searchField.getText()));
+        return searchField;
+    }
+
     private HBox createBottomControls() {
         peerSelector = new ComboBox<>();
         peerSelector.setPromptText("Select a peer");
@@ -105,6 +133,17 @@ public class FileShareApp extends Application {
         return bottomControls;
     }
 
+    private VBox createTransferStatus() {
+        transferProgressBar = new ProgressBar(0);
+        transferProgressBar.setMaxWidth(Double.MAX_VALUE);
+        transferStatusLabel = createLabel("", 12, SUBTITLE_COLOR, FontWeight.NORMAL);
+
+        VBox transferStatus = new VBox(5, transferProgressBar, transferStatusLabel);
+        transferStatus.setVisible(false);
+        transferStatus.managedProperty().bind(transferStatus.visibleProperty());
+        return transferStatus;
+    }
+
     private void setupPrimaryStage(Stage primaryStage, Scene scene) {
         primaryStage.setTitle("File Share");
         primaryStage.initStyle(StageStyle.UNDECORATED);
@@ -120,14 +159,24 @@ public class FileShareApp extends Application {
     }
 
     private void startP2PServer() {
-        new Thread(() -> {
-            try {
-                p2p.startServer();
-                Platform.runLater(this::refreshPeers);
-            } catch (IOException ex) {
-                Platform.runLater(() -> showErrorAlert("Failed to start P2P server", ex.getMessage()));
+        service.startServer().whenCompleteAsync((started, error) -> {
+            if (error != null) {
+                showErrorAlert("Failed to start P2P server", describe(error));
+            } else {
+                refreshPeers();
             }
-        }).start();
+        }, Platform::runLater);
+    }
+
+    /**
+     * The message of the failure behind an exception from {@link FileShareService}.
+     */
+    private static String describe(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof UncheckedIOException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error.getMessage() != null ? error.getMessage() : error.toString();
     }
 
 
@@ -186,7 +235,13 @@ public class FileShareApp extends Application {
         Button browseButton = new Button("Browse Files");
         browseButton.setOnAction(e -> uploadFile());
 
-        dragDropArea.getChildren().addAll(cloudIcon, dragDropLabel, orLabel, browseButton);
+        Button browseFolderButton = new Button("Browse Folder");
+        browseFolderButton.setOnAction(e -> uploadFolder());
+
+        HBox browseButtons = new HBox(10, browseButton, browseFolderButton);
+        browseButtons.setAlignment(Pos.CENTER);
+
+        dragDropArea.getChildren().addAll(cloudIcon, dragDropLabel, orLabel, browseButtons);
 
         dragDropArea.setOnDragOver(event -> {
             if (event.getGestureSource() != dragDropArea && event.getDragboard().hasFiles()) {
@@ -199,11 +254,8 @@ public class FileShareApp extends Application {
             Dragboard db = event.getDragboard();
             boolean success = false;
             if (db.hasFiles()) {
-                for (File file : db.getFiles()) {
-                    p2p.addSharedFile(file);
-                }
+                share(db.getFiles());
                 success = true;
-                updateFileList();
             }
             event.setDropCompleted(success);
             event.consume();
@@ -225,15 +277,13 @@ public class FileShareApp extends Application {
     }
 
     private void refreshPeers() {
-        peerSelector.getItems().clear();
-        for (InetAddress peer : p2p.getDiscoveredPeers()) {
-            if (peer.getHostAddress().equals(p2p.getMyIp())) {
-                peerSelector.getItems().add("This computer");
-            } else {
-                peerSelector.getItems().add(peer.getHostAddress());
+        service.listPeers().thenAcceptAsync(peers -> {
+            List<String> labels = new ArrayList<>();
+            for (FileShareService.Peer peer : peers) {
+                labels.add(peer.isLocal() ? "This computer" : peer.getAddress());
             }
-
-        }
+            peerSelector.getItems().setAll(labels);
+        }, Platform::runLater);
     }
 
     private void onPeerSelected() {
@@ -243,50 +293,135 @@ public class FileShareApp extends Application {
                 updateFileList();
                 return;
             }
-            List<File> peerFiles = p2p.getSharedPeerFiles(selectedPeerIp);
-            updatePeerFileList(peerFiles);
+            // Show the cached catalog at once and replace it when revalidation finishes
+            List<FileInfo> cached = service.getCachedCatalog(selectedPeerIp);
+            showPeerFiles(cached != null ? cached : List.of());
+            CompletableFuture<List<FileInfo>> load = startFileListLoad(service.loadCatalog(selectedPeerIp));
+            load.thenAcceptAsync(peerFiles -> {
+                if (load == fileListLoad) {
+                    showPeerFiles(peerFiles);
+                }
+            }, Platform::runLater);
         }
     }
 
+    /**
+     * Makes {@code load} the one the file list waits for, cancelling the previous one.
+     */
+    private <T> CompletableFuture<T> startFileListLoad(CompletableFuture<T> load) {
+        if (fileListLoad != null) {
+            fileListLoad.cancel(false);
+        }
+        fileListLoad = load;
+        shownSearch = null;
+        return load;
+    }
+
+    private void search(String query) {
+        if (query.isBlank()) {
+            return;
+        }
+        fileListView.getItems().clear();
+        SearchResults results = new SearchResults();
+        startFileListLoad(service.search(query, results::add));
+        shownSearch = results;
+    }
+
     private void removeFile(File file) {
         System.out.println("Removing file: " + file.getName());
-        p2p.removeSharedFile(file);
-        updateFileList();
+        service.unshare(file).thenRunAsync(this::updateFileList, Platform::runLater);
     }
 
     public static void main(String[] args) {
         launch(args);
     }
 
+    /**
+     * Hits of one search. Hits arrive on background threads; they are shown in batches, with at
+     * most one list update waiting on the FX thread at a time.
+     */
+    private class SearchResults {
+        private final Queue<SearchHit> arrived = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean updatePending = new AtomicBoolean();
+        // FX thread only
+        private final Map<String, FileItem> shown = new LinkedHashMap<>();
+
+        void add(SearchHit hit) {
+            arrived.add(hit);
+            if (updatePending.compareAndSet(false, true)) {
+                Platform.runLater(this::show);
+            }
+        }
+
+        private void show() {
+            updatePending.set(false);
+            if (shownSearch != this) {
+                return;
+            }
+            for (SearchHit hit; (hit = arrived.poll()) != null; ) {
+                shown.put(hit.getKey(), new FileItem(hit.getInfo(), null, hit.getPeers()));
+            }
+            fileListView.getItems().setAll(shown.values());
+        }
+    }
+
+    /**
+     * A row of the file list: a catalog record, and the local file for files this computer shares.
+     */
     private static class FileItem {
+        private final FileInfo info;
         private final File file;
-        private final boolean isLocal;
+        private final List<String> peers;
 
-        public FileItem(File file, boolean isLocal) {
+        public FileItem(FileInfo info, File file) {
+            this(info, file, null);
+        }
+
+        /**
+         * @param peers the peers known to have the file, or null to offer every peer
+         */
+        public FileItem(FileInfo info, File file, List<String> peers) {
+            this.info = info;
             this.file = file;
-            this.isLocal = isLocal;
+            this.peers = peers;
         }
 
+        /**
+         * The name the file is shared as, which includes its directory for files in a shared
+         * directory.
+         */
         public String getName() {
-            return file.getName();
+            return info.getName();
+        }
+
+        /**
+         * The last part of the name, for saving the file.
+         */
+        public String getFileName() {
+            return info.getName().substring(info.getName().lastIndexOf('/') + 1);
         }
 
         public String getExtension() {
-            String name = file.getName();
-            int lastIndexOf = name.lastIndexOf(".");
-            if (lastIndexOf == -1) {
-                return "";
-            }
-            return name.substring(lastIndexOf + 1);
+            return info.getExtension();
         }
 
+        public long getSize() {
+            return info.getSize();
+        }
 
         public File getFile() {
             return file;
         }
 
         public boolean isLocal() {
-            return isLocal;
+            return file != null;
+        }
+
+        /**
+         * The peers a search found the file on, or null if it was not found by a search.
+         */
+        public List<String> getPeers() {
+            return peers;
         }
 
     }
@@ -337,7 +472,7 @@ public class FileShareApp extends Application {
             } else {
                 fileTypeLabel.setText(item.getExtension().toUpperCase());
                 nameLabel.setText(truncateFileName(item.getName()));
-                fileSizeLabel.setText(getFileSize(item.getFile()));
+                fileSizeLabel.setText(formatBytes(item.getSize()));
 
                 if (item.isLocal()) {
                     actionButton.setText("Open folder");
@@ -377,8 +512,8 @@ public class FileShareApp extends Application {
 
     private void closeApplication() {
         try {
-            if (p2p != null){
-                p2p.stopServer();
+            if (service != null){
+                service.close();
                 Platform.exit();
             }
         } catch (Exception e) {
@@ -386,40 +521,63 @@ public class FileShareApp extends Application {
         }
     }
 
-    private String getFileSize(File file) {
-        long bytes = file.length();
+    private static String formatBytes(long bytes) {
         if (bytes < 1024) return bytes + " B";
         if (bytes < 1024 * 1024) return bytes / 1024 + " KB";
         if (bytes < 1024 * 1024 * 1024) return bytes / (1024 * 1024) + " MB";
         return bytes / (1024 * 1024 * 1024) + " GB";
     }
 
+    private static String formatEta(long seconds) {
+        if (seconds < 0) return "--:--";
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
     private void downloadFile(FileItem item) {
-        new Thread(() -> {
-            try {
-                String selectedPeerIp = peerSelector.getValue();
-                byte[] fileContent = p2p.downloadFile(selectedPeerIp, item.getName());
-
-                Platform.runLater(() -> {
-                    FileChooser fileChooser = new FileChooser();
-                    fileChooser.setInitialFileName(item.getName());
-                    File saveLocation = fileChooser.showSaveDialog(null);
-
-                    if (saveLocation != null) {
-                        try {
-                            p2p.saveFile(saveLocation, fileContent);
-                            updateFileList(); // Refresh the list to show the new local file
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            // Show an error dialog
-                        }
-                    }
-                });
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-                // Show an error dialog
+        // Every other peer that shares the same file contributes chunks
+        List<String> peers = new ArrayList<>();
+        if (item.getPeers() != null) {
+            peers.addAll(item.getPeers());
+        } else {
+            peers.add(peerSelector.getValue());
+            for (String peer : peerSelector.getItems()) {
+                if (!peer.equals("This computer") && !peers.contains(peer)) {
+                    peers.add(peer);
+                }
             }
-        }).start();
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setInitialFileName(item.getFileName());
+        File saveLocation = fileChooser.showSaveDialog(null);
+        if (saveLocation == null) {
+            return;
+        }
+
+        transferProgressBar.getParent().setVisible(true);
+        transferProgressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        transferStatusLabel.setText("Connecting for " + item.getName());
+        service.download(item.getName(), peers, saveLocation.toPath(),
+                progress -> Platform.runLater(() -> showTransferProgress(progress)))
+                .whenCompleteAsync((downloaded, error) -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                        transferStatusLabel.setText("Download failed: " + item.getName());
+                        showErrorAlert("Failed to download " + item.getName(), describe(error));
+                    } else {
+                        transferStatusLabel.setText("Downloaded " + item.getName());
+                    }
+                }, Platform::runLater);
+    }
+
+    private void showTransferProgress(TransferProgress progress) {
+        transferProgressBar.getParent().setVisible(true);
+        transferProgressBar.setProgress(progress.getFraction());
+        transferStatusLabel.setText(String.format("%s  %s / %s  %s/s  ETA %s",
+                progress.getFileName(),
+                formatBytes(progress.getBytesTransferred()),
+                formatBytes(progress.getTotalBytes()),
+                formatBytes((long) progress.getBytesPerSecond()),
+                formatEta(progress.getEtaSeconds())));
     }
 
     private void uploadFile() {
@@ -431,25 +589,51 @@ public class FileShareApp extends Application {
                 alert.showAndWait();
                 return;
             }
-            FileItem newItem = new FileItem(selectedFile, true);
-            fileListView.getItems().add(newItem);
+            share(List.of(selectedFile));
 
         }
     }
 
-    private void updateFileList() {
-        fileListView.getItems().clear();
-        List<File> sharedFiles = p2p.getSharedFiles();
-        for (File file : sharedFiles) {
-            fileListView.getItems().add(new FileItem(file, true));
+    private void uploadFolder() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        File selectedDirectory = directoryChooser.showDialog(null);
+        if (selectedDirectory != null) {
+            share(List.of(selectedDirectory));
         }
     }
 
-    private void updatePeerFileList(List<File> peerFiles) {
-        fileListView.getItems().clear();
-        for (File file : peerFiles) {
-            fileListView.getItems().add(new FileItem(file, false));
+    private void share(List<File> files) {
+        // Scanning a large tree takes a while, so it stays off the UI thread
+        service.share(files).whenCompleteAsync((added, error) -> {
+            if (error != null) {
+                showErrorAlert("Failed to share files", describe(error));
+            }
+            updateFileList();
+        }, Platform::runLater);
+    }
+
+    private void updateFileList() {
+        CompletableFuture<List<SharedFileRegistry.SharedFile>> load = startFileListLoad(service.listSharedFiles());
+        load.thenAcceptAsync(sharedFiles -> {
+            if (load == fileListLoad) {
+                List<FileItem> items = new ArrayList<>(sharedFiles.size());
+                for (SharedFileRegistry.SharedFile shared : sharedFiles) {
+                    items.add(new FileItem(shared.getInfo(), shared.getFile()));
+                }
+                fileListView.getItems().setAll(items);
+            }
+        }, Platform::runLater);
+    }
+
+    /**
+     * Replaces the list with a peer's files in one change, so the list view lays out once.
+     */
+    private void showPeerFiles(List<FileInfo> peerFiles) {
+        List<FileItem> items = new ArrayList<>(peerFiles.size());
+        for (FileInfo info : peerFiles) {
+            items.add(new FileItem(info, null));
         }
+        fileListView.getItems().setAll(items);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous front of {@link P2P} for the UI. Every call that may touch the network or the disk
+ * runs on a background thread and returns a future, so the caller's thread never blocks. Each call
+ * returns a future of its own: cancelling it, for example when the user selects another peer,
+ * only means its result is dropped, and other callers waiting on the same underlying work are not
+ * affected.
+ */
+public class FileShareService implements Closeable {
+    private static final int SERVICE_THREADS = 4;
+    // Downloads block their thread until done, so they get threads of their own; more wait in the
+    // queue
+    private static final int DOWNLOAD_THREADS = 4;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final P2P p2p;
+    private final ExecutorService executor = Executors.newFixedThreadPool(SERVICE_THREADS,
+            runnable -> newThread(runnable, "file-share-service-"));
+    private final ExecutorService downloads = Executors.newFixedThreadPool(DOWNLOAD_THREADS,
+            runnable -> newThread(runnable, "file-share-download-"));
+
+    public FileShareService(P2P p2p) {
+        this.p2p = p2p;
+    }
+
+    public CompletableFuture<Void> startServer() {
+        return run(() -> {
+            p2p.startServer();
+            return null;
+        });
+    }
+
+    /**
+     * The discovered peers, with this machine's own addresses flagged.
+     */
+    public CompletableFuture<List<Peer>> listPeers() {
+        return run(() -> {
+            // One entry per address; a machine running several nodes is listed once
+            Map<String, Peer> peers = new LinkedHashMap<>();
+            for (NetworkDiscovery.Peer peer : p2p.getPeers()) {
+                InetAddress address = peer.getAddress();
+                boolean local = peer.isSelf() || p2p.isLocalAddress(address);
+                peers.putIfAbsent(address.getHostAddress(), new Peer(address.getHostAddress(), local));
+            }
+            for (GossipMembership.Member member : p2p.getGossipMembers()) {
+                peers.putIfAbsent(member.getHost(), new Peer(member.getHost(), false));
+            }
+            return new ArrayList<>(peers.values());
+        });
+    }
+
+    /**
+     * The catalog last fetched from a peer, or null. Reads only memory, so it is safe to call from
+     * the UI thread.
+     */
+    public List<FileInfo> getCachedCatalog(String peer) {
+        return p2p.getCachedPeerCatalog(peer);
+    }
+
+    /**
+     * The current catalog of a peer, revalidated against the peer.
+     */
+    public CompletableFuture<List<FileInfo>> loadCatalog(String peer) {
+        // A dependent future, so cancelling it leaves the shared revalidation alone
+        return p2p.refreshPeerCatalog(peer).thenApply(files -> files);
+    }
+
+    /**
+     * Searches every live peer. Hits are passed to {@code listener} as peers answer, on background
+     * threads; cancelling the returned future stops the search.
+     */
+    public CompletableFuture<Void> search(String query, Consumer<SearchHit> listener) {
+        return p2p.search(query, listener);
+    }
+
+    public CompletableFuture<List<SharedFileRegistry.SharedFile>> listSharedFiles() {
+        return run(() -> p2p.getSharedFileRegistry().snapshot());
+    }
+
+    /**
+     * Shares files and directories. Directories are shared with their whole tree.
+     *
+     * @return the files that were added
+     */
+    public CompletableFuture<List<File>> share(Collection<File> files) {
+        List<File> selection = new ArrayList<>(files);
+        return run(() -> {
+            List<File> plainFiles = new ArrayList<>();
+            List<File> added = new ArrayList<>();
+            for (File file : selection) {
+                if (file.isDirectory()) {
+                    added.addAll(p2p.shareDirectory(file));
+                } else {
+                    plainFiles.add(file);
+                }
+            }
+            added.addAll(p2p.addSharedFiles(plainFiles));
+            return added;
+        });
+    }
+
+    public CompletableFuture<Void> unshare(File file) {
+        return run(() -> {
+            p2p.removeSharedFile(file);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> download(String fileName, List<String> peers, Path target, TransferListener listener) {
+        return run(() -> {
+            p2p.downloadFile(fileName, peers, target, TransferManager.Priority.INTERACTIVE, listener);
+            return null;
+        }, downloads);
+    }
+
+    /**
+     * Stops the server and the background threads.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        downloads.shutdownNow();
+        p2p.stopServer();
+    }
+
+    private <T> CompletableFuture<T> run(IOCall<T> call) {
+        return run(call, executor);
+    }
+
+    private <T> CompletableFuture<T> run(IOCall<T> call, ExecutorService threads) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, threads);
+    }
+
+    private static Thread newThread(Runnable runnable, String prefix) {
+        Thread thread = new Thread(runnable, prefix + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private interface IOCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * A discovered peer.
+     */
+    public static final class Peer {
+        private final String address;
+        private final boolean local;
+
+        Peer(String address, boolean local) {
+            this.address = address;
+            this.local = local;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * Whether the peer is this machine.
+         */
+        public boolean isLocal() {
+            return local;
+        }
+    }
+}
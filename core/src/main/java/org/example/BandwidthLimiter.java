@@ -0,0 +1,186 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of one direction of traffic with a token bucket. Senders reserve bytes before
+ * sending them. While tokens are left a reservation is granted at once and may overdraw the
+ * bucket; later reservations wait until the debt is paid back at the configured rate.
+ *
+ * <p>Waiting reservations are granted by priority. Within a priority they are granted round
+ * robin across transfers, one reservation per transfer in turn, so a transfer with many requests
+ * in flight gets no more bandwidth than one with a single request.
+ */
+class BandwidthLimiter {
+    private final ScheduledExecutorService timer;
+    private final Executor grantExecutor;
+    // Round-robin ring of the transfers waiting at each priority
+    private final List<ArrayDeque<TransferQueue>> levels = new ArrayList<>();
+    private final Map<Object, TransferQueue> waiting = new HashMap<>();
+    private long bytesPerSecond;
+    private double tokens;
+    private long refilledNanos = System.nanoTime();
+    private boolean timerArmed;
+
+    /**
+     * @param bytesPerSecond the rate, or 0 for no limit
+     * @param timer runs the grants of waiting reservations
+     * @param grantExecutor completes granted reservations, so their continuations do not run on
+     *        the timer
+     */
+    BandwidthLimiter(long bytesPerSecond, ScheduledExecutorService timer, Executor grantExecutor) {
+        this.timer = timer;
+        this.grantExecutor = grantExecutor;
+        for (int i = 0; i < TransferManager.Priority.values().length; i++) {
+            levels.add(new ArrayDeque<>());
+        }
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the rate. Takes effect for reservations not granted yet.
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, burst());
+        if (bytesPerSecond == 0 || !waiting.isEmpty()) {
+            armTimer(0);
+        }
+    }
+
+    synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Reserves {@code bytes} for {@code transfer}, which is any object identifying the transfer
+     * the bytes belong to.
+     *
+     * @return a future completed once the bytes may be sent
+     */
+    CompletableFuture<Void> acquire(Object transfer, long bytes, TransferManager.Priority priority) {
+        CompletableFuture<Void> granted = new CompletableFuture<>();
+        synchronized (this) {
+            refill();
+            if (bytesPerSecond == 0 || (waiting.isEmpty() && tokens > 0)) {
+                tokens -= bytesPerSecond == 0 ? 0 : bytes;
+                granted.complete(null);
+                return granted;
+            }
+            TransferQueue queue = waiting.get(transfer);
+            if (queue == null) {
+                queue = new TransferQueue(transfer, priority.ordinal());
+                waiting.put(transfer, queue);
+                levels.get(queue.level).addLast(queue);
+            }
+            queue.reservations.addLast(new Reservation(bytes, granted));
+            armTimer(delayNanos());
+        }
+        return granted;
+    }
+
+    private void grantWaiting() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            timerArmed = false;
+            refill();
+            while (!waiting.isEmpty() && (bytesPerSecond == 0 || tokens > 0)) {
+                Reservation next = pollNext();
+                if (bytesPerSecond > 0) {
+                    tokens -= next.bytes;
+                }
+                granted.add(next.granted);
+            }
+            if (!waiting.isEmpty()) {
+                armTimer(delayNanos());
+            }
+        }
+        for (CompletableFuture<Void> future : granted) {
+            try {
+                grantExecutor.execute(() -> future.complete(null));
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    private Reservation pollNext() {
+        for (ArrayDeque<TransferQueue> ring : levels) {
+            TransferQueue queue = ring.pollFirst();
+            if (queue == null) {
+                continue;
+            }
+            Reservation next = queue.reservations.pollFirst();
+            if (queue.reservations.isEmpty()) {
+                waiting.remove(queue.transfer);
+            } else {
+                ring.addLast(queue);
+            }
+            return next;
+        }
+        throw new IllegalStateException("No reservation is waiting");
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(burst(), tokens + (now - refilledNanos) * bytesPerSecond / 1e9);
+        }
+        refilledNanos = now;
+    }
+
+    /**
+     * Time until the bucket has tokens again.
+     */
+    private long delayNanos() {
+        return tokens > 0 ? 0 : (long) Math.ceil((1 - tokens) * 1e9 / bytesPerSecond);
+    }
+
+    /**
+     * At most a quarter second's worth of bytes is saved up while idle.
+     */
+    private double burst() {
+        return Math.max(Protocol.MAX_PAYLOAD_SIZE, bytesPerSecond / 4.0);
+    }
+
+    private void armTimer(long delayNanos) {
+        if (!timerArmed) {
+            timerArmed = true;
+            try {
+                timer.schedule(this::grantWaiting, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    private static class TransferQueue {
+        final Object transfer;
+        final int level;
+        final ArrayDeque<Reservation> reservations = new ArrayDeque<>();
+
+        TransferQueue(Object transfer, int level) {
+            this.transfer = transfer;
+            this.level = level;
+        }
+    }
+
+    private static class Reservation {
+        final long bytes;
+        final CompletableFuture<Void> granted;
+
+        Reservation(long bytes, CompletableFuture<Void> granted) {
+            this.bytes = bytes;
+            this.granted = granted;
+        }
+    }
+}
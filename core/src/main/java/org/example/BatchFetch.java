@@ -0,0 +1,394 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches many files from one peer, pipelined over its pooled connection. The files are asked for
+ * in {@link Protocol#FETCH} requests of up to {@link #MAX_BATCH_FILES} files or
+ * {@link #MAX_BATCH_BYTES} bytes, with up to {@link #MAX_BATCHES_IN_FLIGHT} requests outstanding,
+ * so the peer streams one file after another and a small file costs no round trip of its own.
+ *
+ * <p>Each file is written to a {@code .part} file next to its target as its data arrives, checked
+ * against its content hash if the peer has hashed it, and renamed into place with the peer's
+ * modification time. Targets that already have the size and modification time of the peer's file
+ * are skipped, so fetching a directory again transfers only what changed.
+ */
+public class BatchFetch {
+    static final int MAX_BATCH_FILES = 1024;
+    static final long MAX_BATCH_BYTES = 8L * 1024 * 1024;
+    private static final int MAX_BATCHES_IN_FLIGHT = 4;
+    private static final String PART_SUFFIX = ".part";
+
+    private final PeerClient client;
+    private final TransferManager transfers;
+    private final TransferManager.Priority priority;
+    private final String peer;
+    private final Path targetDirectory;
+    private final TransferListener listener;
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    private TransferMeter meter;
+
+    public BatchFetch(PeerClient client, TransferManager transfers, TransferManager.Priority priority, String peer,
+                      Path targetDirectory, TransferListener listener) {
+        this.client = client;
+        this.transfers = transfers;
+        this.priority = priority;
+        this.peer = peer;
+        this.targetDirectory = targetDirectory.toAbsolutePath().normalize();
+        this.listener = listener;
+    }
+
+    /**
+     * Fetches {@code files}, records from the peer's catalog, into the target directory under
+     * their shared names, blocking until all are done.
+     *
+     * @return the names of the files that could not be fetched
+     */
+    public List<String> run(List<FileInfo> files) throws IOException {
+        List<FileInfo> wanted = new ArrayList<>();
+        long totalBytes = 0;
+        for (FileInfo info : files) {
+            Path target = resolve(info.getName());
+            if (target == null) {
+                fail(info.getName(), "its name leads outside " + targetDirectory);
+            } else if (!isCurrent(target, info)) {
+                wanted.add(info);
+                totalBytes += info.getSize();
+            }
+        }
+        meter = new TransferMeter(wanted.size() + " files from " + peer, totalBytes, 0, listener, client.getMetrics());
+        Semaphore window = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+        List<Batch> batches = new ArrayList<>();
+        try {
+            for (int from = 0; from < wanted.size(); ) {
+                int to = batchEnd(wanted, from);
+                window.acquire();
+                Batch batch = new Batch(wanted.subList(from, to));
+                batches.add(batch);
+                batch.done.whenComplete((done, error) -> window.release());
+                send(batch);
+                from = to;
+            }
+            for (Batch batch : batches) {
+                PeerClient.await(batch.done, 0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted fetching files from " + peer);
+        } finally {
+            // Only batches still running are affected
+            for (Batch batch : batches) {
+                batch.cancel();
+            }
+        }
+        meter.finish();
+        synchronized (failed) {
+            return new ArrayList<>(failed);
+        }
+    }
+
+    /**
+     * End of the batch starting at {@code from}: as many files as fit the file, byte and frame
+     * limits, and at least one.
+     */
+    private static int batchEnd(List<FileInfo> files, int from) {
+        long bytes = 0;
+        int frameBytes = FrameEncoder.varIntLength(MAX_BATCH_FILES);
+        int to = from;
+        while (to < files.size() && to - from < MAX_BATCH_FILES) {
+            FileInfo info = files.get(to);
+            frameBytes += FrameEncoder.encodedLength(info.getName());
+            if (to > from && (bytes + info.getSize() > MAX_BATCH_BYTES || frameBytes > Protocol.MAX_PAYLOAD_SIZE)) {
+                break;
+            }
+            bytes += info.getSize();
+            to++;
+        }
+        return to;
+    }
+
+    private void send(Batch batch) {
+        transfers.acquireChunk(this, peer, batch.bytes, priority).thenRun(() -> {
+            synchronized (batch) {
+                if (batch.finished) {
+                    transfers.releaseChunk(peer);
+                    return;
+                }
+                batch.slotHeld = true;
+                try {
+                    batch.pending = client.fetch(peer, batch.names, priority == TransferManager.Priority.BULK, batch);
+                } catch (IOException e) {
+                    batch.onFailure(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Where a shared name is written, or null if the name would lead outside the target directory.
+     */
+    private Path resolve(String name) {
+        try {
+            Path target = targetDirectory.resolve(name).normalize();
+            return target.startsWith(targetDirectory) && !target.equals(targetDirectory) ? target : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static boolean isCurrent(Path target, FileInfo info) {
+        try {
+            return Files.isRegularFile(target) && Files.size(target) == info.getSize()
+                    && Files.getLastModifiedTime(target).toMillis() == info.getLastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void fail(String name, String reason) {
+        System.err.println("Could not fetch " + name + " from " + peer + ": " + reason);
+        failed.add(name);
+    }
+
+    /**
+     * One {@link Protocol#FETCH} request and the files it brings. Frames arrive on the
+     * connection's reader thread; the lock keeps a cancel from racing a write.
+     */
+    private class Batch implements PeerConnection.ReplyHandler {
+        final List<String> names = new ArrayList<>();
+        // The files not answered yet, by name
+        final Map<String, FileInfo> remaining = new LinkedHashMap<>();
+        final long bytes;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        PeerClient.PendingRequest pending;
+        boolean slotHeld;
+        boolean finished;
+        // The file being received
+        String name;
+        Path partFile;
+        FileChannel channel;
+        long size;
+        long lastModified;
+        byte[] contentHash;
+        long received;
+        MessageDigest leafDigest;
+        ByteArrayOutputStream leaves;
+
+        Batch(List<FileInfo> files) {
+            long total = 0;
+            for (FileInfo info : files) {
+                names.add(info.getName());
+                remaining.put(info.getName(), info);
+                total += info.getSize();
+            }
+            this.bytes = total;
+        }
+
+        @Override
+        public synchronized boolean onFrame(Frame frame) throws IOException {
+            if (finished) {
+                return true;
+            }
+            switch (frame.getOpcode()) {
+                case Protocol.FETCH_FILE: {
+                    finishFile();
+                    String fileName = frame.getString();
+                    long fileSize = frame.getVarSize();
+                    long fileLastModified = frame.getVarLong();
+                    byte[] hash = frame.getBytes(frame.getVarInt());
+                    expect(fileName);
+                    startFile(fileName, fileSize, fileLastModified, hash);
+                    return false;
+                }
+                case Protocol.DATA:
+                    if (name == null) {
+                        throw new ProtocolException("Peer sent data outside a file");
+                    }
+                    receive(frame.payload());
+                    return false;
+                case Protocol.FETCH_SKIPPED: {
+                    finishFile();
+                    String fileName = frame.getString();
+                    int code = frame.getVarInt();
+                    String message = frame.getString();
+                    expect(fileName);
+                    fail(fileName, "peer error " + code + ": " + message);
+                    return false;
+                }
+                default:
+                    PeerConnection.checkReply(frame, Protocol.END);
+                    finishFile();
+                    for (String missing : remaining.keySet()) {
+                        fail(missing, "peer did not send it");
+                    }
+                    remaining.clear();
+                    finish();
+                    return true;
+            }
+        }
+
+        private void expect(String fileName) throws ProtocolException {
+            if (remaining.remove(fileName) == null) {
+                throw new ProtocolException("Peer sent " + fileName + ", which was not asked for");
+            }
+        }
+
+        private void startFile(String fileName, long fileSize, long fileLastModified, byte[] hash) {
+            name = fileName;
+            size = fileSize;
+            lastModified = fileLastModified;
+            contentHash = hash;
+            received = 0;
+            leafDigest = hash.length > 0 ? MerkleTree.newLeafDigest() : null;
+            leaves = hash.length > 0 ? new ByteArrayOutputStream() : null;
+            Path target = resolve(fileName);
+            partFile = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+            try {
+                Files.createDirectories(target.getParent());
+                channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                // The data is still read off the connection, just not written
+                fail(fileName, String.valueOf(e.getMessage()));
+                channel = null;
+            }
+        }
+
+        private void receive(ByteBuffer data) throws IOException {
+            int length = data.remaining();
+            if (received + length > size) {
+                throw new ProtocolException("Peer sent more than the " + size + " bytes of " + name);
+            }
+            while (data.hasRemaining()) {
+                // Hash leaves end at chunk boundaries, which may fall inside a frame
+                int count = (int) Math.min(data.remaining(), MerkleTree.CHUNK_SIZE - received % MerkleTree.CHUNK_SIZE);
+                ByteBuffer piece = data.slice().limit(count);
+                if (leafDigest != null) {
+                    leafDigest.update(piece.duplicate());
+                }
+                if (channel != null) {
+                    try {
+                        long position = received;
+                        while (piece.hasRemaining()) {
+                            position += channel.write(piece, position);
+                        }
+                    } catch (IOException e) {
+                        fail(name, String.valueOf(e.getMessage()));
+                        discardFile();
+                    }
+                }
+                data.position(data.position() + count);
+                received += count;
+                if (leafDigest != null && (received % MerkleTree.CHUNK_SIZE == 0 || received == size)) {
+                    leaves.writeBytes(leafDigest.digest());
+                    leafDigest = MerkleTree.newLeafDigest();
+                }
+            }
+            meter.add(length);
+        }
+
+        /**
+         * Completes the file being received, if any: checks it and moves it into place.
+         */
+        private void finishFile() {
+            if (name == null) {
+                return;
+            }
+            String fileName = name;
+            name = null;
+            if (channel == null) {
+                return;
+            }
+            if (received != size) {
+                fail(fileName, "it ended after " + received + " of " + size + " bytes");
+                discardFile();
+                return;
+            }
+            if (contentHash.length > 0 && !new MerkleTree(size, leaves.toByteArray()).hasRoot(contentHash)) {
+                fail(fileName, "it failed verification");
+                discardFile();
+                return;
+            }
+            try {
+                channel.close();
+                channel = null;
+                Files.setLastModifiedTime(partFile, FileTime.fromMillis(lastModified));
+                Files.move(partFile, resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                fail(fileName, String.valueOf(e.getMessage()));
+                discardFile();
+            }
+        }
+
+        private void discardFile() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.deleteIfExists(partFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+
+        @Override
+        public synchronized void onFailure(IOException cause) {
+            abandon(String.valueOf(cause.getMessage()));
+        }
+
+        /**
+         * Stops the request if it is still running.
+         */
+        synchronized void cancel() {
+            if (pending != null && !finished) {
+                pending.cancel();
+            }
+            abandon("the fetch was cancelled");
+        }
+
+        private void abandon(String reason) {
+            if (finished) {
+                return;
+            }
+            if (name != null) {
+                fail(name, reason);
+                name = null;
+                discardFile();
+            }
+            for (String missing : remaining.keySet()) {
+                fail(missing, reason);
+            }
+            remaining.clear();
+            finish();
+        }
+
+        private void finish() {
+            finished = true;
+            if (slotHeld) {
+                slotHeld = false;
+                transfers.releaseChunk(peer);
+            }
+            done.complete(null);
+        }
+    }
+}
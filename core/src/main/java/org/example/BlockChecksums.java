@@ -0,0 +1,112 @@
+package org.example;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Block checksums for delta transfers, as in rsync. A file is cut into blocks of a fixed size and
+ * each block gets a weak and a strong checksum. The weak checksum is a 32-bit sum that can be
+ * rolled along another file one byte at a time, so blocks are found wherever they moved to; the
+ * strong checksum, the first {@link #STRONG_SIZE} bytes of SHA-256, confirms a weak match.
+ */
+final class BlockChecksums {
+    static final int STRONG_SIZE = 16;
+    /** Encoded size of one block's checksums: the weak checksum as an int, then the strong one. */
+    static final int ENCODED_SIZE = 4 + STRONG_SIZE;
+    static final int MIN_BLOCK_SIZE = 2 * 1024;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private BlockChecksums() {
+    }
+
+    /**
+     * The block size for a file: about the square root of its size, rounded down to a power of two,
+     * so the checksums sent and the bytes resent around a change grow alike. A 10 MB file gets
+     * 2 KiB blocks, a 1 GiB file 32 KiB blocks.
+     */
+    static int blockSize(long fileSize) {
+        long root = (long) Math.sqrt((double) fileSize);
+        int size = Integer.highestOneBit((int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, root)));
+        return Math.max(MIN_BLOCK_SIZE, size);
+    }
+
+    static int blockCount(long fileSize, int blockSize) {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    static byte[] strong(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.reset();
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_SIZE);
+    }
+
+    /**
+     * The weak checksum of a window of bytes, moved along one byte at a time with {@link #roll}.
+     * Its low half is the sum of the bytes and its high half the sum weighted by distance from the
+     * window's end, both modulo 2^16.
+     */
+    static final class Rolling {
+        private int a;
+        private int b;
+        private int length;
+
+        Rolling reset(byte[] data, int offset, int length) {
+            this.length = length;
+            a = 0;
+            b = 0;
+            for (int i = 0; i < length; i++) {
+                int value = data[offset + i] & 0xFF;
+                a += value;
+                b += (length - i) * value;
+            }
+            return this;
+        }
+
+        /**
+         * Slides the window one byte: {@code out} leaves it at the front, {@code in} joins at the
+         * back.
+         */
+        void roll(byte out, byte in) {
+            int outValue = out & 0xFF;
+            a += (in & 0xFF) - outValue;
+            b += a - length * outValue;
+        }
+
+        int value() {
+            return (a & 0xFFFF) | (b << 16);
+        }
+    }
+
+    /**
+     * The checksums of every block of one file, as a peer sent them.
+     */
+    static final class Signatures {
+        final long size;
+        final int blockSize;
+        /** The file's content hash, or empty if the peer has not hashed it yet. */
+        final byte[] contentHash;
+        final int[] weak;
+        /** The strong checksums, {@link #STRONG_SIZE} bytes per block. */
+        final byte[] strong;
+
+        Signatures(long size, int blockSize, byte[] contentHash, int[] weak, byte[] strong) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.contentHash = contentHash;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        int blockCount() {
+            return weak.length;
+        }
+
+        int blockLength(int index) {
+            return (int) Math.min(blockSize, size - (long) index * blockSize);
+        }
+
+        boolean strongMatches(int index, byte[] checksum) {
+            return Arrays.equals(strong, index * STRONG_SIZE, (index + 1) * STRONG_SIZE, checksum, 0, STRONG_SIZE);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The peer catalogs a client holds, bounded in number and age. The least recently used catalog is
+ * evicted once more than {@code maxEntries} are held, and a catalog not revalidated within the
+ * time to live is dropped rather than shown.
+ */
+class CatalogCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, CachedCatalog> entries;
+
+    CatalogCache(int maxEntries, long ttl, TimeUnit unit) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCatalog> eldest) {
+                return size() > CatalogCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The catalog held for {@code peer}, or null if there is none or it has expired.
+     */
+    synchronized PeerCatalog get(String peer) {
+        CachedCatalog entry = entries.get(peer);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.validatedNanos > ttlNanos) {
+            entries.remove(peer);
+            return null;
+        }
+        return entry.catalog;
+    }
+
+    /**
+     * Stores a catalog just fetched or revalidated for {@code peer}, unless a newer version of the
+     * same epoch is already held, as happens when a slower revalidation finishes last.
+     *
+     * @return the catalog now held
+     */
+    synchronized PeerCatalog put(String peer, PeerCatalog catalog) {
+        CachedCatalog current = entries.get(peer);
+        PeerCatalog kept = current != null
+                && current.catalog.getEpoch() == catalog.getEpoch()
+                && current.catalog.getVersion() > catalog.getVersion()
+                ? current.catalog : catalog;
+        entries.put(peer, new CachedCatalog(kept, System.nanoTime()));
+        return kept;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static class CachedCatalog {
+        final PeerCatalog catalog;
+        final long validatedNanos;
+
+        CachedCatalog(PeerCatalog catalog, long validatedNanos) {
+            this.catalog = catalog;
+            this.validatedNanos = validatedNanos;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes catalog records. Sorted names share long prefixes, especially in shared directories, so
+ * each name is front-coded against the previous one in the same frame: the length of the shared
+ * prefix in chars, then the rest as a string. Every frame starts afresh, so frames decode on their
+ * own.
+ */
+final class CatalogCodec {
+    private CatalogCodec() {
+    }
+
+    /**
+     * The encoded size of {@code info} after a record named {@code previous}, which is null at the
+     * start of a frame.
+     */
+    static int encodedLength(FileInfo info, String previous) {
+        byte[] hash = hashOf(info);
+        return nameLength(info.getName(), previous)
+                + FrameEncoder.varIntLength(info.getSize())
+                + FrameEncoder.varIntLength(info.getLastModified())
+                + FrameEncoder.varIntLength(hash.length) + hash.length;
+    }
+
+    static void put(FrameEncoder encoder, FileInfo info, String previous) {
+        byte[] hash = hashOf(info);
+        putName(encoder, info.getName(), previous);
+        encoder.putVarLong(info.getSize())
+                .putVarLong(info.getLastModified())
+                .putVarInt(hash.length)
+                .putBytes(ByteBuffer.wrap(hash));
+    }
+
+    static FileInfo get(Frame frame, String previous) throws IOException {
+        String name = getName(frame, previous);
+        long size = frame.getVarSize();
+        long lastModified = frame.getVarLong();
+        byte[] hash = frame.getBytes(frame.getVarInt());
+        return new FileInfo(name, size, lastModified, hash.length > 0 ? hash : null);
+    }
+
+    static int nameLength(String name, String previous) {
+        int prefix = sharedPrefix(name, previous);
+        return FrameEncoder.varIntLength(prefix) + FrameEncoder.encodedLength(name.substring(prefix));
+    }
+
+    static void putName(FrameEncoder encoder, String name, String previous) {
+        int prefix = sharedPrefix(name, previous);
+        encoder.putVarInt(prefix).putString(name.substring(prefix));
+    }
+
+    static String getName(Frame frame, String previous) throws IOException {
+        int prefix = frame.getVarInt();
+        int available = previous != null ? previous.length() : 0;
+        if (prefix > available) {
+            throw new ProtocolException("Name prefix of " + prefix + " chars exceeds the previous name");
+        }
+        String suffix = frame.getString();
+        return prefix == 0 ? suffix : previous.substring(0, prefix) + suffix;
+    }
+
+    private static int sharedPrefix(String name, String previous) {
+        if (previous == null) {
+            return 0;
+        }
+        int limit = Math.min(name.length(), previous.length());
+        int prefix = 0;
+        while (prefix < limit && name.charAt(prefix) == previous.charAt(prefix)) {
+            prefix++;
+        }
+        // Never split a surrogate pair, the rest must be valid on its own
+        if (prefix > 0 && Character.isHighSurrogate(name.charAt(prefix - 1))) {
+            prefix--;
+        }
+        return prefix;
+    }
+
+    private static byte[] hashOf(FileInfo info) {
+        byte[] hash = info.getContentHash();
+        return hash != null ? hash : new byte[0];
+    }
+}
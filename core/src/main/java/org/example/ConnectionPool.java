@@ -0,0 +1,82 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one multiplexed {@link PeerConnection} per peer. Connections are opened on first use,
+ * replaced when they die, and closed after sitting idle for the configured timeout.
+ */
+public class ConnectionPool implements Closeable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final Map<InetSocketAddress, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final long idleTimeoutNanos;
+    private final ScheduledExecutorService reaper;
+
+    public ConnectionPool(long idleTimeout, TimeUnit unit) {
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, unit.toMillis(idleTimeout) / 2);
+        reaper.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the open connection to {@code address}, connecting if there is none. Connecting
+     * happens outside the map, so it holds up no other peer; if two callers connect to the same
+     * peer at once, the first connection stored wins and the other is closed.
+     */
+    public PeerConnection get(InetSocketAddress address) throws IOException {
+        PeerConnection connection = connections.get(address);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        PeerConnection opened = PeerConnection.open(address, CONNECT_TIMEOUT_MILLIS);
+        PeerConnection stored = connections.merge(address, opened,
+                (existing, fresh) -> existing.isOpen() ? existing : fresh);
+        if (stored != opened) {
+            opened.close();
+        }
+        return stored;
+    }
+
+    /**
+     * Drops a connection that failed so the next {@link #get} reconnects.
+     */
+    public void invalidate(PeerConnection connection) {
+        connections.remove(connection.getAddress(), connection);
+        connection.close();
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    private void closeIdle() {
+        for (PeerConnection connection : connections.values()) {
+            // Closed only if no request slipped in since it went idle; one that comes later
+            // finds it closed and is retried on a new connection
+            if (!connection.isOpen() || connection.closeIfIdle(idleTimeoutNanos)) {
+                invalidate(connection);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        reaper.shutdownNow();
+        for (PeerConnection connection : connections.values()) {
+            invalidate(connection);
+        }
+    }
+}
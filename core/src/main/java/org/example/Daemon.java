@@ -0,0 +1,212 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a node without a user interface, for always-on seed nodes on servers. It shares the given
+ * files and directories, takes part in discovery and gossip, and serves peers until it is stopped
+ * with a signal. Nothing of JavaFX is loaded.
+ *
+ * <pre>
+ * java -jar p2p-core.jar --share /srv/files --port 8888 --upload-rate 20m --seeds seed.example.org
+ * </pre>
+ *
+ * <p>Settings can also come from a properties file given with {@code --config}, using the option
+ * names without the dashes; options on the command line win. Sizes and rates take a {@code k},
+ * {@code m} or {@code g} suffix.
+ */
+public class Daemon {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -jar p2p-core.jar [options]",
+            "  --share PATH               share a file, or a directory and everything under it (repeatable)",
+            "  --port N                   port for peers and discovery (default " + ServerConfig.DEFAULT_PORT + ")",
+            "  --seeds HOST[:PORT],...    nodes to gossip with when no other node is known",
+            "  --upload-rate BYTES        limit on all uploads per second, 0 for none",
+            "  --download-rate BYTES      limit on all downloads per second, 0 for none",
+            "  --max-connections N        most peer connections at once",
+            "  --max-uploads N            most ranges served at once",
+            "  --max-uploads-per-peer N   most ranges served to one peer at once",
+            "  --cache-bytes BYTES        memory for caching popular small files, 0 for none",
+            "  --state DIR                keep what is shared in DIR and share it again on the next start",
+            "  --metrics-port N           serve Prometheus metrics at http://127.0.0.1:N/metrics",
+            "  --config FILE              read settings from a properties file",
+            "  --check                    start, share, then stop at once; used to record a CDS archive",
+            "  --help                     show this message");
+
+    private final ServerConfig config = new ServerConfig();
+    private final List<File> shares = new ArrayList<>();
+    private boolean check;
+
+    public static void main(String[] args) {
+        Daemon daemon = new Daemon();
+        try {
+            if (!daemon.parse(args)) {
+                System.out.println(USAGE);
+                return;
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            daemon.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false if only the usage was asked for
+     */
+    private boolean parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || arg.equals("-h")) {
+                return false;
+            }
+            if (arg.equals("--check")) {
+                check = true;
+                continue;
+            }
+            if (!arg.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Unknown option or missing value: " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--config")) {
+                readConfig(value);
+            } else {
+                set(arg.substring(2), value);
+            }
+        }
+        return true;
+    }
+
+    private void readConfig(String file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+            properties.load(reader);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+            if (key.equals("share")) {
+                // Several paths in one property, as on a class path
+                for (String path : value.split(File.pathSeparator)) {
+                    if (!path.isBlank()) {
+                        set(key, path.trim());
+                    }
+                }
+            } else {
+                set(key, value);
+            }
+        }
+    }
+
+    private void set(String option, String value) {
+        switch (option) {
+            case "share":
+                shares.add(new File(value));
+                break;
+            case "port":
+                config.setPort(parseInt(option, value));
+                break;
+            case "seeds":
+                config.setSeeds(ServerConfig.parseSeeds(value));
+                break;
+            case "upload-rate":
+                config.setUploadBytesPerSecond(parseSize(option, value));
+                break;
+            case "download-rate":
+                config.setDownloadBytesPerSecond(parseSize(option, value));
+                break;
+            case "max-connections":
+                config.setMaxConnections(parseInt(option, value));
+                break;
+            case "max-uploads":
+                config.setMaxUploads(parseInt(option, value));
+                break;
+            case "max-uploads-per-peer":
+                config.setMaxUploadsPerPeer(parseInt(option, value));
+                break;
+            case "cache-bytes":
+                config.setFileCacheBytes(parseSize(option, value));
+                break;
+            case "state":
+                config.setStateDirectory(Paths.get(value));
+                break;
+            case "metrics-port":
+                config.setMetricsPort(parseInt(option, value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + option);
+        }
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number for " + option + ": " + value);
+        }
+    }
+
+    /**
+     * Parses a byte count such as {@code 512}, {@code 64k} or {@code 20m}.
+     */
+    private static long parseSize(String option, String value) {
+        String digits = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (digits.endsWith("k") || digits.endsWith("m") || digits.endsWith("g")) {
+            unit = digits.endsWith("k") ? 1024 : digits.endsWith("m") ? 1024 * 1024 : 1024 * 1024 * 1024;
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long size = Long.parseLong(digits);
+            if (size < 0) {
+                throw new NumberFormatException();
+            }
+            return Math.multiplyExact(size, unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Not a size for " + option + ": " + value);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        P2P p2p = new P2P(config);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            p2p.stopServer();
+            stopped.countDown();
+        }, "daemon-shutdown"));
+        p2p.startServer();
+        int files = 0;
+        for (File share : shares) {
+            if (share.isDirectory()) {
+                files += p2p.shareDirectory(share).size();
+            } else if (share.isFile()) {
+                files += p2p.addSharedFile(share) ? 1 : 0;
+            } else {
+                System.err.println("Not sharing " + share + ": no such file or directory");
+            }
+        }
+        System.out.printf("Sharing %d files; ready after %d ms%n", files, (System.nanoTime() - startNanos) / 1_000_000);
+        if (check) {
+            // Exiting runs the shutdown hook
+            System.exit(0);
+        }
+        stopped.await();
+    }
+}
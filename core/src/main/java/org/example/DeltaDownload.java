@@ -0,0 +1,377 @@
+package org.example;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Updates an older copy of a file to a peer's current version by fetching only what changed, as
+ * rsync does. The peer sends the {@link BlockChecksums} of its version; the old copy is scanned
+ * with a rolling checksum for blocks with the same contents at any offset, so data that was
+ * inserted or removed does not shift every later block into a mismatch. Blocks found are copied
+ * from the old copy and the rest is requested as ranges, up to {@link #MAX_RANGES_IN_FLIGHT} at a
+ * time.
+ *
+ * <p>The new version is built in a {@code .sync} file next to the target, checked against the
+ * peer's content hash if it has one, and then moved over the target. If anything fails the target
+ * is left as it was.
+ */
+public class DeltaDownload {
+    private static final int MAX_RANGES_IN_FLIGHT = 8;
+    private static final int MAX_RANGE_SIZE = MerkleTree.CHUNK_SIZE;
+    // The peer reads the whole file to answer
+    private static final long SIGNATURES_TIMEOUT_SECONDS = 600;
+    private static final int SCAN_BUFFER_BLOCKS = 64;
+    private static final String SYNC_SUFFIX = ".sync";
+
+    private final PeerClient client;
+    private final TransferManager transfers;
+    private final TransferManager.Priority priority;
+    private final String peer;
+    private final String fileName;
+    private final Path target;
+    private final TransferListener listener;
+    private BlockChecksums.Signatures signatures;
+    private FileChannel output;
+    private TransferMeter meter;
+
+    public DeltaDownload(PeerClient client, TransferManager transfers, TransferManager.Priority priority, String peer,
+                         String fileName, Path target, TransferListener listener) {
+        this.client = client;
+        this.transfers = transfers;
+        this.priority = priority;
+        this.peer = peer;
+        this.fileName = fileName;
+        this.target = target;
+        this.listener = listener;
+    }
+
+    /**
+     * Brings the target up to date with the peer's version, blocking until it is done.
+     *
+     * @return the number of bytes fetched from the peer
+     */
+    public long run() throws IOException {
+        signatures = PeerClient.await(client.getSignatures(peer, fileName), SIGNATURES_TIMEOUT_SECONDS);
+        Path syncFile = target.resolveSibling(target.getFileName() + SYNC_SUFFIX);
+        long fetched;
+        try {
+            try (FileChannel old = FileChannel.open(target, StandardOpenOption.READ);
+                 FileChannel created = FileChannel.open(syncFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                output = created;
+                long[] found = match(signatures, old);
+                long reused = copyFound(old, found);
+                meter = new TransferMeter(fileName, signatures.size, reused, listener, client.getMetrics());
+                fetchMissing(found);
+                fetched = meter.getBytes() - reused;
+                if (signatures.contentHash.length > 0 && !computeTree().hasRoot(signatures.contentHash)) {
+                    throw new IOException("Updated copy of " + fileName + " failed verification");
+                }
+            }
+            Files.move(syncFile, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(syncFile);
+        }
+        meter.finish();
+        return fetched;
+    }
+
+    /**
+     * Scans the old copy for the blocks of {@code signatures}.
+     *
+     * @return for each block, the offset in the old copy where its contents were found, or -1
+     */
+    static long[] match(BlockChecksums.Signatures signatures, FileChannel old) throws IOException {
+        int blockSize = signatures.blockSize;
+        int blockCount = signatures.blockCount();
+        long[] found = new long[blockCount];
+        Arrays.fill(found, -1);
+        // Blocks by weak checksum, chained through next; the short last block is always fetched
+        Map<Integer, Integer> firstByWeak = new HashMap<>();
+        int[] next = new int[blockCount];
+        for (int index = blockCount - 1; index >= 0; index--) {
+            if (signatures.blockLength(index) == blockSize) {
+                Integer first = firstByWeak.put(signatures.weak[index], index);
+                next[index] = first != null ? first : -1;
+            }
+        }
+        if (firstByWeak.isEmpty()) {
+            return found;
+        }
+        MessageDigest digest = MerkleTree.newDigest();
+        BlockChecksums.Rolling rolling = new BlockChecksums.Rolling();
+        byte[] buffer = new byte[blockSize * SCAN_BUFFER_BLOCKS];
+        long bufferOffset = 0;
+        int limit = 0;
+        int start = 0;
+        boolean rolled = false;
+        boolean endOfFile = false;
+        while (true) {
+            if (start + blockSize > limit) {
+                if (endOfFile) {
+                    break;
+                }
+                // Keep the window, refill behind it
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                bufferOffset += start;
+                limit -= start;
+                start = 0;
+                ByteBuffer free = ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+                while (free.hasRemaining()) {
+                    if (old.read(free, bufferOffset + free.position()) < 0) {
+                        endOfFile = true;
+                        break;
+                    }
+                }
+                limit = free.position();
+                continue;
+            }
+            if (!rolled) {
+                rolling.reset(buffer, start, blockSize);
+                rolled = true;
+            }
+            Integer candidate = firstByWeak.get(rolling.value());
+            boolean matched = false;
+            if (candidate != null) {
+                byte[] strong = BlockChecksums.strong(digest, buffer, start, blockSize);
+                for (int index = candidate; index >= 0; index = next[index]) {
+                    if (signatures.strongMatches(index, strong)) {
+                        matched = true;
+                        if (found[index] < 0) {
+                            found[index] = bufferOffset + start;
+                        }
+                    }
+                }
+            }
+            if (matched) {
+                start += blockSize;
+                rolled = false;
+            } else if (start + blockSize < limit) {
+                rolling.roll(buffer[start], buffer[start + blockSize]);
+                start++;
+            } else if (endOfFile) {
+                break;
+            } else {
+                // The next byte is not read yet; roll once it is
+                rolled = false;
+                start++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copies the blocks found in the old copy to their places in the new one, runs of adjacent
+     * blocks at once.
+     *
+     * @return the number of bytes copied
+     */
+    private long copyFound(FileChannel old, long[] found) throws IOException {
+        int blockSize = signatures.blockSize;
+        long copied = 0;
+        for (int index = 0; index < found.length; ) {
+            if (found[index] < 0) {
+                index++;
+                continue;
+            }
+            int end = index + 1;
+            while (end < found.length && found[end] == found[end - 1] + blockSize) {
+                end++;
+            }
+            long position = (long) index * blockSize;
+            long length = (long) (end - index) * blockSize;
+            long source = found[index];
+            for (long done = 0; done < length; ) {
+                output.position(position + done);
+                long count = old.transferTo(source + done, length - done, output);
+                if (count <= 0) {
+                    throw new EOFException(target + " shrank while it was read");
+                }
+                done += count;
+            }
+            copied += length;
+            index = end;
+        }
+        return copied;
+    }
+
+    /**
+     * Requests the blocks not found in the old copy, adjacent ones together in ranges of up to
+     * {@link #MAX_RANGE_SIZE} bytes.
+     */
+    private void fetchMissing(long[] found) throws IOException {
+        Semaphore window = new Semaphore(MAX_RANGES_IN_FLIGHT);
+        List<RangeRequest> requests = new ArrayList<>();
+        try {
+            for (int index = 0; index < found.length; ) {
+                if (found[index] >= 0) {
+                    index++;
+                    continue;
+                }
+                long offset = (long) index * signatures.blockSize;
+                long length = 0;
+                while (index < found.length && found[index] < 0
+                        && length + signatures.blockLength(index) <= MAX_RANGE_SIZE) {
+                    length += signatures.blockLength(index);
+                    index++;
+                }
+                window.acquire();
+                RangeRequest request = new RangeRequest(offset, length);
+                requests.add(request);
+                request.done.whenComplete((done, error) -> window.release());
+                send(request);
+            }
+            for (RangeRequest request : requests) {
+                PeerClient.await(request.done, 0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted updating " + fileName);
+        } finally {
+            // Only requests still running are affected
+            for (RangeRequest request : requests) {
+                request.cancel();
+            }
+        }
+    }
+
+    private void send(RangeRequest request) {
+        transfers.acquireChunk(this, peer, request.length, priority).thenRun(() -> {
+            synchronized (request) {
+                if (request.done.isDone()) {
+                    transfers.releaseChunk(peer);
+                    return;
+                }
+                request.slotHeld = true;
+                try {
+                    request.pending = client.getRange(peer, fileName, request.offset, request.length,
+                            priority == TransferManager.Priority.BULK, request);
+                } catch (IOException e) {
+                    request.onFailure(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hashes the new copy as the peer hashed its version.
+     */
+    private MerkleTree computeTree() throws IOException {
+        int chunkCount = MerkleTree.chunkCount(signatures.size);
+        byte[] leaves = new byte[chunkCount * MerkleTree.HASH_SIZE];
+        MessageDigest digest = MerkleTree.newDigest();
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(MerkleTree.CHUNK_SIZE, Math.max(1, signatures.size)));
+        for (int index = 0; index < chunkCount; index++) {
+            long position = (long) index * MerkleTree.CHUNK_SIZE;
+            chunk.clear().limit((int) Math.min(chunk.capacity(), signatures.size - position));
+            while (chunk.hasRemaining()) {
+                if (output.read(chunk, position + chunk.position()) < 0) {
+                    throw new EOFException("Updated copy of " + fileName + " is incomplete");
+                }
+            }
+            byte[] leaf = MerkleTree.hashLeaf(digest, chunk.flip());
+            System.arraycopy(leaf, 0, leaves, index * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+        }
+        return new MerkleTree(signatures.size, leaves);
+    }
+
+    /**
+     * One range request for missing blocks. Its data frames are written into the new copy on the
+     * connection's reader thread; the lock keeps a cancel from racing a write.
+     */
+    private class RangeRequest implements PeerConnection.ReplyHandler {
+        final long offset;
+        final long length;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        PeerClient.PendingRequest pending;
+        boolean slotHeld;
+        boolean headerReceived;
+        long received;
+
+        RangeRequest(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public synchronized boolean onFrame(Frame frame) throws IOException {
+            if (done.isDone()) {
+                return true;
+            }
+            if (!headerReceived) {
+                PeerConnection.checkReply(frame, Protocol.FILE_HEADER);
+                long fileSize = frame.getVarSize();
+                long rangeOffset = frame.getVarSize();
+                long rangeLength = frame.getVarSize();
+                if (fileSize != signatures.size || rangeOffset != offset || rangeLength != length) {
+                    throw new ProtocolException("Peer's copy of " + fileName + " changed");
+                }
+                headerReceived = true;
+                return false;
+            }
+            if (frame.getOpcode() == Protocol.DATA) {
+                ByteBuffer data = frame.payload();
+                int count = data.remaining();
+                if (received + count > length) {
+                    throw new ProtocolException("Peer sent more than the requested " + length + " bytes");
+                }
+                long position = offset + received;
+                while (data.hasRemaining()) {
+                    position += output.write(data, position);
+                }
+                received += count;
+                meter.add(count);
+                return false;
+            }
+            PeerConnection.checkReply(frame, Protocol.END);
+            if (received != length) {
+                throw new EOFException("Range ended after " + received + " of " + length + " bytes");
+            }
+            finish(null);
+            return true;
+        }
+
+        @Override
+        public synchronized void onFailure(IOException cause) {
+            finish(cause);
+        }
+
+        /**
+         * Stops the request if it is still running.
+         */
+        synchronized void cancel() {
+            if (pending != null && !done.isDone()) {
+                pending.cancel();
+            }
+            finish(new IOException("Update of " + fileName + " was cancelled"));
+        }
+
+        private void finish(IOException error) {
+            if (slotHeld) {
+                slotHeld = false;
+                transfers.releaseChunk(peer);
+            }
+            if (error != null) {
+                done.completeExceptionally(error);
+            } else {
+                done.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches shared directory trees and reports files appearing, changing and disappearing in them.
+ * A tree is scanned once in parallel when it is added. After that only {@link WatchService}
+ * events are processed, so the cost of keeping the catalog current depends on what changes rather
+ * than on how many files are shared.
+ *
+ * <p>Files are reported by their shared name: the path relative to the parent of the watched
+ * root, with {@code /} as separator. Creations and modifications are reported once a file has
+ * been quiet for {@link #SETTLE_MILLIS}, so a file being copied in is reported once it is complete
+ * rather than on every write. Symbolic links are not followed.
+ */
+public class DirectoryWatcher implements Closeable {
+    private static final long SETTLE_MILLIS = 1000;
+
+    /**
+     * Receives changes, on the watcher's thread.
+     */
+    public interface Listener {
+        /**
+         * A directory tree appeared. {@code files} are keyed by shared name.
+         */
+        void filesAdded(Map<String, File> files);
+
+        /**
+         * A file was created or modified and has since settled.
+         */
+        void fileChanged(String name, File file);
+
+        /**
+         * {@code path} was deleted. It may have been a file or a directory.
+         */
+        void pathRemoved(File path);
+    }
+
+    private final Listener listener;
+    private final WatchService watchService;
+    private final Map<WatchKey, WatchedDirectory> keys = new ConcurrentHashMap<>();
+    private final Map<Path, Path> roots = new ConcurrentHashMap<>();
+    // Only touched on the watcher thread
+    private final Map<Path, Long> unsettled = new LinkedHashMap<>();
+    private final Thread thread;
+
+    public DirectoryWatcher(Listener listener) throws IOException {
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::run, "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching the tree under {@code root} and returns every regular file in it, keyed by
+     * shared name. Adding a root that is already watched rescans it.
+     */
+    public Map<String, File> watch(Path root) throws IOException {
+        Path directory = root.toAbsolutePath().normalize();
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            throw new NoSuchFileException(directory.toString(), null, "Not a directory");
+        }
+        roots.put(directory, directory);
+        try {
+            return scan(directory, directory);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Stops watching the tree under {@code root}.
+     */
+    public void unwatch(Path root) {
+        Path directory = root.toAbsolutePath().normalize();
+        roots.remove(directory);
+        for (Iterator<Map.Entry<WatchKey, WatchedDirectory>> it = keys.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<WatchKey, WatchedDirectory> entry = it.next();
+            if (entry.getValue().root.equals(directory)) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    public List<Path> getRoots() {
+        return new ArrayList<>(roots.keySet());
+    }
+
+    private Map<String, File> scan(Path root, Path directory) {
+        Map<String, File> files = new ConcurrentHashMap<>();
+        ForkJoinPool.commonPool().invoke(new ScanTask(root, directory, files));
+        return files;
+    }
+
+    /**
+     * Registers one directory and lists it, forking a task per subdirectory.
+     */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path directory;
+        private final Map<String, File> files;
+
+        ScanTask(Path root, Path directory, Map<String, File> files) {
+            this.root = root;
+            this.directory = directory;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> subdirectories = new ArrayList<>();
+            try {
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                keys.put(key, new WatchedDirectory(root, directory));
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            subdirectories.add(new ScanTask(root, entry, files));
+                        } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            files.put(sharedName(root, entry), entry.toFile());
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted while scanning; the delete event cleans up
+            } catch (IOException e) {
+                if (directory.equals(root)) {
+                    throw new UncheckedIOException(e);
+                }
+                System.err.println("Could not scan " + directory + ": " + e.getMessage());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    private static String sharedName(Path root, Path file) {
+        StringBuilder name = new StringBuilder(root.getFileName().toString());
+        for (Path part : root.relativize(file)) {
+            name.append('/').append(part);
+        }
+        return name.toString();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = unsettled.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handle(key);
+                }
+                reportSettled();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private void handle(WatchKey key) {
+        WatchedDirectory watched = keys.get(key);
+        if (watched == null) {
+            key.cancel();
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            try {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost, so the directory's tree is read again from scratch
+                    listener.pathRemoved(watched.directory.toFile());
+                    listener.filesAdded(scan(watched.root, watched.directory));
+                    continue;
+                }
+                Path child = watched.directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    unsettled.keySet().removeIf(path -> path.startsWith(child));
+                    listener.pathRemoved(child.toFile());
+                } else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        listener.filesAdded(scan(watched.root, child));
+                    }
+                } else {
+                    unsettled.remove(child);
+                    unsettled.put(child, System.nanoTime());
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Reports the files that have not changed for {@link #SETTLE_MILLIS}.
+     */
+    private void reportSettled() {
+        long settledBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+        for (Iterator<Map.Entry<Path, Long>> it = unsettled.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (entry.getValue() > settledBefore) {
+                // Entries are in order of their last change, so the rest are newer still
+                break;
+            }
+            it.remove();
+            Path file = entry.getKey();
+            Path root = rootOf(file);
+            if (root != null && Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    listener.fileChanged(sharedName(root, file), file.toFile());
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private Path rootOf(Path file) {
+        for (Path root : roots.keySet()) {
+            if (file.startsWith(root)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        thread.interrupt();
+    }
+
+    private static class WatchedDirectory {
+        final Path root;
+        final Path directory;
+
+        WatchedDirectory(Path root, Path directory) {
+            this.root = root;
+            this.directory = directory;
+        }
+    }
+}
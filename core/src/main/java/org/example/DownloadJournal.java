@@ -0,0 +1,153 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Records which chunks of a partial download are already on disk, so an interrupted download can
+ * resume where it stopped. The journal is a header naming the file's size and content hash
+ * followed by the index of every completed chunk, appended as chunks are synced. A journal written
+ * for different content is discarded.
+ *
+ * <p>Completed chunks are buffered and written by {@link #sync}, which first forces the data
+ * file, so the journal never claims a chunk whose bytes might not have reached the disk.
+ */
+class DownloadJournal implements AutoCloseable {
+    private static final int MAGIC = 0x50325031; // "P2P1"
+    private static final int ENTRY_SIZE = Integer.BYTES;
+    // Chunks between syncs, which bounds how much a crash can lose
+    private static final int SYNC_INTERVAL = 16;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final BitSet completed;
+    private final ByteBuffer pending = ByteBuffer.allocate(ENTRY_SIZE * SYNC_INTERVAL);
+
+    private DownloadJournal(Path path, FileChannel channel, BitSet completed) {
+        this.path = path;
+        this.channel = channel;
+        this.completed = completed;
+    }
+
+    /**
+     * Opens the journal at {@code path}, keeping its recorded chunks if it was written for the same
+     * size, content hash and chunk count and starting it afresh otherwise.
+     */
+    static DownloadJournal open(Path path, long size, byte[] contentHash, int chunkCount) throws IOException {
+        byte[] hash = contentHash != null ? contentHash : new byte[0];
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + Integer.BYTES + 1 + hash.length);
+        header.putInt(MAGIC).putLong(size).putInt(chunkCount).put((byte) hash.length).put(hash).flip();
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            BitSet completed = new BitSet(chunkCount);
+            if (headerMatches(channel, header)) {
+                readEntries(channel, header.limit(), chunkCount, completed);
+            } else {
+                channel.truncate(0);
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+                channel.position(header.limit());
+            }
+            return new DownloadJournal(path, channel, completed);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean headerMatches(FileChannel channel, ByteBuffer expected) throws IOException {
+        if (channel.size() < expected.limit()) {
+            return false;
+        }
+        ByteBuffer actual = ByteBuffer.allocate(expected.limit());
+        while (actual.hasRemaining()) {
+            if (channel.read(actual, actual.position()) < 0) {
+                return false;
+            }
+        }
+        return Arrays.equals(actual.array(), expected.array());
+    }
+
+    private static void readEntries(FileChannel channel, long start, int chunkCount, BitSet completed)
+            throws IOException {
+        // A torn entry at the end is left out and overwritten by the next sync
+        long end = start + (channel.size() - start) / ENTRY_SIZE * ENTRY_SIZE;
+        ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 4096);
+        long position = start;
+        while (position < end) {
+            entries.clear();
+            entries.limit((int) Math.min(entries.capacity(), end - position));
+            while (entries.hasRemaining()) {
+                channel.read(entries, position + entries.position());
+            }
+            entries.flip();
+            while (entries.hasRemaining()) {
+                int chunk = entries.getInt();
+                if (chunk >= 0 && chunk < chunkCount) {
+                    completed.set(chunk);
+                }
+            }
+            position += entries.limit();
+        }
+        channel.position(end);
+    }
+
+    /**
+     * The chunks recorded as complete when the journal was opened or synced since.
+     */
+    BitSet getCompleted() {
+        return (BitSet) completed.clone();
+    }
+
+    /**
+     * Buffers a completed chunk until the next {@link #sync}.
+     *
+     * @return whether the buffer is full and should be synced
+     */
+    boolean markDone(int chunk) {
+        pending.putInt(chunk);
+        return !pending.hasRemaining();
+    }
+
+    /**
+     * Forces {@code data} to disk and then appends the buffered chunks to the journal.
+     */
+    void sync(FileChannel data) throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+        data.force(false);
+        pending.flip();
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        channel.force(false);
+        for (int i = 0; i < pending.limit(); i += ENTRY_SIZE) {
+            completed.set(pending.getInt(i));
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Closes and removes the journal once the download it tracked has been completed.
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,280 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the contents of popular small files in direct memory, so a file that many peers fetch at
+ * once is read from disk once and then served from memory. The cache holds at most a configured
+ * number of bytes, outside the heap.
+ *
+ * <p>A file is cached from its second request on, and only if it was requested more often lately
+ * than every file it would push out. Request counts are estimated in constant space and halved
+ * regularly, so they follow current popularity and a burst of one-off downloads cannot flush the
+ * files in demand. Among cached files the least recently used go first.
+ *
+ * <p>Entries are checked against the file's size and modification time on every request; a
+ * changed file is dropped and read again.
+ */
+public class FileCache {
+    private static final int MIN_ADMIT_FREQUENCY = 2;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final FrequencySketch frequencies = new FrequencySketch(4096);
+    // Least recently used first
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes the most bytes to cache, or 0 to cache nothing
+     * @param maxFileBytes files larger than this are never cached
+     */
+    public FileCache(long maxBytes, long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The contents of the file at {@code path}, from memory if they are cached and still current.
+     * On a miss the file is read into the cache if it is small and popular enough.
+     *
+     * @return a read-only buffer of the whole file, or null if the caller should read the file
+     *         itself
+     */
+    ByteBuffer get(Path path) throws IOException {
+        if (maxBytes == 0) {
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (size > maxFileBytes || size > maxBytes) {
+            // Never cached, so neither a hit nor a miss; only a stale entry from before the file
+            // grew is dropped
+            synchronized (this) {
+                remove(path);
+            }
+            return null;
+        }
+        int frequency;
+        synchronized (this) {
+            frequency = frequencies.increment(path);
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                if (entry.size == size && entry.lastModified == lastModified) {
+                    hits.increment();
+                    return entry.data.asReadOnlyBuffer();
+                }
+                remove(path);
+            }
+            misses.increment();
+            if (!admits(frequency, size)) {
+                return null;
+            }
+        }
+        // Read outside the lock; requests for other files need not wait for the disk
+        ByteBuffer data = load(path, size, lastModified);
+        if (data == null) {
+            return null;
+        }
+        synchronized (this) {
+            remove(path);
+            if (admits(frequency, size)) {
+                while (bytes + size > maxBytes) {
+                    Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+                    bytes -= eldest.next().getValue().size;
+                    eldest.remove();
+                    evictions.increment();
+                }
+                entries.put(path, new Entry(data, size, lastModified));
+                bytes += size;
+            }
+        }
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Whether a file requested {@code frequency} times lately may take {@code size} bytes: every
+     * file that would be evicted for it must have been requested less often.
+     */
+    private boolean admits(int frequency, long size) {
+        if (frequency < MIN_ADMIT_FREQUENCY) {
+            return false;
+        }
+        long needed = bytes + size - maxBytes;
+        for (Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator(); needed > 0 && it.hasNext(); ) {
+            Map.Entry<Path, Entry> victim = it.next();
+            if (frequencies.estimate(victim.getKey()) >= frequency) {
+                return false;
+            }
+            needed -= victim.getValue().size;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a whole file into direct memory.
+     *
+     * @return the contents, or null if the file changed while it was read
+     */
+    private static ByteBuffer load(Path path, long size, long lastModified) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) < 0) {
+                    return null;
+                }
+            }
+        }
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        if (after.size() != size || after.lastModifiedTime().toMillis() != lastModified) {
+            return null;
+        }
+        return data.flip();
+    }
+
+    /**
+     * Drops the cached contents of a file, for example once it is no longer shared.
+     */
+    public synchronized void invalidate(Path path) {
+        remove(path);
+    }
+
+    private void remove(Path path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * Requests served from memory.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Requests for files small enough to cache that were not cached or had changed.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Files dropped to make room for more popular ones.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FileCache[" + size() + " files, " + getBytes() + " of " + maxBytes + " bytes, "
+                + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions]";
+    }
+
+    private static class Entry {
+        final ByteBuffer data;
+        final long size;
+        final long lastModified;
+
+        Entry(ByteBuffer data, long size, long lastModified) {
+            this.data = data;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Approximate request counts in a count-min sketch: each key bumps one small counter in each of
+     * four rows, and its estimate is the lowest of them. Only the lowest counters are bumped, which
+     * keeps collisions from inflating estimates. All counters are halved after a number of
+     * increments proportional to the sketch's size.
+     */
+    private static class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final int[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int increments;
+
+        /**
+         * @param width counters per row, a power of two
+         */
+        FrequencySketch(int width) {
+            counters = new int[ROWS * width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        int estimate(Object key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                min = Math.min(min, counters[index(hash, row)]);
+            }
+            return min;
+        }
+
+        /**
+         * Counts one request for {@code key}.
+         *
+         * @return the new estimate
+         */
+        int increment(Object key) {
+            int estimate = estimate(key);
+            if (estimate < MAX_COUNT) {
+                int hash = key.hashCode();
+                for (int row = 0; row < ROWS; row++) {
+                    int index = index(hash, row);
+                    if (counters[index] == estimate) {
+                        counters[index]++;
+                    }
+                }
+                estimate++;
+            }
+            if (++increments >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>>= 1;
+                }
+                increments /= 2;
+            }
+            return estimate;
+        }
+
+        private int index(int hash, int row) {
+            int mixed = hash * SEEDS[row];
+            mixed ^= mixed >>> 16;
+            return row * (mask + 1) + (mixed & mask);
+        }
+    }
+}
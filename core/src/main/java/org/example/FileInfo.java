@@ -0,0 +1,61 @@
+package org.example;
+
+import java.net.URLConnection;
+
+/**
+ * What a peer reports about one of its shared files, and the record a catalog lists for each file.
+ * The MIME type is derived from the name, so it is never sent.
+ */
+public class FileInfo {
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final byte[] contentHash;
+
+    public FileInfo(String name, long size, long lastModified, byte[] contentHash) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * The root of the file's {@link MerkleTree}, or null if the peer has not hashed it yet.
+     */
+    public byte[] getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * The part of the name after the last dot, or an empty string.
+     */
+    public String getExtension() {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        return dot > slash + 1 ? name.substring(dot + 1) : "";
+    }
+
+    public String getMimeType() {
+        String mimeType = URLConnection.getFileNameMap().getContentTypeFor(name);
+        return mimeType != null ? mimeType : DEFAULT_MIME_TYPE;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,128 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decoded frame. Instances are reused by {@link FrameDecoder#next(Frame)} and the payload is a
+ * view into the decoder's buffer, so a frame is only valid until the next call to the decoder.
+ */
+public class Frame {
+    private int opcode;
+    private int flags;
+    private int requestId;
+    private ByteBuffer payload;
+
+    void set(int opcode, int flags, int requestId, ByteBuffer payload) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * The unread part of the payload. Reading from the returned buffer consumes it.
+     */
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    public boolean hasRemaining() {
+        return payload.hasRemaining();
+    }
+
+    public byte getByte() {
+        return payload.get();
+    }
+
+    public int getInt() {
+        return payload.getInt();
+    }
+
+    public long getLong() {
+        return payload.getLong();
+    }
+
+    public int getVarInt() throws ProtocolException {
+        long value = getVarLong();
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Varint out of int range: " + value);
+        }
+        return (int) value;
+    }
+
+    public long getVarLong() throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!payload.hasRemaining()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = payload.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    /**
+     * Reads a varint size, offset, count or version, none of which can be negative.
+     */
+    public long getVarSize() throws ProtocolException {
+        long value = getVarLong();
+        if (value < 0) {
+            throw new ProtocolException("Negative size: " + value);
+        }
+        return value;
+    }
+
+    public byte[] getBytes(int length) throws ProtocolException {
+        if (length < 0 || length > payload.remaining()) {
+            throw new ProtocolException("Byte array length " + length + " exceeds payload");
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    public String getString() throws ProtocolException {
+        int length = getVarInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new ProtocolException("String length " + length + " exceeds payload");
+        }
+        String value;
+        if (payload.hasArray()) {
+            value = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+            payload.position(payload.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            payload.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{opcode=0x" + Integer.toHexString(opcode) + ", requestId=" + requestId
+                + ", length=" + (payload == null ? 0 : payload.limit() - payload.position()) + "}";
+    }
+}
@@ -0,0 +1,91 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * Blocking frame I/O over a socket channel, pairing a {@link FrameDecoder} for the inbound side
+ * with a {@link FrameEncoder} for the outbound side.
+ *
+ * <p>Frames are read by a single thread, but any number of threads may send: each frame is
+ * written under a lock, so requests from different threads can interleave on one connection.
+ */
+public class FrameChannel implements Closeable {
+    private final SocketChannel channel;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final Frame frame = new Frame();
+
+    public FrameChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Reads the next frame, blocking until it has fully arrived. The returned frame is reused by
+     * the next call.
+     */
+    public Frame read() throws IOException {
+        while (!decoder.next(frame)) {
+            if (channel.read(decoder.buffer()) < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Buffers one frame whose payload is written by {@code payload}, which may be null for an
+     * empty payload. Buffered frames go out on the next {@link #flush()}.
+     */
+    public void send(int opcode, int flags, int requestId, Consumer<FrameEncoder> payload) throws IOException {
+        synchronized (encoder) {
+            if (!encoder.hasRoomForFrame()) {
+                flush();
+            }
+            encoder.beginFrame(opcode, flags, requestId);
+            if (payload != null) {
+                payload.accept(encoder);
+            }
+            encoder.endFrame();
+        }
+    }
+
+    public void send(int opcode, int requestId, Consumer<FrameEncoder> payload) throws IOException {
+        send(opcode, 0, requestId, payload);
+    }
+
+    public void sendEmpty(int opcode, int requestId) throws IOException {
+        send(opcode, 0, requestId, null);
+    }
+
+    public void flush() throws IOException {
+        synchronized (encoder) {
+            ByteBuffer buffer = encoder.buffer();
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,154 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of frame payloads. Every compressed payload is a complete raw Deflate stream
+ * of its own, so frames decompress independently and a reply can switch between compressed and
+ * plain frames at any point. Compression is at the fastest level, which still shrinks text, logs
+ * and CSV several times while keeping up with a LAN.
+ *
+ * <p>A payload is sent compressed only if that saves at least a tenth of it. Files whose extension
+ * marks them as already compressed are not tried at all.
+ */
+final class FrameCompression {
+    /** A payload is compressed only if it shrinks to this fraction of its size or less. */
+    static final double MAX_RATIO = 0.9;
+    /** Payloads shorter than this are not worth compressing. */
+    static final int MIN_LENGTH = 256;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "7z", "aac", "apk", "avi", "br", "bz2", "docx", "epub", "flac", "gif", "gz", "heic", "jar",
+            "jpeg", "jpg", "lz4", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "odp", "ods", "odt", "ogg",
+            "pdf", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst");
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<FrameEncoder> PLAIN =
+            ThreadLocal.withInitial(() -> new FrameEncoder(ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE)));
+    private static final ThreadLocal<ByteBuffer> DEFLATED =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(Protocol.MAX_PAYLOAD_SIZE));
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Whether a file may be worth compressing, judged by its name. Archives, media and office
+     * formats are compressed already.
+     */
+    static boolean isCompressible(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        int slash = fileName.lastIndexOf('/');
+        if (dot <= slash + 1) {
+            return true;
+        }
+        return !COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compresses the remaining bytes of {@code source} into {@code target}.
+     *
+     * @return whether the result is at most {@link #MAX_RATIO} of the input; if not, {@code target}
+     *         holds no usable data. {@code source} is consumed either way.
+     */
+    static boolean deflate(ByteBuffer source, ByteBuffer target) {
+        int length = source.remaining();
+        if (length < MIN_LENGTH) {
+            source.position(source.limit());
+            return false;
+        }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(source);
+        deflater.finish();
+        int limit = target.limit();
+        target.limit(Math.min(limit, target.position() + (int) (length * MAX_RATIO)));
+        try {
+            while (!deflater.finished() && target.hasRemaining()) {
+                deflater.deflate(target);
+            }
+            return deflater.finished();
+        } finally {
+            target.limit(limit);
+            source.position(source.limit());
+        }
+    }
+
+    /**
+     * A buffer for {@link #inflate}. One byte larger than a payload, so an oversized payload is
+     * detected rather than cut off.
+     */
+    static ByteBuffer newInflateBuffer() {
+        return ByteBuffer.allocate(Protocol.MAX_PAYLOAD_SIZE + 1);
+    }
+
+    /**
+     * Decompresses {@code source}, a payload sent with {@link Protocol#FLAG_DEFLATED}, into
+     * {@code target} from {@link #newInflateBuffer()}. The target is cleared first and flipped for
+     * reading after.
+     */
+    static void inflate(ByteBuffer source, Inflater inflater, ByteBuffer target) throws ProtocolException {
+        inflater.reset();
+        inflater.setInput(source);
+        target.clear();
+        try {
+            while (!inflater.finished()) {
+                if (!target.hasRemaining()) {
+                    throw new ProtocolException("Compressed payload exceeds the maximum frame size");
+                }
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ProtocolException("Compressed payload is truncated");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed payload: " + e.getMessage());
+        }
+        target.flip();
+        if (target.remaining() > Protocol.MAX_PAYLOAD_SIZE) {
+            throw new ProtocolException("Compressed payload exceeds the maximum frame size");
+        }
+    }
+
+    /**
+     * Sends one frame, compressed if {@code deflate} is set and that pays off.
+     */
+    static void send(ServerEngine.Reply reply, int opcode, boolean deflate, Consumer<FrameEncoder> payload) {
+        if (!deflate) {
+            reply.send(opcode, payload);
+            return;
+        }
+        FrameEncoder encoder = PLAIN.get();
+        ByteBuffer plain = encoder.buffer();
+        plain.clear().limit(Protocol.MAX_PAYLOAD_SIZE);
+        payload.accept(encoder);
+        plain.flip();
+        sendData(reply, opcode, plain);
+    }
+
+    /**
+     * Sends the remaining bytes of {@code plain} as one frame of {@code opcode}, compressed if that
+     * pays off.
+     *
+     * @return whether the frame was compressed
+     */
+    static boolean sendData(ServerEngine.Reply reply, int opcode, ByteBuffer plain) {
+        ByteBuffer deflated = DEFLATED.get();
+        deflated.clear();
+        plain.mark();
+        if (deflate(plain, deflated)) {
+            deflated.flip();
+            reply.send(opcode, Protocol.FLAG_DEFLATED, encoder -> encoder.putBytes(deflated));
+            return true;
+        }
+        plain.reset();
+        reply.send(opcode, encoder -> encoder.putBytes(plain));
+        return false;
+    }
+}
@@ -0,0 +1,91 @@
+package org.example;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a byte stream into {@link Frame}s. Incoming bytes are written into {@link #buffer()} and
+ * frames are taken out with {@link #next(Frame)}; decoding reuses the same buffer and payload view
+ * for every frame, so the steady state does not allocate.
+ *
+ * <p>The buffer can start small and grows up to {@link Protocol#MAX_FRAME_SIZE} the first time a
+ * larger frame arrives, which keeps idle server connections cheap.
+ */
+public class FrameDecoder {
+    private ByteBuffer buffer;
+    private ByteBuffer payloadView;
+    private int readPosition;
+
+    public FrameDecoder() {
+        this(Protocol.MAX_FRAME_SIZE);
+    }
+
+    public FrameDecoder(int initialCapacity) {
+        if (initialCapacity < Protocol.HEADER_SIZE) {
+            throw new IllegalArgumentException("Decoder buffer must hold a frame header");
+        }
+        buffer = ByteBuffer.allocate(Math.min(initialCapacity, Protocol.MAX_FRAME_SIZE));
+        payloadView = buffer.duplicate();
+    }
+
+    /**
+     * The buffer to read incoming bytes into. It is always in write mode, and may be replaced by a
+     * larger one after {@link #next(Frame)}, so callers must not hold on to it.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Decodes the next complete frame into {@code frame}.
+     *
+     * @return false if more bytes must be read into {@link #buffer()} first
+     */
+    public boolean next(Frame frame) throws ProtocolException {
+        int available = buffer.position() - readPosition;
+        if (available >= Protocol.HEADER_SIZE) {
+            int version = buffer.get(readPosition) & 0xFF;
+            if (version != Protocol.VERSION) {
+                throw new ProtocolException("Unsupported protocol version " + version);
+            }
+            int length = buffer.getInt(readPosition + 8);
+            if (length < 0 || length > Protocol.MAX_PAYLOAD_SIZE) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            if (Protocol.HEADER_SIZE + length > buffer.capacity()) {
+                grow(Protocol.HEADER_SIZE + length);
+                return false;
+            }
+            if (available >= Protocol.HEADER_SIZE + length) {
+                int opcode = buffer.get(readPosition + 1) & 0xFF;
+                int flags = buffer.getShort(readPosition + 2) & 0xFFFF;
+                int requestId = buffer.getInt(readPosition + 4);
+                int payloadStart = readPosition + Protocol.HEADER_SIZE;
+                payloadView.limit(payloadStart + length).position(payloadStart);
+                frame.set(opcode, flags, requestId, payloadView);
+                readPosition = payloadStart + length;
+                return true;
+            }
+        }
+        compact();
+        return false;
+    }
+
+    private void grow(int frameSize) {
+        int capacity = Math.min(Math.max(buffer.capacity() * 2, frameSize), Protocol.MAX_FRAME_SIZE);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip().position(readPosition);
+        larger.put(buffer);
+        buffer = larger;
+        payloadView = buffer.duplicate();
+        readPosition = 0;
+    }
+
+    private void compact() {
+        if (readPosition > 0) {
+            buffer.flip().position(readPosition);
+            buffer.compact();
+            readPosition = 0;
+        }
+    }
+}
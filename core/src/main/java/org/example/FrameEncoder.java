@@ -0,0 +1,198 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds frames into a reusable buffer. A frame is started with {@link #beginFrame}, filled with
+ * the put methods and closed with {@link #endFrame()}, which patches in the payload length.
+ * Strings are written as UTF-8 directly into the buffer without intermediate arrays.
+ */
+public class FrameEncoder {
+    private final ByteBuffer buffer;
+    private int frameStart = -1;
+
+    public FrameEncoder() {
+        this(2 * Protocol.MAX_FRAME_SIZE);
+    }
+
+    public FrameEncoder(int capacity) {
+        this(ByteBuffer.allocateDirect(capacity));
+    }
+
+    public FrameEncoder(ByteBuffer buffer) {
+        if (buffer.capacity() < Protocol.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Encoder buffer must hold a full frame");
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     * The encoded bytes. The buffer is in write mode; callers flip it to drain it and clear or
+     * compact it afterwards.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Drops everything buffered, including a frame left unfinished because a put overflowed it.
+     */
+    public void reset() {
+        buffer.clear();
+        frameStart = -1;
+    }
+
+    /**
+     * Whether another maximum-size frame fits without draining the buffer first.
+     */
+    public boolean hasRoomForFrame() {
+        return buffer.remaining() >= Protocol.MAX_FRAME_SIZE;
+    }
+
+    public FrameEncoder beginFrame(int opcode, int requestId) {
+        return beginFrame(opcode, 0, requestId);
+    }
+
+    public FrameEncoder beginFrame(int opcode, int flags, int requestId) {
+        if (frameStart >= 0) {
+            throw new IllegalStateException("Previous frame was not ended");
+        }
+        frameStart = buffer.position();
+        putHeader(opcode, flags, requestId, 0);
+        return this;
+    }
+
+    public void endFrame() {
+        if (frameStart < 0) {
+            throw new IllegalStateException("No frame in progress");
+        }
+        int length = buffer.position() - frameStart - Protocol.HEADER_SIZE;
+        if (length > Protocol.MAX_PAYLOAD_SIZE) {
+            throw new IllegalStateException("Frame payload of " + length + " bytes exceeds maximum");
+        }
+        buffer.putInt(frameStart + 8, length);
+        frameStart = -1;
+    }
+
+    /**
+     * Writes a complete header for a payload the caller sends separately, such as file bytes
+     * transferred straight from a channel.
+     */
+    public void putHeader(int opcode, int flags, int requestId, int payloadLength) {
+        putHeader(buffer, opcode, flags, requestId, payloadLength);
+    }
+
+    public static void putHeader(ByteBuffer buffer, int opcode, int flags, int requestId, int payloadLength) {
+        buffer.put((byte) Protocol.VERSION)
+                .put((byte) opcode)
+                .putShort((short) flags)
+                .putInt(requestId)
+                .putInt(payloadLength);
+    }
+
+    /**
+     * Bytes still available to the payload of the frame in progress.
+     */
+    public int remainingPayload() {
+        int used = buffer.position() - frameStart - Protocol.HEADER_SIZE;
+        return Math.min(Protocol.MAX_PAYLOAD_SIZE - used, buffer.remaining());
+    }
+
+    public FrameEncoder putByte(int value) {
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public FrameEncoder putInt(int value) {
+        buffer.putInt(value);
+        return this;
+    }
+
+    public FrameEncoder putLong(long value) {
+        buffer.putLong(value);
+        return this;
+    }
+
+    public FrameEncoder putBytes(ByteBuffer source) {
+        buffer.put(source);
+        return this;
+    }
+
+    public FrameEncoder putVarInt(int value) {
+        return putVarLong(value & 0xFFFFFFFFL);
+    }
+
+    public FrameEncoder putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public FrameEncoder putString(CharSequence value) {
+        putVarInt(utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Encoded size of a string including its length prefix.
+     */
+    public static int encodedLength(CharSequence value) {
+        int length = utf8Length(value);
+        return varIntLength(length) + length;
+    }
+
+    public static int varIntLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int utf8Length(CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
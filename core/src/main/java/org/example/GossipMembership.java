@@ -0,0 +1,169 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The view of the network a node builds by gossip, for peers that multicast discovery cannot
+ * reach. Every node counts up its own heartbeat each round and sends a small random sample of its
+ * view to a few other nodes, which merge it into theirs, keeping for each node the record with the
+ * highest heartbeat. A node whose heartbeat has not risen within the failure timeout is dropped.
+ *
+ * <p>Traffic per node and round is bounded by the fanout and the sample size, and memory by the
+ * maximum view size, however large the network grows. Records close to expiry are no longer
+ * passed on, so dead nodes are not brought back by nodes that have not dropped them yet.
+ */
+public class GossipMembership {
+    private final UUID self;
+    private final int selfPort;
+    private final int maxMembers;
+    private final long failTimeoutNanos;
+    private final AtomicLong heartbeat = new AtomicLong();
+    private final Map<UUID, Member> members = new ConcurrentHashMap<>();
+
+    /**
+     * @param self this node's ID
+     * @param selfPort the port this node's server listens on
+     * @param maxMembers the most nodes the view holds; records of further nodes are ignored
+     * @param failTimeoutNanos how long a node may go without a new heartbeat before it is dropped
+     */
+    public GossipMembership(UUID self, int selfPort, int maxMembers, long failTimeoutNanos) {
+        this.self = self;
+        this.selfPort = selfPort;
+        this.maxMembers = maxMembers;
+        this.failTimeoutNanos = failTimeoutNanos;
+    }
+
+    /**
+     * Starts a round at {@code now}: counts up this node's heartbeat and drops the nodes that have
+     * timed out.
+     */
+    public void tick(long now) {
+        heartbeat.incrementAndGet();
+        members.values().removeIf(member -> now - member.updatedNanos > failTimeoutNanos);
+    }
+
+    /**
+     * Up to {@code count} records to send to another node, picked at random, with this node's own
+     * record first. Its host is empty: the receiver knows the address it heard from.
+     */
+    public List<Member> sample(int count, long now) {
+        List<Member> fresh = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (now - member.updatedNanos <= failTimeoutNanos / 2) {
+                fresh.add(member);
+            }
+        }
+        List<Member> sample = new ArrayList<>(Math.min(count, fresh.size() + 1));
+        sample.add(new Member(self, "", selfPort, heartbeat.get(), now));
+        pick(fresh, count - 1, sample);
+        return sample;
+    }
+
+    /**
+     * Up to {@code count} live nodes to gossip with, picked at random.
+     */
+    public List<Member> targets(int count) {
+        List<Member> targets = new ArrayList<>(count);
+        pick(new ArrayList<>(members.values()), count, targets);
+        return targets;
+    }
+
+    private static void pick(List<Member> from, int count, List<Member> into) {
+        // Partial Fisher-Yates shuffle: only the picked positions are touched
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int picks = Math.min(count, from.size());
+        for (int i = 0; i < picks; i++) {
+            Collections.swap(from, i, i + random.nextInt(from.size() - i));
+            into.add(from.get(i));
+        }
+    }
+
+    /**
+     * Merges records received from the node at {@code senderHost}, at local time {@code now}.
+     */
+    public void merge(Collection<Member> received, String senderHost, long now) {
+        for (Member member : received) {
+            if (member.nodeId.equals(self)) {
+                continue;
+            }
+            String host = member.host.isEmpty() ? senderHost : member.host;
+            Member current = members.get(member.nodeId);
+            if (current != null && current.heartbeat >= member.heartbeat) {
+                continue;
+            }
+            if (current == null && members.size() >= maxMembers) {
+                continue;
+            }
+            members.merge(member.nodeId, new Member(member.nodeId, host, member.port, member.heartbeat, now),
+                    (old, updated) -> old.heartbeat >= updated.heartbeat ? old : updated);
+        }
+    }
+
+    /**
+     * Adds a node heard of by other means, such as a multicast beacon, so gossip can reach it. Its
+     * record is replaced by the first one received by gossip.
+     */
+    public void observe(UUID nodeId, String host, int port, long now) {
+        if (!nodeId.equals(self) && members.size() < maxMembers) {
+            members.putIfAbsent(nodeId, new Member(nodeId, host, port, 0, now));
+        }
+    }
+
+    public List<Member> getMembers() {
+        return new ArrayList<>(members.values());
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public long getHeartbeat() {
+        return heartbeat.get();
+    }
+
+    /**
+     * A node as last heard of by gossip.
+     */
+    public static final class Member {
+        private final UUID nodeId;
+        private final String host;
+        private final int port;
+        private final long heartbeat;
+        private final long updatedNanos;
+
+        public Member(UUID nodeId, String host, int port, long heartbeat, long updatedNanos) {
+            this.nodeId = nodeId;
+            this.host = host;
+            this.port = port;
+            this.heartbeat = heartbeat;
+            this.updatedNanos = updatedNanos;
+        }
+
+        public UUID getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * The node's address, or empty in a node's record of itself.
+         */
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public long getHeartbeat() {
+            return heartbeat;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content hashes of shared files, computed in the background and cached by path, size and
+ * modification time so that an unchanged file is never hashed twice.
+ *
+ * <p>Files are hashed in segments of {@link #SEGMENT_CHUNKS} chunks spread over one thread per core,
+ * so a single large file uses every core and many small files are hashed side by side.
+ */
+public class HashIndex implements Closeable {
+    private static final int SEGMENT_CHUNKS = 16;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<MerkleTree>> inProgress = new ConcurrentHashMap<>();
+    // Trees recorded before a restart, moved to the entries as their files are looked up
+    private volatile Map<File, ShareStore.FileRecord> restored = Map.of();
+    private final ExecutorService hashers;
+    private final ThreadLocal<ByteBuffer> chunkBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MerkleTree.CHUNK_SIZE));
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(MerkleTree::newDigest);
+
+    public HashIndex() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public HashIndex(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        hashers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "hasher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * The hash tree of a file, from the cache if the file is unchanged, otherwise computed in the
+     * background. Concurrent calls for the same file share one computation.
+     */
+    public CompletableFuture<MerkleTree> hash(Path path) {
+        MerkleTree cached = getIfFresh(path);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<MerkleTree> created = new CompletableFuture<>();
+        CompletableFuture<MerkleTree> existing = inProgress.putIfAbsent(path, created);
+        if (existing != null) {
+            return existing;
+        }
+        created.whenComplete((tree, error) -> inProgress.remove(path, created));
+        compute(path, 1, created);
+        return created;
+    }
+
+    /**
+     * The cached tree if the file still has the size and modification time it was hashed with,
+     * otherwise null. Never hashes.
+     */
+    public MerkleTree getIfFresh(Path path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entry = takeRestored(path);
+        }
+        if (entry == null) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (entry.matches(attributes)) {
+                return entry.tree;
+            }
+        } catch (IOException e) {
+            // Treat an unreadable file as stale
+        }
+        entries.remove(path, entry);
+        return null;
+    }
+
+    /**
+     * The cached tree whether or not the file changed since it was hashed, or null. Never reads the
+     * file's attributes.
+     */
+    MerkleTree peek(Path path) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            return entry.tree;
+        }
+        ShareStore.FileRecord record = restored.isEmpty() ? null : restored.get(path.toFile());
+        return record != null ? record.tree() : null;
+    }
+
+    /**
+     * Takes the trees of files recorded before a restart. A record's tree is used for its file once
+     * the file is looked up and found to have the recorded size and modification time. The map is
+     * emptied as that happens.
+     */
+    void restore(Map<File, ShareStore.FileRecord> records) {
+        restored = records;
+    }
+
+    private Entry takeRestored(Path path) {
+        if (restored.isEmpty()) {
+            return null;
+        }
+        ShareStore.FileRecord record = restored.remove(path.toFile());
+        MerkleTree tree = record != null ? record.tree() : null;
+        if (tree == null) {
+            return null;
+        }
+        Entry entry = new Entry(record.info.getSize(), record.info.getLastModified(), tree);
+        Entry existing = entries.putIfAbsent(path, entry);
+        return existing != null ? existing : entry;
+    }
+
+    public void remove(Path path) {
+        entries.remove(path);
+        if (!restored.isEmpty()) {
+            restored.remove(path.toFile());
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void compute(Path path, int attempt, CompletableFuture<MerkleTree> result) {
+        BasicFileAttributes before;
+        try {
+            before = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        long size = before.size();
+        int chunks = MerkleTree.chunkCount(size);
+        byte[] leaves = new byte[chunks * MerkleTree.HASH_SIZE];
+        List<CompletableFuture<Void>> segments = new ArrayList<>();
+        for (int first = 0; first < chunks; first += SEGMENT_CHUNKS) {
+            int from = first;
+            int to = Math.min(chunks, first + SEGMENT_CHUNKS);
+            segments.add(CompletableFuture.runAsync(() -> hashSegment(path, size, from, to, leaves), hashers));
+        }
+        CompletableFuture.allOf(segments.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(unwrap(error));
+                return;
+            }
+            try {
+                BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+                Entry entry = new Entry(before, new MerkleTree(size, leaves));
+                if (entry.matches(after)) {
+                    entries.put(path, entry);
+                    result.complete(entry.tree);
+                } else if (attempt < MAX_ATTEMPTS) {
+                    compute(path, attempt + 1, result);
+                } else {
+                    result.completeExceptionally(new IOException("File keeps changing while hashed: " + path));
+                }
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void hashSegment(Path path, long size, int from, int to, byte[] leaves) {
+        ByteBuffer buffer = chunkBuffers.get();
+        MessageDigest digest = digests.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int chunk = from; chunk < to; chunk++) {
+                long offset = (long) chunk * MerkleTree.CHUNK_SIZE;
+                buffer.clear().limit((int) Math.min(MerkleTree.CHUNK_SIZE, size - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new NoSuchFileException(path.toString(), null, "File shrank while hashed");
+                    }
+                }
+                buffer.flip();
+                byte[] leaf = MerkleTree.hashLeaf(digest, buffer);
+                System.arraycopy(leaf, 0, leaves, chunk * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof UncheckedIOException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    @Override
+    public void close() {
+        hashers.shutdownNow();
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final MerkleTree tree;
+
+        Entry(BasicFileAttributes attributes, MerkleTree tree) {
+            this(attributes.size(), attributes.lastModifiedTime().toMillis(), tree);
+        }
+
+        Entry(long size, long lastModified, MerkleTree tree) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.tree = tree;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The addresses of this machine, read once from its network interfaces and cached. Works without
+ * internet access and without opening any connection.
+ */
+public class LocalIdentity {
+    private volatile Resolved resolved;
+
+    /**
+     * The address peers on the LAN most likely reach this machine at: a site-local IPv4 address of
+     * an interface that is up, otherwise any non-loopback address, otherwise loopback.
+     */
+    public InetAddress getPrimaryAddress() {
+        return resolve().primary;
+    }
+
+    /**
+     * Whether {@code address} belongs to this machine.
+     */
+    public boolean isLocal(InetAddress address) {
+        return address.isLoopbackAddress() || address.isAnyLocalAddress() || resolve().addresses.contains(address);
+    }
+
+    public Set<InetAddress> getAddresses() {
+        return resolve().addresses;
+    }
+
+    /**
+     * Reads the interfaces again, after the machine's network configuration has changed.
+     */
+    public void refresh() {
+        resolved = null;
+    }
+
+    private Resolved resolve() {
+        Resolved current = resolved;
+        if (current == null) {
+            current = read();
+            resolved = current;
+        }
+        return current;
+    }
+
+    private static Resolved read() {
+        Set<InetAddress> addresses = new HashSet<>();
+        List<InetAddress> candidates = new ArrayList<>();
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                boolean usable;
+                try {
+                    usable = networkInterface.isUp() && !networkInterface.isLoopback();
+                } catch (SocketException e) {
+                    usable = false;
+                }
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    addresses.add(address);
+                    if (usable && !address.isLinkLocalAddress()) {
+                        candidates.add(address);
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            System.err.println("Could not read network interfaces: " + e.getMessage());
+        }
+        InetAddress primary = InetAddress.getLoopbackAddress();
+        for (InetAddress candidate : candidates) {
+            if (candidate instanceof Inet4Address && candidate.isSiteLocalAddress()) {
+                primary = candidate;
+                break;
+            }
+            if (primary.isLoopbackAddress()) {
+                primary = candidate;
+            }
+        }
+        return new Resolved(primary, Collections.unmodifiableSet(addresses));
+    }
+
+    private static class Resolved {
+        final InetAddress primary;
+        final Set<InetAddress> addresses;
+
+        Resolved(InetAddress primary, Set<InetAddress> addresses) {
+            this.primary = primary;
+            this.addresses = addresses;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 hash tree over the fixed-size chunks of a file. Each leaf hashes one chunk, so a chunk can
+ * be verified on its own as soon as it arrives, and the root identifies the whole content.
+ *
+ * <p>Leaves are {@code SHA-256(0x00 || chunk)} and inner nodes {@code SHA-256(0x01 || left || right)};
+ * a node without a sibling is carried up unchanged. The prefixes keep a leaf from being passed off
+ * as an inner node.
+ */
+public class MerkleTree {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final int HASH_SIZE = 32;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final long size;
+    private final byte[] leaves;
+    private final byte[] root;
+
+    /**
+     * @param leaves the leaf hashes of every chunk, concatenated
+     */
+    public MerkleTree(long size, byte[] leaves) {
+        if (leaves.length != chunkCount(size) * HASH_SIZE) {
+            throw new IllegalArgumentException("Expected " + chunkCount(size) + " leaves for " + size + " bytes");
+        }
+        this.size = size;
+        this.leaves = leaves;
+        this.root = computeRoot(leaves);
+    }
+
+    /**
+     * A tree whose root was computed before, as read back from a {@link ShareStore}.
+     */
+    MerkleTree(long size, byte[] leaves, byte[] root) {
+        if (leaves.length != chunkCount(size) * HASH_SIZE || root.length != HASH_SIZE) {
+            throw new IllegalArgumentException("Expected " + chunkCount(size) + " leaves for " + size + " bytes");
+        }
+        this.size = size;
+        this.leaves = leaves;
+        this.root = root;
+    }
+
+    public static int chunkCount(long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Starts a leaf hash; feed it the chunk's bytes and finish with {@link MessageDigest#digest()}.
+     */
+    public static MessageDigest newLeafDigest() {
+        MessageDigest digest = newDigest();
+        digest.update(LEAF_PREFIX);
+        return digest;
+    }
+
+    public static byte[] hashLeaf(MessageDigest digest, ByteBuffer chunk) {
+        digest.reset();
+        digest.update(LEAF_PREFIX);
+        digest.update(chunk);
+        return digest.digest();
+    }
+
+    private static byte[] computeRoot(byte[] leaves) {
+        MessageDigest digest = newDigest();
+        int count = leaves.length / HASH_SIZE;
+        if (count == 0) {
+            digest.update(LEAF_PREFIX);
+            return digest.digest();
+        }
+        byte[] level = leaves;
+        while (count > 1) {
+            int parents = (count + 1) / 2;
+            byte[] next = new byte[parents * HASH_SIZE];
+            for (int i = 0; i < count / 2; i++) {
+                digest.update(NODE_PREFIX);
+                digest.update(level, 2 * i * HASH_SIZE, 2 * HASH_SIZE);
+                System.arraycopy(digest.digest(), 0, next, i * HASH_SIZE, HASH_SIZE);
+            }
+            if (count % 2 == 1) {
+                System.arraycopy(level, (count - 1) * HASH_SIZE, next, (parents - 1) * HASH_SIZE, HASH_SIZE);
+            }
+            level = next;
+            count = parents;
+        }
+        return Arrays.copyOf(level, HASH_SIZE);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getLeafCount() {
+        return leaves.length / HASH_SIZE;
+    }
+
+    /**
+     * The content hash of the whole file.
+     */
+    public byte[] getRoot() {
+        return root.clone();
+    }
+
+    public boolean hasRoot(byte[] expected) {
+        return MessageDigest.isEqual(root, expected);
+    }
+
+    public boolean leafMatches(int chunk, byte[] digest) {
+        return digest.length == HASH_SIZE
+                && Arrays.equals(leaves, chunk * HASH_SIZE, (chunk + 1) * HASH_SIZE, digest, 0, HASH_SIZE);
+    }
+
+    /**
+     * Copies leaves {@code [from, from + count)} into {@code target}.
+     */
+    public void putLeaves(ByteBuffer target, int from, int count) {
+        target.put(leaves, from * HASH_SIZE, count * HASH_SIZE);
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,376 @@
+package org.example;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, gauges and latency histograms of one node. Recording is lock-free: counters and
+ * histogram buckets are {@link LongAdder}s, so the selector and reader threads only touch cells of
+ * their own, and gauges are read from their owners only when the metrics are.
+ *
+ * <p>The metrics are exposed over JMX, this class being the MBean, and as Prometheus text by
+ * {@link MetricsServer}. Names follow Prometheus conventions in both, with times in seconds and
+ * sizes in bytes.
+ */
+public class Metrics implements DynamicMBean {
+    private static final double[] LATENCY_BUCKETS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final double[] THROUGHPUT_BUCKETS = {
+            64e3, 256e3, 1e6, 4e6, 16e6, 64e6, 256e6, 1e9};
+    private static final String[] REQUEST_TYPES = new String[256];
+
+    static {
+        REQUEST_TYPES[Protocol.LIST] = "list";
+        REQUEST_TYPES[Protocol.GET] = "get";
+        REQUEST_TYPES[Protocol.STAT] = "stat";
+        REQUEST_TYPES[Protocol.CANCEL] = "cancel";
+        REQUEST_TYPES[Protocol.GET_HASHES] = "get_hashes";
+        REQUEST_TYPES[Protocol.CATALOG] = "catalog";
+        REQUEST_TYPES[Protocol.PEERS] = "peers";
+        REQUEST_TYPES[Protocol.SEARCH] = "search";
+        REQUEST_TYPES[Protocol.FETCH] = "fetch";
+        REQUEST_TYPES[Protocol.GET_SIGNATURES] = "get_signatures";
+    }
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    // Server side
+    final Counter connectionsAccepted = counter("p2p_server_connections_accepted_total",
+            "Peer connections accepted.");
+    final Counter bytesReceived = counter("p2p_server_received_bytes_total",
+            "Bytes of requests read from peers.");
+    final Counter bytesSent = counter("p2p_server_sent_bytes_total",
+            "Bytes of replies written to peers.");
+    final RequestCounter requests = add(new RequestCounter("p2p_server_requests_total",
+            "Requests received, by type."));
+    final Counter requestsRejected = counter("p2p_server_requests_rejected_total",
+            "Requests refused because the worker queue was full.");
+    final Histogram queueWait = histogram("p2p_server_queue_wait_seconds",
+            "Time requests waited for a worker thread.", LATENCY_BUCKETS);
+
+    // Client side
+    final Counter bytesDownloaded = counter("p2p_download_bytes_total",
+            "File bytes received by downloads.");
+    final Counter transfersCompleted = counter("p2p_transfers_completed_total",
+            "Downloads that finished.");
+    final Histogram timeToFirstByte = histogram("p2p_transfer_first_byte_seconds",
+            "Time from the start of a download's data requests to its first data.", LATENCY_BUCKETS);
+    final Histogram transferThroughput = histogram("p2p_transfer_throughput_bytes_per_second",
+            "Average rate of each finished download.", THROUGHPUT_BUCKETS);
+    final Histogram catalogFetch = histogram("p2p_catalog_fetch_seconds",
+            "Time to bring a copy of a peer's catalog up to date.", LATENCY_BUCKETS);
+    final Counter catalogFetchFailures = counter("p2p_catalog_fetch_failures_total",
+            "Catalog fetches that failed or timed out.");
+
+    /**
+     * Adds a gauge read from {@code value} whenever the metrics are.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        add(new Gauge(name, help, value));
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format, version 0.0.4.
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        for (Metric metric : metrics) {
+            text.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            text.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.writeTo(text);
+        }
+        return text.toString();
+    }
+
+    /**
+     * The current value of every metric by name, histograms as their count, sum and percentiles.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Metric metric : metrics) {
+            metric.putValues(values);
+        }
+        return values;
+    }
+
+    private Counter counter(String name, String help) {
+        return add(new Counter(name, help));
+    }
+
+    private Histogram histogram(String name, String help, double[] bounds) {
+        return add(new Histogram(name, help, bounds));
+    }
+
+    private <T extends Metric> T add(T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.isFinite(value) ? BigDecimal.valueOf(value).stripTrailingZeros().toPlainString() : Double.toString(value);
+    }
+
+    // DynamicMBean
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of a peer-to-peer file sharing node",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void writeTo(StringBuilder text);
+
+        abstract void putValues(Map<String, Number> values);
+    }
+
+    static final class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        void increment() {
+            count.increment();
+        }
+
+        void add(long amount) {
+            count.add(amount);
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void writeTo(StringBuilder text) {
+            text.append(name).append(' ').append(count.sum()).append('\n');
+        }
+
+        @Override
+        void putValues(Map<String, Number> values) {
+            values.put(name, count.sum());
+        }
+    }
+
+    /**
+     * Requests counted by opcode. Types never seen are left out.
+     */
+    static final class RequestCounter extends Metric {
+        private final LongAdder[] counts = new LongAdder[256];
+
+        RequestCounter(String name, String help) {
+            super(name, help);
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void increment(int opcode) {
+            counts[opcode & 0xFF].increment();
+        }
+
+        private static String typeOf(int opcode) {
+            return REQUEST_TYPES[opcode] != null ? REQUEST_TYPES[opcode] : String.format(Locale.ROOT, "0x%02x", opcode);
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void writeTo(StringBuilder text) {
+            for (int opcode = 0; opcode < counts.length; opcode++) {
+                long count = counts[opcode].sum();
+                if (count > 0) {
+                    text.append(name).append("{type=\"").append(typeOf(opcode)).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        @Override
+        void putValues(Map<String, Number> values) {
+            for (int opcode = 0; opcode < counts.length; opcode++) {
+                long count = counts[opcode].sum();
+                if (count > 0) {
+                    values.put(name + "{type=" + typeOf(opcode) + "}", count);
+                }
+            }
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            super(name, help);
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void writeTo(StringBuilder text) {
+            text.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+
+        @Override
+        void putValues(Map<String, Number> values) {
+            values.put(name, value.getAsLong());
+        }
+    }
+
+    /**
+     * Counts values into fixed buckets. Percentiles read from it are the upper bound of the bucket
+     * they fall in.
+     */
+    static final class Histogram extends Metric {
+        private final double[] bounds;
+        // One more than the bounds, the last for values above them all
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(String name, String help, double[] bounds) {
+            super(name, help);
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(double value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            buckets[bucket >= 0 ? bucket : -bucket - 1].increment();
+            sum.add(value);
+        }
+
+        void recordNanos(long nanos) {
+            record(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void writeTo(StringBuilder text) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String bound = i < bounds.length ? format(bounds[i]) : "+Inf";
+                text.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum ").append(format(sum.sum())).append('\n');
+            text.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        @Override
+        void putValues(Map<String, Number> values) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            values.put(name + "_count", total);
+            values.put(name + "_sum", sum.sum());
+            values.put(name + "_p50", percentile(counts, total, 0.5));
+            values.put(name + "_p99", percentile(counts, total, 0.99));
+        }
+
+        private double percentile(long[] counts, long total, double fraction) {
+            if (total == 0) {
+                return 0.0;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return bounds[i];
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+}
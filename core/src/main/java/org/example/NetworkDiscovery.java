@@ -0,0 +1,260 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Finds peers on the LAN by multicast beacons. Each beacon carries the sender's node ID, service
+ * port and catalog epoch and version, so a listener is told only about peers that are new or whose
+ * catalog changed. Peers are kept in a table keyed by node ID and expire when their beacons stop.
+ *
+ * <p>Beacons go out every second at startup and after the local catalog changes or a new peer
+ * appears, and back off to one every {@link #MAX_INTERVAL_MILLIS} while nothing changes.
+ */
+public class NetworkDiscovery {
+    private static final String MULTICAST_ADDRESS = "230.0.0.1";
+    private static final int MULTICAST_PORT = 4446;
+    private static final byte[] BEACON_MAGIC = "FILE_SHARE_APP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte BEACON_VERSION = 1;
+    private static final int BEACON_LENGTH = BEACON_MAGIC.length + 1 + 16 + 2 + 8 + 8;
+    private static final long MIN_INTERVAL_MILLIS = 1000;
+    private static final long MAX_INTERVAL_MILLIS = 30_000;
+    // A peer is dropped after missing three beacons at the slowest rate
+    private static final long PEER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(3 * MAX_INTERVAL_MILLIS);
+
+    private final Map<UUID, Peer> peers = new ConcurrentHashMap<>();
+    private final UUID nodeId;
+    private final int servicePort;
+    private final SharedFileRegistry catalog;
+    private final Consumer<Peer> peerListener;
+    private MulticastSocket socket;
+    private InetAddress group;
+    private volatile boolean running = true;
+    // Set by the listener when a new peer appears, so it learns about this node quickly
+    private volatile boolean announce = true;
+
+    /**
+     * @param nodeId identifies this node; its own beacons are recognized by it
+     * @param servicePort the port this node's server listens on
+     * @param catalog the catalog whose version is announced
+     * @param peerListener called on the listening thread with each peer that is new or whose
+     *        catalog changed
+     */
+    public NetworkDiscovery(UUID nodeId, int servicePort, SharedFileRegistry catalog, Consumer<Peer> peerListener) {
+        this.nodeId = nodeId;
+        this.servicePort = servicePort;
+        this.catalog = catalog;
+        this.peerListener = peerListener;
+    }
+
+    public void start() throws IOException {
+        socket = new MulticastSocket(MULTICAST_PORT);
+        group = InetAddress.getByName(MULTICAST_ADDRESS);
+        socket.joinGroup(group);
+
+        // Start broadcasting
+        new Thread(this::broadcast, "discovery-beacon").start();
+
+        // Start listening
+        new Thread(this::listen, "discovery-listener").start();
+    }
+
+    private void broadcast() {
+        long interval = MIN_INTERVAL_MILLIS;
+        long nextBeacon = 0;
+        long announcedEpoch = 0;
+        long announcedVersion = -1;
+        while (running) {
+            try {
+                long epoch = catalog.getEpoch();
+                long version = catalog.getVersion();
+                boolean changed = epoch != announcedEpoch || version != announcedVersion;
+                if (changed || announce) {
+                    announce = false;
+                    interval = MIN_INTERVAL_MILLIS;
+                    nextBeacon = 0;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextBeacon) {
+                    byte[] beacon = encodeBeacon(epoch, version);
+                    socket.send(new DatagramPacket(beacon, beacon.length, group, MULTICAST_PORT));
+                    announcedEpoch = epoch;
+                    announcedVersion = version;
+                    nextBeacon = now + interval;
+                    interval = Math.min(interval * 2, MAX_INTERVAL_MILLIS);
+                }
+                expirePeers();
+                // Wake up every second to notice local changes, but send only when due
+                Thread.sleep(MIN_INTERVAL_MILLIS);
+            } catch (IOException e) {
+                if (!running) break;
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private byte[] encodeBeacon(long epoch, long version) {
+        return ByteBuffer.allocate(BEACON_LENGTH)
+                .put(BEACON_MAGIC)
+                .put(BEACON_VERSION)
+                .putLong(nodeId.getMostSignificantBits())
+                .putLong(nodeId.getLeastSignificantBits())
+                .putShort((short) servicePort)
+                .putLong(epoch)
+                .putLong(version)
+                .array();
+    }
+
+    private void listen() {
+        byte[] buffer = new byte[256];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                onBeacon(packet);
+            } catch (SocketException e) {
+                if (!running) break;
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onBeacon(DatagramPacket packet) {
+        ByteBuffer beacon = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        UUID id;
+        int port;
+        long epoch;
+        long version;
+        try {
+            byte[] magic = new byte[BEACON_MAGIC.length];
+            beacon.get(magic);
+            // Beacons of other versions or other applications are ignored
+            if (!Arrays.equals(magic, BEACON_MAGIC) || beacon.get() != BEACON_VERSION) {
+                return;
+            }
+            id = new UUID(beacon.getLong(), beacon.getLong());
+            port = Short.toUnsignedInt(beacon.getShort());
+            epoch = beacon.getLong();
+            version = beacon.getLong();
+        } catch (BufferUnderflowException e) {
+            return;
+        }
+        Peer seen = new Peer(id, packet.getAddress(), port, epoch, version, id.equals(nodeId), System.nanoTime());
+        Peer previous = peers.put(id, seen);
+        if (previous == null) {
+            System.out.println("Discovered peer: " + seen.getAddress().getHostAddress());
+            if (!seen.isSelf()) {
+                announce = true;
+            }
+        }
+        if (previous == null || previous.getEpoch() != epoch || previous.getVersion() != version
+                || !previous.getAddress().equals(seen.getAddress())) {
+            peerListener.accept(seen);
+        }
+    }
+
+    private void expirePeers() {
+        long now = System.nanoTime();
+        peers.values().removeIf(peer -> {
+            boolean expired = now - peer.lastSeenNanos > PEER_TIMEOUT_NANOS;
+            if (expired) {
+                System.out.println("Lost peer: " + peer.getAddress().getHostAddress());
+            }
+            return expired;
+        });
+    }
+
+    /**
+     * The live peers, this node included once its own beacon has come back.
+     */
+    public List<Peer> getPeers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    /**
+     * The addresses of the live peers.
+     */
+    public List<InetAddress> getDiscoveredPeers() {
+        Set<InetAddress> addresses = new LinkedHashSet<>();
+        for (Peer peer : peers.values()) {
+            addresses.add(peer.getAddress());
+        }
+        return new ArrayList<>(addresses);
+    }
+
+    public void stop() {
+        running = false;
+        socket.close();
+    }
+
+    /**
+     * A peer as last announced by its beacon.
+     */
+    public static final class Peer {
+        private final UUID nodeId;
+        private final InetAddress address;
+        private final int port;
+        private final long epoch;
+        private final long version;
+        private final boolean self;
+        private final long lastSeenNanos;
+
+        Peer(UUID nodeId, InetAddress address, int port, long epoch, long version, boolean self, long lastSeenNanos) {
+            this.nodeId = nodeId;
+            this.address = address;
+            this.port = port;
+            this.epoch = epoch;
+            this.version = version;
+            this.self = self;
+            this.lastSeenNanos = lastSeenNanos;
+        }
+
+        public UUID getNodeId() {
+            return nodeId;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * The port the peer's server listens on.
+         */
+        public int getPort() {
+            return port;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Whether this is the local node's own beacon.
+         */
+        public boolean isSelf() {
+            return self;
+        }
+    }
+}
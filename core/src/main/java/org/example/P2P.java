@@ -0,0 +1,1199 @@
+package org.example;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class P2P {
+    /** The most matches a peer returns for one search. */
+    static final int MAX_SEARCH_RESULTS = 1000;
+    private static final long SEARCH_TIMEOUT_SECONDS = 3;
+    /**
+     * Compressed frames are prepared before they are sent and wait in memory, so larger ranges are
+     * sent uncompressed. Downloads request one chunk at a time, which stays well below this.
+     */
+    private static final long MAX_DEFLATED_RANGE = 4L * SwarmDownload.CHUNK_SIZE;
+    // Smaller files are cheaper to download whole than to scan for changes
+    private static final long MIN_DELTA_FILE_SIZE = 64 * 1024;
+    /** The most files one {@link Protocol#FETCH} may ask for. */
+    static final int MAX_FETCH_FILES = 4096;
+
+    private final SharedFileRegistry sharedFiles = new SharedFileRegistry();
+    private final ServerConfig config;
+    private final Metrics metrics = new Metrics();
+    private final ServerEngine serverEngine;
+    private final PeerClient peerClient;
+    private final HashIndex hashIndex = new HashIndex();
+    private final LocalIdentity localIdentity = new LocalIdentity();
+    private final UUID nodeId = UUID.randomUUID();
+    private final PeerExchange peerExchange;
+    private final TransferManager transfers;
+    private final FileCache fileCache;
+    // Null unless the config names a state directory
+    private final ShareStore shareStore;
+    private volatile NetworkDiscovery networkDiscovery;
+    private DirectoryWatcher directoryWatcher;
+    private ObjectName metricsName;
+    private MetricsServer metricsServer;
+
+    public P2P() {
+        this(new ServerConfig());
+    }
+
+    public P2P(ServerConfig config) {
+        this.config = config;
+        this.serverEngine = new ServerEngine(config, this::handleRequest, metrics);
+        this.peerClient = new PeerClient(config.getPort(), metrics);
+        this.peerExchange = new PeerExchange(nodeId, config, peerClient);
+        this.transfers = new TransferManager(config);
+        this.fileCache = new FileCache(config.getFileCacheBytes(), config.getMaxCachedFileBytes());
+        this.shareStore = config.getStateDirectory() != null
+                ? new ShareStore(config.getStateDirectory(), this::currentShares)
+                : null;
+        addGauges();
+    }
+
+    private void addGauges() {
+        metrics.gauge("p2p_server_connections", "Open peer connections.", serverEngine::getConnectionCount);
+        metrics.gauge("p2p_server_worker_threads", "Threads in the server's worker pool.",
+                serverEngine::getWorkerThreadCount);
+        metrics.gauge("p2p_server_workers_busy", "Worker threads preparing a reply.", serverEngine::getActiveWorkerCount);
+        metrics.gauge("p2p_server_queued_requests", "Requests waiting for a worker thread.",
+                serverEngine::getQueuedRequestCount);
+        metrics.gauge("p2p_server_queue_capacity", "Requests that can wait before more are refused.",
+                config::getMaxQueuedRequests);
+        metrics.gauge("p2p_discovery_peers", "Live peers found by multicast, this node excluded.", () -> {
+            NetworkDiscovery discovery = networkDiscovery;
+            return discovery != null ? discovery.getPeers().stream().filter(peer -> !peer.isSelf()).count() : 0;
+        });
+        metrics.gauge("p2p_gossip_members", "Nodes known by gossip.", () -> peerExchange.getMembers().size());
+        metrics.gauge("p2p_downloads_active", "Downloads holding a download slot.", transfers::getActiveDownloads);
+        metrics.gauge("p2p_downloads_queued", "Downloads waiting for a download slot.", transfers::getQueuedDownloads);
+        metrics.gauge("p2p_shared_files", "Files this node shares.", sharedFiles::size);
+    }
+
+    /**
+     * Starts serving. With a state directory configured, the files and directories shared before
+     * the last stop are shared again first.
+     */
+    public void startServer() throws IOException {
+        restoreShares();
+        serverEngine.start();
+        // Fetch catalogs of new peers, and of peers announcing a new version, ahead of time so
+        // browsing them shows files at once
+        networkDiscovery = new NetworkDiscovery(nodeId, config.getPort(), sharedFiles, this::onPeerAnnounced);
+        networkDiscovery.start();
+        peerExchange.start();
+        exposeMetrics();
+        System.out.println("Server started on port " + config.getPort());
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and, if a metrics port is configured,
+     * serves them for Prometheus. A node that cannot expose its metrics still serves peers.
+     */
+    private void exposeMetrics() {
+        try {
+            ObjectName name = new ObjectName("org.example:type=P2P,port=" + config.getPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsServer = new MetricsServer(config.getMetricsPort(), metrics);
+                metricsServer.start();
+                System.out.println("Metrics at http://127.0.0.1:" + metricsServer.getPort() + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Cannot serve metrics on port " + config.getMetricsPort() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void stopServer() {
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        if (networkDiscovery != null) {
+            networkDiscovery.stop();
+        }
+        peerExchange.close();
+        serverEngine.stop();
+        transfers.close();
+        peerClient.close();
+        hashIndex.close();
+        if (shareStore != null) {
+            shareStore.close();
+        }
+        synchronized (this) {
+            if (directoryWatcher != null) {
+                directoryWatcher.close();
+            }
+        }
+    }
+
+    private void onPeerAnnounced(NetworkDiscovery.Peer peer) {
+        peerExchange.observe(peer);
+        String address = peer.getAddress().getHostAddress();
+        if (!peer.isSelf() && !peerClient.hasCatalog(address, peer.getEpoch(), peer.getVersion())) {
+            refreshPeerCatalog(address);
+        }
+    }
+
+    /**
+     * The addresses of the live peers, found by multicast or by gossip.
+     */
+    public List<InetAddress> getDiscoveredPeers() {
+        NetworkDiscovery discovery = networkDiscovery;
+        Set<InetAddress> peers = new LinkedHashSet<>();
+        if (discovery != null) {
+            peers.addAll(discovery.getDiscoveredPeers());
+        }
+        for (GossipMembership.Member member : peerExchange.getMembers()) {
+            try {
+                peers.add(InetAddress.getByName(member.getHost()));
+            } catch (UnknownHostException e) {
+                System.err.println("Cannot resolve peer " + member.getHost() + ": " + e.getMessage());
+            }
+        }
+        return new ArrayList<>(peers);
+    }
+
+    /**
+     * The nodes known by gossip, including those on subnets multicast does not reach.
+     */
+    public List<GossipMembership.Member> getGossipMembers() {
+        return peerExchange.getMembers();
+    }
+
+    /**
+     * The live peers with their node IDs and announced catalog versions.
+     */
+    public List<NetworkDiscovery.Peer> getPeers() {
+        NetworkDiscovery discovery = networkDiscovery;
+        return discovery != null ? discovery.getPeers() : new ArrayList<>();
+    }
+
+    /**
+     * Identifies this node in discovery beacons. New on every start.
+     */
+    public UUID getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Parses a request on the server's selector thread and returns the work that answers it.
+     */
+    private ServerEngine.Task handleRequest(Frame request, ServerEngine.Reply reply) throws IOException {
+        switch (request.getOpcode()) {
+            case Protocol.LIST:
+                return () -> sendFileList(reply, request.hasFlag(Protocol.FLAG_ACCEPTS_DEFLATE));
+            case Protocol.CATALOG: {
+                boolean deflate = request.hasFlag(Protocol.FLAG_ACCEPTS_DEFLATE);
+                long epoch = request.getVarSize();
+                long version = request.getVarSize();
+                if (epoch == sharedFiles.getEpoch() && version == sharedFiles.getVersion()) {
+                    // Answered right here; the common case should not wait for a worker
+                    sendCatalogHeader(reply, Protocol.CATALOG_NOT_MODIFIED, epoch, version);
+                    reply.end();
+                    return null;
+                }
+                return () -> sendCatalog(reply, epoch, version, deflate);
+            }
+            case Protocol.PEERS: {
+                List<GossipMembership.Member> received = PeerClient.getMembers(request);
+                InetAddress sender = reply.getRemoteAddress().getAddress();
+                return () -> {
+                    List<GossipMembership.Member> sample = peerExchange.exchange(received, sender);
+                    reply.send(Protocol.PEER_LIST, encoder -> PeerClient.putMembers(encoder, sample));
+                    reply.end();
+                };
+            }
+            case Protocol.SEARCH: {
+                String query = request.getString();
+                int limit = Math.min(request.getVarInt(), MAX_SEARCH_RESULTS);
+                boolean deflate = request.hasFlag(Protocol.FLAG_ACCEPTS_DEFLATE);
+                return () -> sendSearchResults(reply, query, limit, deflate);
+            }
+            case Protocol.GET: {
+                String fileName = request.getString();
+                long offset = request.hasRemaining() ? request.getVarSize() : 0;
+                long length = request.hasRemaining() ? request.getVarSize() : Long.MAX_VALUE;
+                boolean deflate = request.hasFlag(Protocol.FLAG_ACCEPTS_DEFLATE);
+                scheduleUpload(reply, uploadPriority(request), () -> {
+                    File file = findSharedFile(fileName);
+                    if (file != null) {
+                        sendFile(reply, file, offset, length, deflate);
+                    } else {
+                        reply.sendError(Protocol.ERROR_NOT_FOUND, "Not shared: " + fileName);
+                    }
+                });
+                return null;
+            }
+            case Protocol.FETCH: {
+                int count = request.getVarInt();
+                if (count < 0 || count > MAX_FETCH_FILES) {
+                    reply.sendError(Protocol.ERROR_BAD_REQUEST,
+                            "Fetch of " + count + " files is outside the limit of " + MAX_FETCH_FILES);
+                    return null;
+                }
+                List<String> names = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    names.add(request.getString());
+                }
+                boolean deflate = request.hasFlag(Protocol.FLAG_ACCEPTS_DEFLATE);
+                scheduleUpload(reply, uploadPriority(request), () -> sendFiles(reply, names, deflate));
+                return null;
+            }
+            case Protocol.STAT: {
+                String fileName = request.getString();
+                return () -> {
+                    File file = findSharedFile(fileName);
+                    if (file != null && file.isFile()) {
+                        long size = file.length();
+                        long lastModified = file.lastModified();
+                        MerkleTree tree = hashIndex.getIfFresh(file.toPath());
+                        byte[] contentHash = tree != null ? tree.getRoot() : new byte[0];
+                        reply.send(Protocol.FILE_INFO, encoder -> encoder.putVarLong(size).putVarLong(lastModified)
+                                .putVarInt(contentHash.length).putBytes(ByteBuffer.wrap(contentHash)));
+                        reply.end();
+                    } else {
+                        reply.sendError(Protocol.ERROR_NOT_FOUND, "Not shared: " + fileName);
+                    }
+                };
+            }
+            case Protocol.GET_HASHES: {
+                String fileName = request.getString();
+                return () -> {
+                    File file = findSharedFile(fileName);
+                    if (file == null) {
+                        reply.sendError(Protocol.ERROR_NOT_FOUND, "Not shared: " + fileName);
+                        return;
+                    }
+                    // Reply once hashing finishes instead of holding a worker while it runs
+                    hashIndex.hash(file.toPath()).whenComplete((tree, error) -> {
+                        if (error != null) {
+                            reply.sendError(Protocol.ERROR_INTERNAL, "Cannot hash " + fileName + ": " + error.getMessage());
+                        } else {
+                            sendHashes(reply, tree);
+                        }
+                    });
+                };
+            }
+            case Protocol.GET_SIGNATURES: {
+                String fileName = request.getString();
+                return () -> {
+                    File file = findSharedFile(fileName);
+                    if (file != null) {
+                        sendSignatures(reply, file);
+                    } else {
+                        reply.sendError(Protocol.ERROR_NOT_FOUND, "Not shared: " + fileName);
+                    }
+                };
+            }
+            default:
+                reply.sendError(Protocol.ERROR_BAD_REQUEST, "Unknown opcode " + request.getOpcode());
+                return null;
+        }
+    }
+
+    /**
+     * Sends the shared file names as {@link Protocol#LIST_ENTRIES} frames followed by
+     * {@link Protocol#END}.
+     */
+    private void sendFileList(ServerEngine.Reply reply, boolean deflate) {
+        sendBatches(reply, Protocol.LIST_ENTRIES, sharedFiles.snapshot(), deflate, new BatchWriter<>() {
+            @Override
+            public int size(SharedFileRegistry.SharedFile file, SharedFileRegistry.SharedFile previous) {
+                return FrameEncoder.encodedLength(file.getName());
+            }
+
+            @Override
+            public void write(FrameEncoder encoder, SharedFileRegistry.SharedFile file, SharedFileRegistry.SharedFile previous) {
+                encoder.putString(file.getName());
+            }
+        });
+        reply.end();
+    }
+
+    /**
+     * Brings a client's copy of the catalog, at {@code version} of {@code epoch}, up to date: with
+     * the changes since that version if they are still logged, with the full listing otherwise.
+     */
+    private void sendCatalog(ServerEngine.Reply reply, long epoch, long version, boolean deflate) {
+        SharedFileRegistry.Delta delta = epoch == sharedFiles.getEpoch() ? sharedFiles.changesSince(version) : null;
+        if (delta != null) {
+            sendCatalogHeader(reply, Protocol.CATALOG_DELTA, sharedFiles.getEpoch(), delta.getVersion());
+            sendBatches(reply, Protocol.CATALOG_CHANGES, delta.getChanges(), deflate, new BatchWriter<>() {
+                @Override
+                public int size(SharedFileRegistry.Change change, SharedFileRegistry.Change previous) {
+                    String previousName = previous != null ? previous.getName() : null;
+                    return 1 + (change.isRemoved()
+                            ? CatalogCodec.nameLength(change.getName(), previousName)
+                            : CatalogCodec.encodedLength(change.getInfo(), previousName));
+                }
+
+                @Override
+                public void write(FrameEncoder encoder, SharedFileRegistry.Change change, SharedFileRegistry.Change previous) {
+                    String previousName = previous != null ? previous.getName() : null;
+                    if (change.isRemoved()) {
+                        encoder.putByte(1);
+                        CatalogCodec.putName(encoder, change.getName(), previousName);
+                    } else {
+                        encoder.putByte(0);
+                        CatalogCodec.put(encoder, change.getInfo(), previousName);
+                    }
+                }
+            });
+        } else {
+            SharedFileRegistry.Listing listing = sharedFiles.listing();
+            sendCatalogHeader(reply, Protocol.CATALOG_FULL, listing.getEpoch(), listing.getVersion());
+            sendBatches(reply, Protocol.CATALOG_RECORDS, listing.getFiles(), deflate, RECORD_WRITER);
+        }
+        reply.end();
+    }
+
+    /**
+     * Answers a search with the matching records as {@link Protocol#CATALOG_RECORDS} frames and
+     * {@link Protocol#END}.
+     */
+    private void sendSearchResults(ServerEngine.Reply reply, String query, int limit, boolean deflate) {
+        sendBatches(reply, Protocol.CATALOG_RECORDS, sharedFiles.search(query, limit), deflate, RECORD_WRITER);
+        reply.end();
+    }
+
+    private static void sendCatalogHeader(ServerEngine.Reply reply, int kind, long epoch, long version) {
+        reply.send(Protocol.CATALOG_HEADER, encoder -> encoder.putByte(kind).putVarLong(epoch).putVarLong(version));
+    }
+
+    /**
+     * Encodes one kind of item for {@link #sendBatches}. {@code previous} is the item before in the
+     * same frame, or null for the first item of a frame.
+     */
+    private interface BatchWriter<T> {
+        int size(T item, T previous);
+
+        void write(FrameEncoder encoder, T item, T previous);
+    }
+
+    private static final BatchWriter<SharedFileRegistry.SharedFile> RECORD_WRITER = new BatchWriter<>() {
+        @Override
+        public int size(SharedFileRegistry.SharedFile file, SharedFileRegistry.SharedFile previous) {
+            return CatalogCodec.encodedLength(file.getInfo(), previous != null ? previous.getName() : null);
+        }
+
+        @Override
+        public void write(FrameEncoder encoder, SharedFileRegistry.SharedFile file, SharedFileRegistry.SharedFile previous) {
+            CatalogCodec.put(encoder, file.getInfo(), previous != null ? previous.getName() : null);
+        }
+    };
+
+    /**
+     * Sends {@code items} as frames of {@code opcode} holding a varint count and as many items as
+     * fit. Always sends at least one frame, so an empty list arrives as a count of zero. With
+     * {@code deflate} set, frames that compress well are sent compressed.
+     */
+    private static <T> void sendBatches(ServerEngine.Reply reply, int opcode, List<T> items, boolean deflate,
+                                        BatchWriter<T> writer) {
+        int index = 0;
+        do {
+            int count = 0;
+            int size = FrameEncoder.varIntLength(items.size());
+            while (index + count < items.size()) {
+                T previous = count > 0 ? items.get(index + count - 1) : null;
+                int itemSize = writer.size(items.get(index + count), previous);
+                if (size + itemSize > Protocol.MAX_PAYLOAD_SIZE) {
+                    break;
+                }
+                size += itemSize;
+                count++;
+            }
+            if (count == 0 && index < items.size()) {
+                // An item too large for a frame cannot be sent
+                index++;
+                continue;
+            }
+            int first = index;
+            int frameCount = count;
+            FrameCompression.send(reply, opcode, deflate, encoder -> {
+                encoder.putVarInt(frameCount);
+                for (int i = first; i < first + frameCount; i++) {
+                    writer.write(encoder, items.get(i), i > first ? items.get(i - 1) : null);
+                }
+            });
+            index += count;
+        } while (index < items.size());
+    }
+
+    /**
+     * Sends a hash tree as {@link Protocol#HASH_LEAVES} frames followed by {@link Protocol#END}.
+     */
+    private void sendHashes(ServerEngine.Reply reply, MerkleTree tree) {
+        int leafCount = tree.getLeafCount();
+        int perFrame = Protocol.MAX_PAYLOAD_SIZE / MerkleTree.HASH_SIZE;
+        int firstFrameLeaves = Math.min(leafCount, perFrame - 2);
+        reply.send(Protocol.HASH_LEAVES, encoder -> {
+            encoder.putVarLong(tree.getSize()).putVarInt(MerkleTree.CHUNK_SIZE).putVarInt(leafCount)
+                    .putBytes(ByteBuffer.wrap(tree.getRoot()));
+            tree.putLeaves(encoder.buffer(), 0, firstFrameLeaves);
+        });
+        for (int from = firstFrameLeaves; from < leafCount; from += perFrame) {
+            int first = from;
+            int count = Math.min(perFrame, leafCount - from);
+            reply.send(Protocol.HASH_LEAVES, encoder -> tree.putLeaves(encoder.buffer(), first, count));
+        }
+        reply.end();
+    }
+
+    private File findSharedFile(String fileName) {
+        SharedFileRegistry.SharedFile shared = sharedFiles.findByName(fileName);
+        return shared != null ? shared.getFile() : null;
+    }
+
+    private static TransferManager.Priority uploadPriority(Frame request) {
+        return request.hasFlag(Protocol.FLAG_BULK) ? TransferManager.Priority.BULK : TransferManager.Priority.NORMAL;
+    }
+
+    /**
+     * Runs {@code send} once the peer has an upload slot. Upload bandwidth is charged frame by
+     * frame as the reply is written, so a large reply neither goes out at full speed nor holds up
+     * other uploads behind a debt for all of it.
+     */
+    private void scheduleUpload(ServerEngine.Reply reply, TransferManager.Priority priority, ServerEngine.Task send) {
+        String peer = reply.getRemoteAddress().getAddress().getHostAddress();
+        transfers.acquireUpload(peer, priority).whenComplete((granted, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+                reply.sendError(Protocol.ERROR_INTERNAL, String.valueOf(error.getMessage()));
+            } else {
+                reply.whenFinished(() -> transfers.releaseUpload(peer));
+                if (!reply.isEnded()) {
+                    reply.pace(bytes -> transfers.reserveUpload(reply, bytes, priority));
+                    serverEngine.submit(reply, send);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a file block by block and sends the checksums of each block as
+     * {@link Protocol#SIGNATURES} frames, then {@link Protocol#END}. The checksums are computed on
+     * every request; they cost one read of the file, as serving it would.
+     */
+    private void sendSignatures(ServerEngine.Reply reply, File file) throws IOException {
+        MerkleTree tree = hashIndex.getIfFresh(file.toPath());
+        byte[] contentHash = tree != null ? tree.getRoot() : new byte[0];
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            reply.sendError(Protocol.ERROR_NOT_FOUND, "No longer available: " + file.getName());
+            return;
+        }
+        try (fileChannel) {
+            long size = fileChannel.size();
+            int blockSize = BlockChecksums.blockSize(size);
+            int blockCount = BlockChecksums.blockCount(size, blockSize);
+            int perFrame = (Protocol.MAX_PAYLOAD_SIZE - 32 - contentHash.length) / BlockChecksums.ENCODED_SIZE;
+            ByteBuffer checksums = ByteBuffer.allocate(perFrame * BlockChecksums.ENCODED_SIZE);
+            byte[] block = new byte[blockSize];
+            BlockChecksums.Rolling rolling = new BlockChecksums.Rolling();
+            MessageDigest digest = MerkleTree.newDigest();
+            boolean first = true;
+            for (int index = 0; index < blockCount || first; index++) {
+                if (index < blockCount) {
+                    long position = (long) index * blockSize;
+                    int length = (int) Math.min(blockSize, size - position);
+                    ByteBuffer target = ByteBuffer.wrap(block, 0, length);
+                    while (target.hasRemaining()) {
+                        if (fileChannel.read(target, position + target.position()) < 0) {
+                            throw new EOFException("File shrank while it was read");
+                        }
+                    }
+                    checksums.putInt(rolling.reset(block, 0, length).value())
+                            .put(BlockChecksums.strong(digest, block, 0, length));
+                }
+                if (!checksums.hasRemaining() || index + 1 >= blockCount) {
+                    boolean header = first;
+                    checksums.flip();
+                    reply.send(Protocol.SIGNATURES, encoder -> {
+                        if (header) {
+                            encoder.putVarLong(size).putVarInt(blockSize)
+                                    .putVarInt(contentHash.length).putBytes(ByteBuffer.wrap(contentHash));
+                        }
+                        encoder.putVarInt(checksums.remaining() / BlockChecksums.ENCODED_SIZE).putBytes(checksums);
+                    });
+                    checksums.clear();
+                    first = false;
+                }
+            }
+        }
+        reply.end();
+    }
+
+    /**
+     * Answers a {@link Protocol#FETCH}: each file in turn as {@link Protocol#FETCH_FILE} and its
+     * data, or {@link Protocol#FETCH_SKIPPED} if it cannot be sent, then {@link Protocol#END}.
+     * Stops early if the client cancels.
+     */
+    private void sendFiles(ServerEngine.Reply reply, List<String> names, boolean deflate) throws IOException {
+        for (String name : names) {
+            if (reply.isEnded()) {
+                return;
+            }
+            File file = findSharedFile(name);
+            if (file == null) {
+                sendSkipped(reply, name, Protocol.ERROR_NOT_FOUND, "Not shared");
+                continue;
+            }
+            ByteBuffer cached;
+            FileChannel fileChannel;
+            long size;
+            try {
+                cached = fileCache.get(file.toPath());
+                fileChannel = cached == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+            } catch (IOException e) {
+                sendSkipped(reply, name, Protocol.ERROR_NOT_FOUND, "No longer available");
+                continue;
+            }
+            if (cached != null) {
+                sendFetchHeader(reply, name, file, cached.remaining());
+                sendCached(reply, cached, name, deflate);
+                continue;
+            }
+            try {
+                size = fileChannel.size();
+            } catch (IOException e) {
+                fileChannel.close();
+                sendSkipped(reply, name, Protocol.ERROR_INTERNAL, String.valueOf(e.getMessage()));
+                continue;
+            }
+            sendFetchHeader(reply, name, file, size);
+            sendData(reply, fileChannel, name, 0, size, deflate);
+        }
+        reply.end();
+    }
+
+    private void sendFetchHeader(ServerEngine.Reply reply, String name, File file, long size) {
+        long lastModified = file.lastModified();
+        MerkleTree tree = hashIndex.getIfFresh(file.toPath());
+        byte[] contentHash = tree != null ? tree.getRoot() : new byte[0];
+        reply.send(Protocol.FETCH_FILE, encoder -> encoder.putString(name).putVarLong(size).putVarLong(lastModified)
+                .putVarInt(contentHash.length).putBytes(ByteBuffer.wrap(contentHash)));
+    }
+
+    private static void sendSkipped(ServerEngine.Reply reply, String name, int code, String message) {
+        reply.send(Protocol.FETCH_SKIPPED, encoder -> encoder.putString(name).putVarInt(code).putString(message));
+    }
+
+    /**
+     * Streams a range of a file to the client without buffering it on the heap: a
+     * {@link Protocol#FILE_HEADER} describing the range, the bytes as {@link Protocol#DATA} frames
+     * sent straight from the file channel to the socket, so the kernel can use sendfile where it is
+     * available, then {@link Protocol#END}. The range is clipped to the end of the file. Popular
+     * small files are sent from the {@link FileCache} instead.
+     */
+    private void sendFile(ServerEngine.Reply reply, File file, long offset, long length, boolean deflate) throws IOException {
+        FileChannel fileChannel;
+        try {
+            ByteBuffer cached = fileCache.get(file.toPath());
+            if (cached != null) {
+                sendCachedRange(reply, cached, file.getName(), offset, length, deflate);
+                return;
+            }
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            reply.sendError(Protocol.ERROR_NOT_FOUND, "No longer available: " + file.getName());
+            return;
+        }
+        long size;
+        try {
+            size = fileChannel.size();
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+        if (!isValidRange(offset, length, size)) {
+            fileChannel.close();
+            reply.sendError(Protocol.ERROR_BAD_REQUEST, "Range " + offset + "+" + length + " is outside " + file.getName());
+            return;
+        }
+        long count = Math.min(length, size - offset);
+        reply.send(Protocol.FILE_HEADER, encoder -> encoder.putVarLong(size).putVarLong(offset).putVarLong(count));
+        sendData(reply, fileChannel, file.getName(), offset, count, deflate);
+        reply.end();
+    }
+
+    /**
+     * Whether a requested range can be served from a file of {@code size} bytes. The length may
+     * reach past the end, as the range is clipped to it.
+     */
+    private static boolean isValidRange(long offset, long length, long size) {
+        return offset >= 0 && length >= 0 && offset <= size;
+    }
+
+    private static void sendCachedRange(ServerEngine.Reply reply, ByteBuffer cached, String fileName,
+                                        long offset, long length, boolean deflate) {
+        long size = cached.remaining();
+        if (!isValidRange(offset, length, size)) {
+            reply.sendError(Protocol.ERROR_BAD_REQUEST, "Range " + offset + "+" + length + " is outside " + fileName);
+            return;
+        }
+        long count = Math.min(length, size - offset);
+        reply.send(Protocol.FILE_HEADER, encoder -> encoder.putVarLong(size).putVarLong(offset).putVarLong(count));
+        sendCached(reply, cached.position((int) offset).limit((int) (offset + count)), fileName, deflate);
+        reply.end();
+    }
+
+    /**
+     * Sends bytes from the file cache as {@link Protocol#DATA} frames, compressed frame by frame
+     * while that pays off, as {@link #sendBlocks} does, and the rest straight from memory.
+     */
+    private static void sendCached(ServerEngine.Reply reply, ByteBuffer data, String fileName, boolean deflate) {
+        if (deflate && FrameCompression.isCompressible(fileName) && data.remaining() <= MAX_DEFLATED_RANGE) {
+            while (data.hasRemaining()) {
+                ByteBuffer block = data.slice().limit(Math.min(Protocol.MAX_PAYLOAD_SIZE, data.remaining()));
+                data.position(data.position() + block.remaining());
+                if (!FrameCompression.sendData(reply, Protocol.DATA, block)) {
+                    break;
+                }
+            }
+        }
+        reply.sendData(data);
+    }
+
+    /**
+     * Sends a range of a file as {@link Protocol#DATA} frames and hands the channel over to the
+     * reply. Ranges that fit in one frame are read at once, so the file is closed right away
+     * rather than held open until the frame is written.
+     */
+    private static void sendData(ServerEngine.Reply reply, FileChannel fileChannel, String fileName,
+                                 long offset, long count, boolean deflate) throws IOException {
+        boolean compressible = deflate && FrameCompression.isCompressible(fileName);
+        if (count <= Protocol.MAX_PAYLOAD_SIZE || (compressible && count <= MAX_DEFLATED_RANGE)) {
+            sendBlocks(reply, fileChannel, offset, count, compressible);
+        } else {
+            reply.sendFile(fileChannel, offset, count);
+        }
+    }
+
+    /**
+     * Sends a range of a file as {@link Protocol#DATA} frames read into memory, each compressed on
+     * its own if {@code deflate} is set and that pays off. Once a frame goes out uncompressed the
+     * file is taken to be incompressible and the rest is sent as it is, straight from the file.
+     */
+    private static void sendBlocks(ServerEngine.Reply reply, FileChannel fileChannel, long offset, long count,
+                                   boolean deflate) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate((int) Math.min(Protocol.MAX_PAYLOAD_SIZE, count));
+        long position = offset;
+        long end = offset + count;
+        boolean handedOver = false;
+        try {
+            while (position < end) {
+                block.clear().limit((int) Math.min(block.capacity(), end - position));
+                while (block.hasRemaining()) {
+                    if (fileChannel.read(block, position + block.position()) < 0) {
+                        throw new EOFException("File shrank while it was sent");
+                    }
+                }
+                block.flip();
+                boolean first = position == offset;
+                boolean deflated = deflate && FrameCompression.sendData(reply, Protocol.DATA, block);
+                if (!deflate) {
+                    reply.send(Protocol.DATA, encoder -> encoder.putBytes(block));
+                }
+                position += block.limit();
+                if (first && !deflated) {
+                    if (position < end) {
+                        reply.sendFile(fileChannel, position, end - position);
+                        handedOver = true;
+                    }
+                    return;
+                }
+            }
+        } finally {
+            if (!handedOver) {
+                fileChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Shares a file and starts hashing it in the background.
+     *
+     * @return false if a file with the same name is already shared
+     */
+    public boolean addSharedFile(File file) {
+        if (!sharedFiles.add(file)) {
+            return false;
+        }
+        persist(List.of(file));
+        startHashing(file);
+        return true;
+    }
+
+    /**
+     * Shares several files at once, skipping those whose name is already shared.
+     *
+     * @return the files that were added
+     */
+    public List<File> addSharedFiles(Collection<File> files) {
+        Map<String, File> named = new LinkedHashMap<>();
+        for (File file : files) {
+            named.putIfAbsent(file.getName(), file);
+        }
+        return addNamedFiles(named);
+    }
+
+    private List<File> addNamedFiles(Map<String, File> files) {
+        List<File> added = sharedFiles.addAll(files);
+        persist(added);
+        for (File file : added) {
+            startHashing(file);
+        }
+        return added;
+    }
+
+    private void startHashing(File file) {
+        hashIndex.hash(file.toPath()).whenComplete((tree, error) -> {
+            if (error != null) {
+                System.err.println("Failed to hash " + file + ": " + error.getMessage());
+            } else if (sharedFiles.update(file, tree.getSize(), file.lastModified(), tree.getRoot())) {
+                persist(List.of(file));
+            }
+        });
+    }
+
+    public void removeSharedFile(File file) {
+        if (sharedFiles.remove(file)) {
+            forgetFiles(List.of(file));
+        }
+    }
+
+    /**
+     * Shares every file in the tree under {@code directory} and keeps the shared files in step with
+     * it as files are added, changed and deleted. Files are shared by their path relative to the
+     * directory's parent, such as {@code photos/2024/beach.jpg}.
+     *
+     * @return the files that were added
+     */
+    public List<File> shareDirectory(File directory) throws IOException {
+        Map<String, File> files = getDirectoryWatcher().watch(directory.toPath());
+        if (shareStore != null) {
+            shareStore.directoryShared(directory.toPath().toAbsolutePath().normalize().toFile());
+        }
+        return addNamedFiles(files);
+    }
+
+    /**
+     * Stops sharing a directory passed to {@link #shareDirectory} and every file in it.
+     */
+    public void unshareDirectory(File directory) throws IOException {
+        File root = directory.toPath().toAbsolutePath().normalize().toFile();
+        getDirectoryWatcher().unwatch(root.toPath());
+        if (shareStore != null) {
+            shareStore.directoryRemoved(root);
+        }
+        forgetFiles(sharedFiles.removeUnder(root));
+    }
+
+    public List<File> getSharedDirectories() {
+        List<File> directories = new ArrayList<>();
+        synchronized (this) {
+            if (directoryWatcher != null) {
+                for (Path root : directoryWatcher.getRoots()) {
+                    directories.add(root.toFile());
+                }
+            }
+        }
+        return directories;
+    }
+
+    private synchronized DirectoryWatcher getDirectoryWatcher() throws IOException {
+        if (directoryWatcher == null) {
+            directoryWatcher = new DirectoryWatcher(new DirectoryWatcher.Listener() {
+                @Override
+                public void filesAdded(Map<String, File> files) {
+                    addNamedFiles(files);
+                }
+
+                @Override
+                public void fileChanged(String name, File file) {
+                    if (sharedFiles.findByFile(file) != null) {
+                        startHashing(file);
+                    } else if (sharedFiles.add(name, file)) {
+                        persist(List.of(file));
+                        startHashing(file);
+                    }
+                }
+
+                @Override
+                public void pathRemoved(File path) {
+                    forgetFiles(sharedFiles.removeUnder(path));
+                }
+            });
+        }
+        return directoryWatcher;
+    }
+
+    private void forgetFiles(List<File> files) {
+        for (File file : files) {
+            hashIndex.remove(file.toPath());
+            fileCache.invalidate(file.toPath());
+        }
+        if (shareStore != null && !files.isEmpty()) {
+            shareStore.filesRemoved(files);
+        }
+    }
+
+    /**
+     * Shares again what the state directory recorded as shared before the last stop. The recorded
+     * sizes, modification times and hashes are trusted at first, so the node serves at once; the
+     * files are checked against them in the background, and only those that changed are hashed
+     * again.
+     */
+    private void restoreShares() throws IOException {
+        if (shareStore == null) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        ShareStore.State state = shareStore.load();
+        List<File> restoredFiles = new ArrayList<>(state.files.keySet());
+        List<File> directories = new ArrayList<>(state.directories);
+        int restored = sharedFiles.restore(state.files.values());
+        // The hash index takes the records from here on
+        hashIndex.restore(state.files);
+        if (restored > 0 || !directories.isEmpty()) {
+            System.out.println("Restored " + restored + " shared files in "
+                    + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+            Thread revalidation = new Thread(() -> revalidate(directories, restoredFiles), "share-revalidation");
+            revalidation.setDaemon(true);
+            revalidation.setPriority(Thread.MIN_PRIORITY);
+            revalidation.start();
+        }
+    }
+
+    /**
+     * Makes the restored files searchable, watches the restored directories again, which also
+     * shares files added to them meanwhile, and checks every restored file against its record.
+     */
+    private void revalidate(List<File> directories, List<File> files) {
+        sharedFiles.indexRestored(files);
+        for (File directory : directories) {
+            try {
+                addNamedFiles(getDirectoryWatcher().watch(directory.toPath()));
+            } catch (IOException e) {
+                System.err.println("No longer sharing " + directory + ": " + e.getMessage());
+                shareStore.directoryRemoved(directory);
+                forgetFiles(sharedFiles.removeUnder(directory));
+            }
+        }
+        for (File file : files) {
+            if (!file.isFile()) {
+                removeSharedFile(file);
+            } else if (sharedFiles.findByFile(file) != null) {
+                // Hashes only if the file changed since it was recorded
+                startHashing(file);
+            }
+        }
+    }
+
+    private void persist(Collection<File> files) {
+        if (shareStore == null || files.isEmpty()) {
+            return;
+        }
+        List<ShareStore.FileRecord> records = new ArrayList<>();
+        for (File file : files) {
+            SharedFileRegistry.SharedFile shared = sharedFiles.findByFile(file);
+            if (shared != null) {
+                records.add(describe(shared));
+            }
+        }
+        shareStore.filesShared(records);
+    }
+
+    private ShareStore.FileRecord describe(SharedFileRegistry.SharedFile shared) {
+        FileInfo info = shared.getInfo();
+        MerkleTree tree = info.getContentHash() != null ? hashIndex.peek(shared.getFile().toPath()) : null;
+        return ShareStore.FileRecord.of(shared.getFile(), info, tree);
+    }
+
+    /**
+     * What is shared now, written by the store as its next snapshot.
+     */
+    private ShareStore.State currentShares() {
+        ShareStore.State state = new ShareStore.State();
+        state.directories.addAll(getSharedDirectories());
+        for (SharedFileRegistry.SharedFile shared : sharedFiles.snapshot()) {
+            state.files.put(shared.getFile(), describe(shared));
+        }
+        return state;
+    }
+
+    public List<File> getSharedFiles() {
+        List<File> files = new ArrayList<>();
+        for (SharedFileRegistry.SharedFile shared : sharedFiles.snapshot()) {
+            files.add(shared.getFile());
+        }
+        return files;
+    }
+
+    public SharedFileRegistry getSharedFileRegistry() {
+        return sharedFiles;
+    }
+
+    /**
+     * This machine's LAN address, read from its network interfaces once and cached.
+     */
+    public String getMyIp() {
+        return localIdentity.getPrimaryAddress().getHostAddress();
+    }
+
+    /**
+     * Whether {@code address} is one of this machine's own addresses.
+     */
+    public boolean isLocalAddress(InetAddress address) {
+        return localIdentity.isLocal(address);
+    }
+
+    public List<File> getSharedPeerFiles(String peerIp) {
+        List<File> peerFiles = new ArrayList<>();
+        for (String name : getSharedPeerFileNames(peerIp)) {
+            peerFiles.add(new File(name));
+        }
+        return peerFiles;
+    }
+
+    /**
+     * The names a peer shares its files as. Names of files in shared directories contain
+     * {@code /}.
+     */
+    public List<String> getSharedPeerFileNames(String peerIp) {
+        List<String> names = new ArrayList<>();
+        for (FileInfo info : getPeerCatalog(peerIp)) {
+            names.add(info.getName());
+        }
+        return names;
+    }
+
+    /**
+     * The records of the files a peer shares, sorted by name, or an empty list if the peer cannot
+     * be reached.
+     */
+    public List<FileInfo> getPeerCatalog(String peerIp) {
+        // Ensure a peer is selected
+        if (peerIp == null || peerIp.isEmpty()) {
+            System.out.println("No peer selected");
+            return new ArrayList<>();
+        }
+
+        try {
+            return peerClient.listCatalog(peerIp);
+        } catch (IOException e) {
+            System.err.println("Error getting shared files from peer: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * The records a peer was last seen sharing, from the cache and without network access, or null
+     * if its catalog is not cached.
+     */
+    public List<FileInfo> getCachedPeerCatalog(String peerIp) {
+        return peerClient.getCachedCatalog(peerIp);
+    }
+
+    /**
+     * Revalidates a peer's cached catalog in the background and completes with the current records.
+     */
+    public CompletableFuture<List<FileInfo>> refreshPeerCatalog(String peerIp) {
+        CompletableFuture<List<FileInfo>> refresh = peerClient.refreshCatalog(peerIp);
+        refresh.exceptionally(error -> {
+            System.err.println("Error getting shared files from peer " + peerIp + ": " + error.getMessage());
+            return null;
+        });
+        return refresh;
+    }
+
+    /**
+     * Searches the files of every live peer at once. Each peer has {@link #SEARCH_TIMEOUT_SECONDS}
+     * to answer; slower peers are left out. Hits are passed to {@code listener} as they arrive, on
+     * the connections' reader threads: when another peer turns out to have a file already found,
+     * the listener receives the hit again with that peer added. The returned future completes once
+     * every peer has answered or timed out, and cancelling it stops the search.
+     */
+    public CompletableFuture<Void> search(String query, Consumer<SearchHit> listener) {
+        Map<String, SearchHit> hits = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> searches = new ArrayList<>();
+        List<CompletableFuture<Void>> answers = new ArrayList<>();
+        for (InetAddress peer : getDiscoveredPeers()) {
+            if (isLocalAddress(peer)) {
+                continue;
+            }
+            String address = peer.getHostAddress();
+            CompletableFuture<Void> search = peerClient.search(address, query, MAX_SEARCH_RESULTS, batch -> {
+                for (FileInfo info : batch) {
+                    listener.accept(hits.merge(SearchHit.key(info), new SearchHit(info, List.of(address)), SearchHit::merge));
+                }
+            });
+            search.orTimeout(SEARCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            searches.add(search);
+            answers.add(search.exceptionally(error -> {
+                if (!(error instanceof CancellationException)) {
+                    System.err.println("Search on peer " + address + " failed: " + error);
+                }
+                return null;
+            }));
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0]));
+        all.whenComplete((done, error) -> {
+            if (all.isCancelled()) {
+                searches.forEach(search -> search.cancel(false));
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Downloads a file to {@code target} at {@link TransferManager.Priority#NORMAL} priority.
+     */
+    public void downloadFile(String fileName, List<String> peers, Path target, TransferListener listener) throws IOException {
+        downloadFile(fileName, peers, target, TransferManager.Priority.NORMAL, listener);
+    }
+
+    /**
+     * Downloads a file to {@code target}, fetching chunks in parallel from every peer in
+     * {@code peers} that shares it. The download waits for a free download slot first, and its
+     * chunk requests compete with other downloads by {@code priority}. If the transfer fails, what
+     * was received is kept next to the target and calling this again with the same target resumes
+     * it.
+     *
+     * <p>If the target already exists, as an older version of the file, it is first updated from
+     * one of the peers by fetching only the blocks that changed; the full download is the fallback.
+     */
+    public void downloadFile(String fileName, List<String> peers, Path target, TransferManager.Priority priority,
+                             TransferListener listener) throws IOException {
+        transfers.runDownload(priority, () -> {
+            if (!updateFile(fileName, peers, target, priority, listener)) {
+                new SwarmDownload(peerClient, transfers, priority, fileName, target, listener).run(peers);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Tries a {@link DeltaDownload} of an existing target from the first peer that shares the file.
+     *
+     * @return whether the target was brought up to date
+     */
+    private boolean updateFile(String fileName, List<String> peers, Path target, TransferManager.Priority priority,
+                               TransferListener listener) throws InterruptedIOException {
+        try {
+            if (!Files.isRegularFile(target) || Files.size(target) < MIN_DELTA_FILE_SIZE) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        for (String peer : peers) {
+            try {
+                new DeltaDownload(peerClient, transfers, priority, peer, fileName, target, listener).run();
+                return true;
+            } catch (FileNotFoundException e) {
+                // This peer does not share the file
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                System.err.println("Could not update " + target + " from " + peer + ", downloading it whole: "
+                        + e.getMessage());
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fetches files a peer shares into {@code targetDirectory}, under their shared names, in
+     * pipelined batches over one connection. Meant for many files at once, where one
+     * {@link #downloadFile} per file would spend most of its time on round trips. Files already
+     * present with the peer's size and modification time are not fetched again.
+     *
+     * @return the names that could not be fetched, including names the peer does not share
+     */
+    public List<String> fetchFiles(String peerIp, Collection<String> names, Path targetDirectory,
+                                   TransferManager.Priority priority, TransferListener listener) throws IOException {
+        Set<String> wanted = new HashSet<>(names);
+        List<FileInfo> files = new ArrayList<>();
+        for (FileInfo info : peerClient.listCatalog(peerIp)) {
+            if (wanted.remove(info.getName())) {
+                files.add(info);
+            }
+        }
+        List<String> failed = fetch(peerIp, files, targetDirectory, priority, listener);
+        failed.addAll(wanted);
+        return failed;
+    }
+
+    /**
+     * Fetches every file a peer shares under {@code directory}, a shared directory name such as
+     * {@code photos} or {@code photos/2023}, as {@link #fetchFiles} does. The files keep their
+     * shared names, so they land in {@code targetDirectory/photos/...}.
+     *
+     * @return the names that could not be fetched
+     */
+    public List<String> fetchDirectory(String peerIp, String directory, Path targetDirectory,
+                                       TransferManager.Priority priority, TransferListener listener) throws IOException {
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        List<FileInfo> files = new ArrayList<>();
+        for (FileInfo info : peerClient.listCatalog(peerIp)) {
+            if (info.getName().startsWith(prefix)) {
+                files.add(info);
+            }
+        }
+        return fetch(peerIp, files, targetDirectory, priority, listener);
+    }
+
+    private List<String> fetch(String peerIp, List<FileInfo> files, Path targetDirectory,
+                               TransferManager.Priority priority, TransferListener listener) throws IOException {
+        return transfers.runDownload(priority,
+                () -> new BatchFetch(peerClient, transfers, priority, peerIp, targetDirectory, listener).run(files));
+    }
+
+    /**
+     * The cache popular shared files are served from, with its hit and miss counts.
+     */
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Counters and histograms of this node, also registered over JMX.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Queues and rate-limits the transfers of this node.
+     */
+    public TransferManager getTransfers() {
+        return transfers;
+    }
+}
@@ -0,0 +1,99 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A client's copy of one peer's catalog at a known epoch and version. Immutable: bringing it up to
+ * date produces a new copy.
+ */
+class PeerCatalog {
+    static final PeerCatalog EMPTY = new PeerCatalog(0, 0, List.of());
+
+    private final long epoch;
+    private final long version;
+    private final List<FileInfo> files;
+
+    PeerCatalog(long epoch, long version, List<FileInfo> files) {
+        this.epoch = epoch;
+        this.version = version;
+        this.files = Collections.unmodifiableList(files);
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * The shared files, sorted by name.
+     */
+    List<FileInfo> getFiles() {
+        return files;
+    }
+
+    List<String> getNames() {
+        List<String> names = new ArrayList<>(files.size());
+        for (FileInfo file : files) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * This catalog with {@code changes} applied, at {@code newVersion}. Linear in the size of the
+     * catalog: the new records are sorted and merged into the sorted list in one pass.
+     */
+    PeerCatalog apply(long newVersion, List<Change> changes) {
+        if (changes.isEmpty()) {
+            return new PeerCatalog(epoch, newVersion, files);
+        }
+        // Later changes to a name override earlier ones; null marks a removal
+        Map<String, FileInfo> net = new HashMap<>();
+        for (Change change : changes) {
+            net.put(change.name, change.info);
+        }
+        List<FileInfo> upserts = new ArrayList<>();
+        for (FileInfo info : net.values()) {
+            if (info != null) {
+                upserts.add(info);
+            }
+        }
+        upserts.sort(Comparator.comparing(FileInfo::getName));
+        List<FileInfo> merged = new ArrayList<>(files.size() + upserts.size());
+        int next = 0;
+        for (FileInfo file : files) {
+            String name = file.getName();
+            while (next < upserts.size() && upserts.get(next).getName().compareTo(name) < 0) {
+                merged.add(upserts.get(next++));
+            }
+            if (!net.containsKey(name)) {
+                merged.add(file);
+            } else if (next < upserts.size() && upserts.get(next).getName().equals(name)) {
+                merged.add(upserts.get(next++));
+            }
+        }
+        merged.addAll(upserts.subList(next, upserts.size()));
+        return new PeerCatalog(epoch, newVersion, merged);
+    }
+
+    static class Change {
+        final String name;
+        final FileInfo info;
+
+        /**
+         * A change to {@code name}: its new record, or null if it was removed.
+         */
+        Change(String name, FileInfo info) {
+            this.name = name;
+            this.info = info;
+        }
+    }
+}
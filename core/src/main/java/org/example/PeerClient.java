@@ -0,0 +1,599 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Client side of the peer protocol. Requests go over pooled, multiplexed connections, so browsing
+ * a peer and then downloading from it reuses one TCP connection.
+ */
+public class PeerClient implements Closeable {
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+    private static final long LIST_TIMEOUT_SECONDS = 30;
+    private static final int MAX_CACHED_CATALOGS = 256;
+    private static final long CATALOG_TTL_MINUTES = 30;
+    private static final int CATALOG_FETCH_THREADS = 2;
+    private static final long SEARCHER_KEEP_ALIVE_SECONDS = 60;
+    private static final int SEARCH_THREADS = 16;
+    private static final int MAX_QUEUED_SEARCHES = 1024;
+
+    private final int port;
+    private final Metrics metrics;
+    private final ConnectionPool pool = new ConnectionPool(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    private final CatalogCache catalogs = new CatalogCache(MAX_CACHED_CATALOGS, CATALOG_TTL_MINUTES, TimeUnit.MINUTES);
+    private final Map<String, CompletableFuture<PeerCatalog>> revalidations = new ConcurrentHashMap<>();
+    private final ExecutorService catalogFetcher;
+    private final ExecutorService searcher;
+
+    public PeerClient(int port) {
+        this(port, new Metrics());
+    }
+
+    public PeerClient(int port, Metrics metrics) {
+        this.port = port;
+        this.metrics = metrics;
+        this.catalogFetcher = Executors.newFixedThreadPool(CATALOG_FETCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "catalog-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A search connects to every peer at once, so enough threads connect in parallel that a few
+        // unreachable peers do not hold up the rest; the rest queue, and past the queue searches fail
+        ThreadPoolExecutor searchPool = new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS,
+                SEARCHER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_SEARCHES), runnable -> {
+                    Thread thread = new Thread(runnable, "peer-search");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        searchPool.allowCoreThreadTimeOut(true);
+        this.searcher = searchPool;
+    }
+
+    /**
+     * Fetches the names of the files a peer shares, sorted. The client keeps a copy of each peer's
+     * catalog and only asks for what changed since, so browsing a peer again costs one small round
+     * trip when nothing has changed.
+     */
+    public List<String> listFiles(String peerAddress) throws IOException {
+        return await(revalidateCatalog(peerAddress), 0).getNames();
+    }
+
+    /**
+     * Fetches the records of the files a peer shares, sorted by name. Kept up to date like
+     * {@link #listFiles}.
+     */
+    public List<FileInfo> listCatalog(String peerAddress) throws IOException {
+        return await(revalidateCatalog(peerAddress), 0).getFiles();
+    }
+
+    /**
+     * The records a peer was last seen sharing, without asking it, or null if its catalog is not
+     * cached.
+     */
+    public List<FileInfo> getCachedCatalog(String peerAddress) {
+        PeerCatalog catalog = catalogs.get(peerAddress);
+        return catalog != null ? catalog.getFiles() : null;
+    }
+
+    /**
+     * Whether the cached catalog of a peer is at {@code epoch} and {@code version}, as announced
+     * by its beacon, so there is nothing to fetch.
+     */
+    public boolean hasCatalog(String peerAddress, long epoch, long version) {
+        PeerCatalog catalog = catalogs.get(peerAddress);
+        return catalog != null && catalog.getEpoch() == epoch && catalog.getVersion() == version;
+    }
+
+    /**
+     * Brings the cached catalog of a peer up to date in the background. Concurrent calls for the
+     * same peer share one request.
+     */
+    public CompletableFuture<List<FileInfo>> refreshCatalog(String peerAddress) {
+        return revalidateCatalog(peerAddress).thenApply(PeerCatalog::getFiles);
+    }
+
+    private CompletableFuture<PeerCatalog> revalidateCatalog(String peerAddress) {
+        CompletableFuture<PeerCatalog> running = revalidations.get(peerAddress);
+        if (running != null) {
+            return running;
+        }
+        CompletableFuture<PeerCatalog> created = new CompletableFuture<>();
+        running = revalidations.putIfAbsent(peerAddress, created);
+        if (running != null) {
+            return running;
+        }
+        created.whenComplete((catalog, error) -> revalidations.remove(peerAddress, created));
+        long startNanos = System.nanoTime();
+        try {
+            // Connecting blocks, so it happens on a fetcher thread rather than the caller's
+            catalogFetcher.execute(() -> syncCatalog(peerAddress)
+                    .orTimeout(LIST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .whenComplete((catalog, error) -> {
+                        if (error != null) {
+                            metrics.catalogFetchFailures.increment();
+                            created.completeExceptionally(error);
+                        } else {
+                            metrics.catalogFetch.recordNanos(System.nanoTime() - startNanos);
+                            created.complete(catalog);
+                        }
+                    }));
+        } catch (RejectedExecutionException e) {
+            created.completeExceptionally(new IOException("Client is closed"));
+        }
+        return created;
+    }
+
+    private CompletableFuture<PeerCatalog> syncCatalog(String peerAddress) {
+        PeerCatalog cached = catalogs.get(peerAddress);
+        PeerCatalog held = cached != null ? cached : PeerCatalog.EMPTY;
+        CompletableFuture<PeerCatalog> result = new CompletableFuture<>();
+        try {
+            request(peerAddress, Protocol.CATALOG, encoder -> encoder.putVarLong(held.getEpoch()).putVarLong(held.getVersion()),
+                    new PeerConnection.ReplyHandler() {
+                        private int kind = -1;
+                        private long epoch;
+                        private long version;
+                        private final List<FileInfo> records = new ArrayList<>();
+                        private final List<PeerCatalog.Change> changes = new ArrayList<>();
+
+                        @Override
+                        public boolean onFrame(Frame frame) throws IOException {
+                            if (kind < 0) {
+                                PeerConnection.checkReply(frame, Protocol.CATALOG_HEADER);
+                                kind = frame.getByte();
+                                epoch = frame.getVarSize();
+                                version = frame.getVarSize();
+                                if (kind == Protocol.CATALOG_DELTA && epoch != held.getEpoch()) {
+                                    throw new ProtocolException("Catalog changes for an unknown epoch");
+                                }
+                                return false;
+                            }
+                            if (kind == Protocol.CATALOG_FULL && frame.getOpcode() == Protocol.CATALOG_RECORDS) {
+                                int count = frame.getVarInt();
+                                String previous = null;
+                                for (int i = 0; i < count; i++) {
+                                    FileInfo record = CatalogCodec.get(frame, previous);
+                                    records.add(record);
+                                    previous = record.getName();
+                                }
+                                return false;
+                            }
+                            if (kind == Protocol.CATALOG_DELTA && frame.getOpcode() == Protocol.CATALOG_CHANGES) {
+                                int count = frame.getVarInt();
+                                String previous = null;
+                                for (int i = 0; i < count; i++) {
+                                    if (frame.getByte() != 0) {
+                                        previous = CatalogCodec.getName(frame, previous);
+                                        changes.add(new PeerCatalog.Change(previous, null));
+                                    } else {
+                                        FileInfo record = CatalogCodec.get(frame, previous);
+                                        previous = record.getName();
+                                        changes.add(new PeerCatalog.Change(previous, record));
+                                    }
+                                }
+                                return false;
+                            }
+                            PeerConnection.checkReply(frame, Protocol.END);
+                            switch (kind) {
+                                case Protocol.CATALOG_NOT_MODIFIED:
+                                    result.complete(held);
+                                    break;
+                                case Protocol.CATALOG_DELTA:
+                                    result.complete(held.apply(version, changes));
+                                    break;
+                                case Protocol.CATALOG_FULL:
+                                    result.complete(new PeerCatalog(epoch, version, records));
+                                    break;
+                                default:
+                                    throw new ProtocolException("Unknown catalog reply kind " + kind);
+                            }
+                            return true;
+                        }
+
+                        @Override
+                        public void onFailure(IOException cause) {
+                            result.completeExceptionally(cause);
+                        }
+                    });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result.thenApply(updated -> catalogs.put(peerAddress, updated));
+    }
+
+    /**
+     * Asks a peer for the size and modification time of a shared file.
+     */
+    public CompletableFuture<FileInfo> stat(String peerAddress, String fileName) {
+        CompletableFuture<FileInfo> result = new CompletableFuture<>();
+        try {
+            request(peerAddress, Protocol.STAT, encoder -> encoder.putString(fileName), new PeerConnection.ReplyHandler() {
+                private FileInfo info;
+
+                @Override
+                public boolean onFrame(Frame frame) throws IOException {
+                    if (info == null) {
+                        PeerConnection.checkReply(frame, Protocol.FILE_INFO);
+                        long size = frame.getVarSize();
+                        long lastModified = frame.getVarLong();
+                        byte[] contentHash = frame.getBytes(frame.getVarInt());
+                        info = new FileInfo(fileName, size, lastModified, contentHash.length > 0 ? contentHash : null);
+                        return false;
+                    }
+                    PeerConnection.checkReply(frame, Protocol.END);
+                    result.complete(info);
+                    return true;
+                }
+
+                @Override
+                public void onFailure(IOException cause) {
+                    result.completeExceptionally(cause);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the hash tree of a shared file. The tree is checked against the root hash the peer
+     * sends with it; callers compare that root with the content hash they expect.
+     */
+    public CompletableFuture<MerkleTree> getHashes(String peerAddress, String fileName) {
+        CompletableFuture<MerkleTree> result = new CompletableFuture<>();
+        try {
+            request(peerAddress, Protocol.GET_HASHES, encoder -> encoder.putString(fileName), new PeerConnection.ReplyHandler() {
+                private long size = -1;
+                private byte[] root;
+                private byte[] leaves;
+                private int received;
+
+                @Override
+                public boolean onFrame(Frame frame) throws IOException {
+                    if (frame.getOpcode() == Protocol.HASH_LEAVES) {
+                        if (root == null) {
+                            size = frame.getVarSize();
+                            int chunkSize = frame.getVarInt();
+                            int leafCount = frame.getVarInt();
+                            if (chunkSize != MerkleTree.CHUNK_SIZE || leafCount != MerkleTree.chunkCount(size)) {
+                                throw new ProtocolException("Unsupported hash tree layout for " + fileName);
+                            }
+                            root = frame.getBytes(MerkleTree.HASH_SIZE);
+                            leaves = new byte[leafCount * MerkleTree.HASH_SIZE];
+                        }
+                        int length = frame.payload().remaining();
+                        if (received + length > leaves.length) {
+                            throw new ProtocolException("Too many leaf hashes for " + fileName);
+                        }
+                        frame.payload().get(leaves, received, length);
+                        received += length;
+                        return false;
+                    }
+                    PeerConnection.checkReply(frame, Protocol.END);
+                    if (root == null || received != leaves.length) {
+                        throw new ProtocolException("Incomplete hash tree for " + fileName);
+                    }
+                    MerkleTree tree = new MerkleTree(size, leaves);
+                    if (!tree.hasRoot(root)) {
+                        throw new ProtocolException("Leaf hashes of " + fileName + " do not match its root");
+                    }
+                    result.complete(tree);
+                    return true;
+                }
+
+                @Override
+                public void onFailure(IOException cause) {
+                    result.completeExceptionally(cause);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the block checksums of a shared file, for a delta transfer against an older copy.
+     */
+    CompletableFuture<BlockChecksums.Signatures> getSignatures(String peerAddress, String fileName) {
+        CompletableFuture<BlockChecksums.Signatures> result = new CompletableFuture<>();
+        try {
+            request(peerAddress, Protocol.GET_SIGNATURES, encoder -> encoder.putString(fileName), new PeerConnection.ReplyHandler() {
+                private long size = -1;
+                private int blockSize;
+                private byte[] contentHash;
+                private int[] weak;
+                private byte[] strong;
+                private int received;
+
+                @Override
+                public boolean onFrame(Frame frame) throws IOException {
+                    if (frame.getOpcode() == Protocol.SIGNATURES) {
+                        if (weak == null) {
+                            size = frame.getVarSize();
+                            blockSize = frame.getVarInt();
+                            if (blockSize < BlockChecksums.MIN_BLOCK_SIZE
+                                    || blockSize > BlockChecksums.MAX_BLOCK_SIZE
+                                    || size / blockSize >= Integer.MAX_VALUE / BlockChecksums.STRONG_SIZE) {
+                                throw new ProtocolException("Unsupported block layout for " + fileName);
+                            }
+                            contentHash = frame.getBytes(frame.getVarInt());
+                            int blockCount = BlockChecksums.blockCount(size, blockSize);
+                            weak = new int[blockCount];
+                            strong = new byte[blockCount * BlockChecksums.STRONG_SIZE];
+                        }
+                        int count = frame.getVarInt();
+                        if (count < 0 || received + count > weak.length
+                                || frame.payload().remaining() != count * BlockChecksums.ENCODED_SIZE) {
+                            throw new ProtocolException("Malformed block checksums for " + fileName);
+                        }
+                        for (int i = 0; i < count; i++, received++) {
+                            weak[received] = frame.getInt();
+                            frame.payload().get(strong, received * BlockChecksums.STRONG_SIZE, BlockChecksums.STRONG_SIZE);
+                        }
+                        return false;
+                    }
+                    PeerConnection.checkReply(frame, Protocol.END);
+                    if (weak == null || received != weak.length) {
+                        throw new ProtocolException("Incomplete block checksums for " + fileName);
+                    }
+                    result.complete(new BlockChecksums.Signatures(size, blockSize, contentHash, weak, strong));
+                    return true;
+                }
+
+                @Override
+                public void onFailure(IOException cause) {
+                    result.completeExceptionally(cause);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Searches the files a peer shares. Matches are passed to {@code onResults} in batches as they
+     * arrive, on the connection's reader thread. Completing the returned future, for example with
+     * a timeout, or cancelling it stops the search on the peer.
+     */
+    public CompletableFuture<Void> search(String peerAddress, String query, int limit, Consumer<List<FileInfo>> onResults) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            searcher.execute(() -> {
+                try {
+                    PendingRequest pending = request(peerAddress, Protocol.SEARCH,
+                            encoder -> encoder.putString(query).putVarInt(limit), new PeerConnection.ReplyHandler() {
+                                @Override
+                                public boolean onFrame(Frame frame) throws IOException {
+                                    if (frame.getOpcode() == Protocol.CATALOG_RECORDS) {
+                                        int count = frame.getVarInt();
+                                        if (count < 0 || count > limit) {
+                                            throw new ProtocolException("Search batch of " + count + " results");
+                                        }
+                                        List<FileInfo> batch = new ArrayList<>(count);
+                                        String previous = null;
+                                        for (int i = 0; i < count; i++) {
+                                            FileInfo record = CatalogCodec.get(frame, previous);
+                                            batch.add(record);
+                                            previous = record.getName();
+                                        }
+                                        if (!result.isDone()) {
+                                            onResults.accept(batch);
+                                        }
+                                        return false;
+                                    }
+                                    PeerConnection.checkReply(frame, Protocol.END);
+                                    result.complete(null);
+                                    return true;
+                                }
+
+                                @Override
+                                public void onFailure(IOException cause) {
+                                    result.completeExceptionally(cause);
+                                }
+                            });
+                    result.whenComplete((done, error) -> {
+                        if (error != null) {
+                            pending.cancel();
+                        }
+                    });
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(
+                    new IOException(searcher.isShutdown() ? "Client is closed" : "Too many searches in progress"));
+        }
+        return result;
+    }
+
+    /**
+     * Sends a sample of this node's view of the network to the node at {@code host}:{@code port}
+     * and returns a sample of the other node's view.
+     */
+    public CompletableFuture<List<GossipMembership.Member>> exchangePeers(String host, int peerPort,
+                                                                         List<GossipMembership.Member> sample) {
+        CompletableFuture<List<GossipMembership.Member>> result = new CompletableFuture<>();
+        try {
+            request(new InetSocketAddress(host, peerPort), Protocol.PEERS, encoder -> putMembers(encoder, sample),
+                    new PeerConnection.ReplyHandler() {
+                        private List<GossipMembership.Member> members;
+
+                        @Override
+                        public boolean onFrame(Frame frame) throws IOException {
+                            if (members == null) {
+                                PeerConnection.checkReply(frame, Protocol.PEER_LIST);
+                                members = getMembers(frame);
+                                return false;
+                            }
+                            PeerConnection.checkReply(frame, Protocol.END);
+                            result.complete(members);
+                            return true;
+                        }
+
+                        @Override
+                        public void onFailure(IOException cause) {
+                            result.completeExceptionally(cause);
+                        }
+                    });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    static void putMembers(FrameEncoder encoder, List<GossipMembership.Member> members) {
+        encoder.putVarInt(members.size());
+        for (GossipMembership.Member member : members) {
+            encoder.putLong(member.getNodeId().getMostSignificantBits())
+                    .putLong(member.getNodeId().getLeastSignificantBits())
+                    .putString(member.getHost())
+                    .putVarInt(member.getPort())
+                    .putVarLong(member.getHeartbeat());
+        }
+    }
+
+    static List<GossipMembership.Member> getMembers(Frame frame) throws IOException {
+        int count = frame.getVarInt();
+        if (count < 0) {
+            throw new ProtocolException("Negative peer count: " + count);
+        }
+        List<GossipMembership.Member> members = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            if (frame.payload().remaining() < 2 * Long.BYTES) {
+                throw new ProtocolException("Truncated peer list");
+            }
+            UUID nodeId = new UUID(frame.getLong(), frame.getLong());
+            String host = frame.getString();
+            int port = frame.getVarInt();
+            long heartbeat = frame.getVarSize();
+            members.add(new GossipMembership.Member(nodeId, host, port, heartbeat, 0));
+        }
+        return members;
+    }
+
+    /**
+     * Requests {@code length} bytes of a file starting at {@code offset}. The reply is a
+     * {@link Protocol#FILE_HEADER} followed by {@link Protocol#DATA} frames and {@link Protocol#END},
+     * all delivered to {@code handler}. A {@code bulk} range is flagged {@link Protocol#FLAG_BULK}.
+     */
+    public PendingRequest getRange(String peerAddress, String fileName, long offset, long length, boolean bulk,
+                                   PeerConnection.ReplyHandler handler) throws IOException {
+        return request(new InetSocketAddress(peerAddress, port), Protocol.GET, bulk ? Protocol.FLAG_BULK : 0,
+                encoder -> encoder.putString(fileName).putVarLong(offset).putVarLong(length), handler);
+    }
+
+    /**
+     * Requests several files at once. The reply is a {@link Protocol#FETCH_FILE} and the file's
+     * {@link Protocol#DATA} frames or a {@link Protocol#FETCH_SKIPPED} per file, then
+     * {@link Protocol#END}, all delivered to {@code handler}. The names must fit in one frame.
+     */
+    public PendingRequest fetch(String peerAddress, List<String> names, boolean bulk,
+                                PeerConnection.ReplyHandler handler) throws IOException {
+        return request(new InetSocketAddress(peerAddress, port), Protocol.FETCH, bulk ? Protocol.FLAG_BULK : 0,
+                encoder -> {
+                    encoder.putVarInt(names.size());
+                    for (String name : names) {
+                        encoder.putString(name);
+                    }
+                }, handler);
+    }
+
+    /**
+     * Sends a request on the pooled connection to a peer. A pooled connection may have been closed
+     * by the peer while idle, so a failed send on a reused connection is retried once on a fresh one.
+     */
+    private PendingRequest request(String peerAddress, int opcode, Consumer<FrameEncoder> payload,
+                                   PeerConnection.ReplyHandler handler) throws IOException {
+        return request(new InetSocketAddress(peerAddress, port), opcode, payload, handler);
+    }
+
+    private PendingRequest request(InetSocketAddress address, int opcode, Consumer<FrameEncoder> payload,
+                                   PeerConnection.ReplyHandler handler) throws IOException {
+        return request(address, opcode, 0, payload, handler);
+    }
+
+    private PendingRequest request(InetSocketAddress address, int opcode, int flags, Consumer<FrameEncoder> payload,
+                                   PeerConnection.ReplyHandler handler) throws IOException {
+        PeerConnection connection = pool.get(address);
+        try {
+            return new PendingRequest(connection, connection.request(opcode, flags, payload, handler));
+        } catch (IOException e) {
+            pool.invalidate(connection);
+            connection = pool.get(address);
+            return new PendingRequest(connection, connection.request(opcode, flags, payload, handler));
+        }
+    }
+
+    /**
+     * Where downloads over this client record what they transfer.
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    static <T> T await(CompletableFuture<T> future, long timeoutSeconds) throws IOException {
+        try {
+            return timeoutSeconds > 0 ? future.get(timeoutSeconds, TimeUnit.SECONDS) : future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new InterruptedIOException("Timed out waiting for peer");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for peer");
+        }
+    }
+
+    @Override
+    public void close() {
+        catalogFetcher.shutdownNow();
+        searcher.shutdownNow();
+        pool.close();
+    }
+
+    /**
+     * A request in flight on a pooled connection.
+     */
+    public static class PendingRequest {
+        private final PeerConnection connection;
+        private final int requestId;
+
+        PendingRequest(PeerConnection connection, int requestId) {
+            this.connection = connection;
+            this.requestId = requestId;
+        }
+
+        /**
+         * Stops the reply. The handler receives no further frames or failures.
+         */
+        public void cancel() {
+            connection.cancel(requestId);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+
+/**
+ * A long-lived, multiplexed connection to one peer. Each request gets its own id and a
+ * {@link ReplyHandler}; a reader thread routes every incoming frame to the handler registered for
+ * its request id, so several requests can be in flight on the connection at once.
+ */
+public class PeerConnection implements Closeable {
+
+    /**
+     * Consumes the reply frames of one request. Called on the connection's reader thread.
+     */
+    public interface ReplyHandler {
+
+        /**
+         * @return true once the reply is complete and the handler can be released
+         */
+        boolean onFrame(Frame frame) throws IOException;
+
+        /**
+         * The request can no longer complete: the connection closed or the handler failed.
+         */
+        void onFailure(IOException cause);
+    }
+
+    private final InetSocketAddress address;
+    private final FrameChannel channel;
+    private final Map<Integer, ReplyHandler> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private volatile long lastUsedNanos = System.nanoTime();
+    private volatile boolean closed;
+    // Makes registering a request and closing an idle connection exclusive
+    private final Object idleLock = new Object();
+    // Used by the reader thread only
+    private final Inflater inflater = new Inflater(true);
+    private final ByteBuffer inflated = FrameCompression.newInflateBuffer();
+
+    private PeerConnection(InetSocketAddress address, SocketChannel socketChannel) {
+        this.address = address;
+        this.channel = new FrameChannel(socketChannel);
+    }
+
+    public static PeerConnection open(InetSocketAddress address, int connectTimeoutMillis) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.socket().connect(address, connectTimeoutMillis);
+            socketChannel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        PeerConnection connection = new PeerConnection(address, socketChannel);
+        Thread reader = new Thread(connection::readLoop, "peer-reader-" + address.getHostString());
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Whether the connection has had no requests in flight for at least {@code idleNanos}.
+     */
+    public boolean isIdle(long idleNanos) {
+        return pending.isEmpty() && System.nanoTime() - lastUsedNanos >= idleNanos;
+    }
+
+    /**
+     * Closes the connection if it has been idle for at least {@code idleNanos}. Unlike checking
+     * {@link #isIdle} first, no request can be sent on it in between.
+     *
+     * @return whether it was closed
+     */
+    public boolean closeIfIdle(long idleNanos) {
+        synchronized (idleLock) {
+            if (!isIdle(idleNanos)) {
+                return false;
+            }
+            closed = true;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Sends a request and registers {@code handler} for its replies.
+     *
+     * @return the request id, which can be passed to {@link #cancel(int)}
+     */
+    public int request(int opcode, Consumer<FrameEncoder> payload, ReplyHandler handler) throws IOException {
+        return request(opcode, 0, payload, handler);
+    }
+
+    /**
+     * Sends a request with {@code flags} set, besides {@link Protocol#FLAG_ACCEPTS_DEFLATE}, and
+     * registers {@code handler} for its replies.
+     */
+    public int request(int opcode, int flags, Consumer<FrameEncoder> payload, ReplyHandler handler) throws IOException {
+        int requestId;
+        synchronized (idleLock) {
+            if (!isOpen()) {
+                throw new EOFException("Connection to " + address + " is closed");
+            }
+            requestId = requestIds.incrementAndGet();
+            lastUsedNanos = System.nanoTime();
+            pending.put(requestId, handler);
+        }
+        try {
+            channel.send(opcode, flags | Protocol.FLAG_ACCEPTS_DEFLATE, requestId, payload);
+            channel.flush();
+        } catch (IOException e) {
+            pending.remove(requestId);
+            close();
+            throw e;
+        }
+        return requestId;
+    }
+
+    /**
+     * Abandons a request: replies are no longer routed to its handler and the peer is asked to stop
+     * sending them. Frames that still arrive for it are dropped.
+     */
+    public void cancel(int requestId) {
+        if (pending.remove(requestId) == null || !isOpen()) {
+            return;
+        }
+        try {
+            channel.send(Protocol.CANCEL, 0, encoder -> encoder.putVarInt(requestId));
+            channel.flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void readLoop() {
+        IOException cause = null;
+        try {
+            while (true) {
+                Frame frame = channel.read();
+                lastUsedNanos = System.nanoTime();
+                int requestId = frame.getRequestId();
+                ReplyHandler handler = pending.get(requestId);
+                if (handler == null) {
+                    continue;
+                }
+                try {
+                    if (frame.hasFlag(Protocol.FLAG_DEFLATED)) {
+                        FrameCompression.inflate(frame.payload(), inflater, inflated);
+                        frame.set(frame.getOpcode(), frame.getFlags() & ~Protocol.FLAG_DEFLATED, requestId, inflated);
+                    }
+                    if (handler.onFrame(frame)) {
+                        pending.remove(requestId);
+                    }
+                } catch (IOException e) {
+                    // Cancelled rather than just dropped, so the peer stops sending the rest
+                    cancel(requestId);
+                    handler.onFailure(e);
+                } catch (BufferUnderflowException e) {
+                    cancel(requestId);
+                    handler.onFailure(new ProtocolException("Truncated reply " + frame));
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+        } finally {
+            closed = true;
+            inflater.end();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            failPending(cause != null ? cause : new EOFException("Connection to " + address + " closed"));
+        }
+    }
+
+    private void failPending(IOException cause) {
+        for (Integer requestId : pending.keySet()) {
+            ReplyHandler handler = pending.remove(requestId);
+            if (handler != null) {
+                handler.onFailure(cause);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Verifies that a reply has the expected opcode, turning error frames into exceptions.
+     */
+    public static void checkReply(Frame reply, int expectedOpcode) throws IOException {
+        if (reply.getOpcode() == Protocol.ERROR) {
+            int code = reply.getVarInt();
+            String message = reply.getString();
+            if (code == Protocol.ERROR_NOT_FOUND) {
+                throw new FileNotFoundException(message);
+            }
+            throw new IOException("Peer error " + code + ": " + message);
+        }
+        if (reply.getOpcode() != expectedOpcode) {
+            throw new ProtocolException("Unexpected reply " + reply);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.example;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the gossip rounds of a node's {@link GossipMembership} over the peer protocol. Each round
+ * the node exchanges samples with {@link #FANOUT} random live nodes, push and pull in one
+ * {@link Protocol#PEERS} request. Seeds are contacted while no other node is known and every
+ * {@link #SEED_ROUNDS} rounds after that, so separate groups of nodes find each other again.
+ */
+class PeerExchange implements Closeable {
+    static final long ROUND_MILLIS = 2000;
+    static final int FANOUT = 3;
+    static final int SAMPLE_SIZE = 32;
+    static final int MAX_MEMBERS = 10_000;
+    static final long FAIL_TIMEOUT_SECONDS = 60;
+    static final int SEED_ROUNDS = 15;
+
+    private final GossipMembership membership;
+    private final List<Seed> seeds = new ArrayList<>();
+    private final PeerClient client;
+    private final ScheduledExecutorService scheduler;
+    private long round;
+
+    PeerExchange(UUID nodeId, ServerConfig config, PeerClient client) {
+        this.membership = new GossipMembership(nodeId, config.getPort(), MAX_MEMBERS,
+                TimeUnit.SECONDS.toNanos(FAIL_TIMEOUT_SECONDS));
+        this.client = client;
+        for (String seed : config.getSeeds()) {
+            seeds.add(Seed.parse(seed));
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peer-gossip");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::runRound, 0, ROUND_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Answers a gossip request: merges the sample received from {@code sender} and returns one of
+     * this node's view.
+     */
+    List<GossipMembership.Member> exchange(List<GossipMembership.Member> received, InetAddress sender) {
+        long now = System.nanoTime();
+        membership.merge(received, sender.getHostAddress(), now);
+        return membership.sample(SAMPLE_SIZE, now);
+    }
+
+    /**
+     * Adds a node found by multicast discovery, so gossip also spreads what it knows.
+     */
+    void observe(NetworkDiscovery.Peer peer) {
+        if (!peer.isSelf()) {
+            membership.observe(peer.getNodeId(), peer.getAddress().getHostAddress(), peer.getPort(), System.nanoTime());
+        }
+    }
+
+    List<GossipMembership.Member> getMembers() {
+        return membership.getMembers();
+    }
+
+    private void runRound() {
+        try {
+            long now = System.nanoTime();
+            membership.tick(now);
+            List<GossipMembership.Member> targets = membership.targets(FANOUT);
+            for (GossipMembership.Member target : targets) {
+                gossip(target.getHost(), target.getPort(), now);
+            }
+            if (!seeds.isEmpty() && (targets.isEmpty() || round % SEED_ROUNDS == 0)) {
+                Seed seed = seeds.get(ThreadLocalRandom.current().nextInt(seeds.size()));
+                gossip(seed.host, seed.port, now);
+            }
+            round++;
+        } catch (RuntimeException e) {
+            // A failed round must not cancel the schedule
+            e.printStackTrace();
+        }
+    }
+
+    private void gossip(String host, int port, long now) {
+        client.exchangePeers(host, port, membership.sample(SAMPLE_SIZE, now)).whenComplete((received, error) -> {
+            // An unreachable node is not reported; it drops out when its heartbeat stops rising
+            if (error == null) {
+                membership.merge(received, host, System.nanoTime());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private static final class Seed {
+        final String host;
+        final int port;
+
+        Seed(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Parses {@code host}, {@code host:port} or {@code [ipv6]:port}.
+         */
+        static Seed parse(String seed) {
+            int colon = seed.lastIndexOf(':');
+            boolean bracketed = seed.startsWith("[");
+            if (colon > 0 && (bracketed ? seed.charAt(colon - 1) == ']' : seed.indexOf(':') == colon)) {
+                String host = seed.substring(bracketed ? 1 : 0, bracketed ? colon - 1 : colon);
+                return new Seed(host, Integer.parseInt(seed.substring(colon + 1)));
+            }
+            String host = bracketed && seed.endsWith("]") ? seed.substring(1, seed.length() - 1) : seed;
+            return new Seed(host, ServerConfig.DEFAULT_PORT);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.example;
+
+/**
+ * Constants of the peer-to-peer wire protocol.
+ *
+ * <p>Every message is a frame with a fixed 12-byte big-endian header followed by the payload:
+ * <pre>
+ *   0  byte   protocol version
+ *   1  byte   opcode
+ *   2  short  flags
+ *   4  int    request id, echoed on every reply frame
+ *   8  int    payload length
+ * </pre>
+ * Strings are encoded as a varint byte length followed by UTF-8 bytes, counts and sizes as
+ * unsigned LEB128 varints. Replies that do not fit in one frame are sent as several frames
+ * terminated by {@link #END}.
+ */
+public final class Protocol {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+    public static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_PAYLOAD_SIZE;
+
+    // Requests
+    /** List the shared files. Replaces the old {@code LIST} and {@code GET_SHARED_FILES} commands. */
+    public static final int LIST = 0x01;
+    /**
+     * Fetch a file by name. Replaces the old {@code GET:<name>} command. The name may be followed by
+     * a varint offset and a varint length to fetch only that range of the file.
+     */
+    public static final int GET = 0x02;
+    /** Describe a file by name without sending it. Answered with {@link #FILE_INFO}. */
+    public static final int STAT = 0x03;
+    /** Abandon a request: varint id of the request whose reply should stop. Has no reply. */
+    public static final int CANCEL = 0x04;
+    /** Fetch the hash tree of a file by name. Answered with {@link #HASH_LEAVES} frames and {@link #END}. */
+    public static final int GET_HASHES = 0x05;
+    /**
+     * Bring a copy of the peer's catalog up to date: varint epoch and varint version of the copy the
+     * client holds, both zero if it holds none. Answered with {@link #CATALOG_HEADER}, then the
+     * listing or the changes it announces, then {@link #END}.
+     */
+    public static final int CATALOG = 0x06;
+    /**
+     * Exchange gossip about live nodes: the sender's sample of its view as in {@link #PEER_LIST}.
+     * Answered with a sample of the receiver's view and {@link #END}.
+     */
+    public static final int PEERS = 0x07;
+    /**
+     * Find shared files by name: the query string, then the varint most results wanted. A name
+     * matches when each word of the query starts a word of the name. Answered with the matches,
+     * ordered by name, as {@link #CATALOG_RECORDS} frames and {@link #END}.
+     */
+    public static final int SEARCH = 0x08;
+    /**
+     * Fetch several files in one reply: varint count, then that many names. Answered per file, in
+     * the order asked, with {@link #FETCH_FILE} and the file's {@link #DATA} frames, or with
+     * {@link #FETCH_SKIPPED}, then {@link #END}.
+     */
+    public static final int FETCH = 0x09;
+    /**
+     * Describe a file by name as block checksums, for a client that has an older copy to bring up
+     * to date. Answered with {@link #SIGNATURES} frames and {@link #END}.
+     */
+    public static final int GET_SIGNATURES = 0x0A;
+
+    // Replies
+    /** A batch of shared file names: varint count, then that many strings. */
+    public static final int LIST_ENTRIES = 0x41;
+    /**
+     * Start of a file body: varint file size, varint offset and varint length of the range that
+     * follows as {@link #DATA} frames, terminated by {@link #END}.
+     */
+    public static final int FILE_HEADER = 0x42;
+    /** Raw file bytes. */
+    public static final int DATA = 0x43;
+    /** Terminates a multi-frame reply. */
+    public static final int END = 0x44;
+    /**
+     * Reply to {@link #STAT}: varint size, varint last-modified time in epoch milliseconds, then a
+     * varint length and the content hash, which is empty while the file is still being hashed.
+     */
+    public static final int FILE_INFO = 0x45;
+    /**
+     * Reply to {@link #GET_HASHES}. The first frame holds the varint file size, varint chunk size,
+     * varint leaf count and the root hash, followed by as many leaf hashes as fit; later frames hold
+     * only leaf hashes.
+     */
+    public static final int HASH_LEAVES = 0x46;
+    /**
+     * Reply to {@link #CATALOG}: one of the {@code CATALOG_*} kinds as a byte, then the varint epoch
+     * and varint version of the catalog the reply brings the client to. A full listing follows as
+     * {@link #CATALOG_RECORDS} frames, changes as {@link #CATALOG_CHANGES} frames.
+     */
+    public static final int CATALOG_HEADER = 0x47;
+    /**
+     * A batch of catalog changes: varint count, then per change a byte, 1 if the file was removed,
+     * followed by its name if it was removed and by its record otherwise. Names are front-coded as
+     * in {@link #CATALOG_RECORDS}.
+     */
+    public static final int CATALOG_CHANGES = 0x48;
+    /**
+     * A batch of catalog records: varint count, then per file its name, varint size, varint
+     * last-modified time in epoch milliseconds, and a varint length and the content hash, which is
+     * empty until the file has been hashed. Each name is front-coded against the one before it in
+     * the frame: the varint number of leading chars it shares with it, then the rest as a string.
+     */
+    public static final int CATALOG_RECORDS = 0x49;
+    /**
+     * A sample of a node's view of the network: varint count, then per node its ID as two longs,
+     * its host as a string, empty in the sender's own record, its varint port and varint heartbeat.
+     */
+    public static final int PEER_LIST = 0x4A;
+    /**
+     * Start of a file in a {@link #FETCH} reply: its name, varint size, varint last-modified time in
+     * epoch milliseconds, and a varint length and the content hash, which is empty while the file
+     * is still being hashed. The whole file follows as {@link #DATA} frames.
+     */
+    public static final int FETCH_FILE = 0x4B;
+    /** A file of a {@link #FETCH} that is not sent: its name, varint error code and a message. */
+    public static final int FETCH_SKIPPED = 0x4C;
+    /**
+     * Reply to {@link #GET_SIGNATURES}. The first frame starts with the varint file size, the varint
+     * block size, and a varint length and the content hash, which is empty while the file is still
+     * being hashed. Every frame then holds a varint count and that many blocks' checksums, in file
+     * order, each a 4-byte rolling checksum and the first 16 bytes of the block's SHA-256.
+     */
+    public static final int SIGNATURES = 0x4D;
+    /** Request failed: varint error code, then a message string. */
+    public static final int ERROR = 0x7F;
+
+    // Flags
+    /**
+     * On a reply frame: the payload is a raw Deflate stream of the actual payload, which is at most
+     * {@link #MAX_PAYLOAD_SIZE} bytes. Sent only in reply to requests with
+     * {@link #FLAG_ACCEPTS_DEFLATE}.
+     */
+    public static final int FLAG_DEFLATED = 0x01;
+    /** On a request: the client can read replies with {@link #FLAG_DEFLATED}. */
+    public static final int FLAG_ACCEPTS_DEFLATE = 0x02;
+    /**
+     * On a {@link #GET} or {@link #FETCH}: the data is for a background transfer, which the server
+     * may serve after interactive ones.
+     */
+    public static final int FLAG_BULK = 0x04;
+
+    // Catalog reply kinds
+    public static final int CATALOG_FULL = 0;
+    public static final int CATALOG_DELTA = 1;
+    public static final int CATALOG_NOT_MODIFIED = 2;
+
+    // Error codes
+    public static final int ERROR_NOT_FOUND = 1;
+    public static final int ERROR_BAD_REQUEST = 2;
+    public static final int ERROR_INTERNAL = 3;
+    /** The server has no free request slots; the client may retry later. */
+    public static final int ERROR_BUSY = 4;
+
+    private Protocol() {
+    }
+}
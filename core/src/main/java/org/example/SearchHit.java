@@ -0,0 +1,56 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file found by a search, with the peers that have it. Peers sharing the same content under the
+ * same name are merged into one hit, so the file can be downloaded from all of them at once.
+ */
+public final class SearchHit {
+    private final FileInfo info;
+    private final List<String> peers;
+
+    SearchHit(FileInfo info, List<String> peers) {
+        this.info = info;
+        this.peers = Collections.unmodifiableList(peers);
+    }
+
+    public FileInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * The addresses of the peers that have the file, in the order they answered.
+     */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Identifies the file across peers: its name with its content hash, or with its size while
+     * the hash is not known yet.
+     */
+    public String getKey() {
+        return key(info);
+    }
+
+    static String key(FileInfo info) {
+        byte[] contentHash = info.getContentHash();
+        return info.getName() + '\0' + (contentHash != null ? MerkleTree.toHex(contentHash) : "size:" + info.getSize());
+    }
+
+    /**
+     * This hit with the peers of {@code other} added.
+     */
+    SearchHit merge(SearchHit other) {
+        List<String> merged = new ArrayList<>(peers);
+        for (String peer : other.peers) {
+            if (!merged.contains(peer)) {
+                merged.add(peer);
+            }
+        }
+        return new SearchHit(info, merged);
+    }
+}
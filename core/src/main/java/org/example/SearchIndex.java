@@ -0,0 +1,113 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Finds shared names by the words in them. Names are split into lower-case tokens at every char
+ * that is not a letter or digit, so {@code docs/Q3-report.pdf} has the tokens {@code docs},
+ * {@code q3}, {@code report} and {@code pdf}. A query matches a name when every query token is the
+ * prefix of one of the name's tokens.
+ *
+ * <p>Tokens are kept in a sorted map, so the names for a prefix are one range of it. Changes must
+ * be serialized by the caller; lookups may run concurrently with them.
+ */
+class SearchIndex {
+    private final NavigableMap<String, Set<String>> namesByToken = new ConcurrentSkipListMap<>();
+
+    void add(String name) {
+        for (String token : tokenize(name)) {
+            namesByToken.computeIfAbsent(token, key -> ConcurrentHashMap.newKeySet()).add(name);
+        }
+    }
+
+    void remove(String name) {
+        for (String token : tokenize(name)) {
+            Set<String> names = namesByToken.get(token);
+            if (names != null) {
+                names.remove(name);
+                if (names.isEmpty()) {
+                    namesByToken.remove(token, names);
+                }
+            }
+        }
+    }
+
+    /**
+     * The names matching {@code query}, sorted, at most {@code limit} of them.
+     */
+    List<String> search(String query, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        // The longest term usually matches the fewest names; the others are checked per name
+        String narrowest = Collections.max(terms, (a, b) -> Integer.compare(a.length(), b.length()));
+        // The first names in order seen so far, the last of them on top; a name with several tokens
+        // starting with the term is kept once
+        PriorityQueue<String> first = new PriorityQueue<>(limit, Comparator.reverseOrder());
+        Set<String> kept = new HashSet<>();
+        for (Map.Entry<String, Set<String>> entry : namesByToken.subMap(narrowest, true, narrowest + Character.MAX_VALUE, true).entrySet()) {
+            for (String name : entry.getValue()) {
+                boolean full = first.size() == limit;
+                if ((full && name.compareTo(first.peek()) >= 0) || kept.contains(name)) {
+                    continue;
+                }
+                if (terms.size() == 1 || matchesAll(tokenize(name), terms)) {
+                    if (full) {
+                        kept.remove(first.poll());
+                    }
+                    first.add(name);
+                    kept.add(name);
+                }
+            }
+        }
+        List<String> sorted = new ArrayList<>(first);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static boolean matchesAll(List<String> tokens, List<String> terms) {
+        for (String term : terms) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(term)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!tokens.contains(token)) {
+                    tokens.add(token);
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
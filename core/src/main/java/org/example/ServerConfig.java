@@ -0,0 +1,247 @@
+package org.example;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits and settings for the peer server. The defaults suit a desktop node; seed nodes can raise
+ * them.
+ */
+public class ServerConfig {
+    public static final int DEFAULT_PORT = 8888;
+
+    private int port = DEFAULT_PORT;
+    private int maxConnections = 4096;
+    private int workerThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private int maxQueuedRequests = 1024;
+    private int maxRequestsPerConnection = 32;
+    private long idleTimeoutMillis = 120_000;
+    private List<String> seeds = parseSeeds(System.getProperty("p2p.seeds", ""));
+    private long uploadBytesPerSecond;
+    private long downloadBytesPerSecond;
+    private int maxUploads = 16;
+    private int maxUploadsPerPeer = 4;
+    private int maxDownloads = 3;
+    private int maxDownloadRequestsPerPeer = 8;
+    private long fileCacheBytes = 64L * 1024 * 1024;
+    private long maxCachedFileBytes = 8L * 1024 * 1024;
+    private Path stateDirectory;
+    private int metricsPort;
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Connections beyond this limit wait in the listen backlog until a slot frees up.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public ServerConfig setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Threads that prepare replies. Socket I/O itself runs on a single selector thread.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public ServerConfig setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * Requests waiting for a worker beyond this limit are refused with {@link Protocol#ERROR_BUSY}.
+     */
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public ServerConfig setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    /**
+     * Once a connection has this many unfinished replies the server stops reading from it.
+     */
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public ServerConfig setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        return this;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public ServerConfig setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Nodes to gossip with when no other node is known, as {@code host} or {@code host:port}. They
+     * join nodes on subnets that multicast discovery does not reach. Defaults to the comma-separated
+     * list in the {@code p2p.seeds} system property.
+     */
+    public List<String> getSeeds() {
+        return seeds;
+    }
+
+    public ServerConfig setSeeds(List<String> seeds) {
+        this.seeds = List.copyOf(seeds);
+        return this;
+    }
+
+    /**
+     * Limit on the rate of all uploads together, in bytes per second, or 0 for no limit.
+     */
+    public long getUploadBytesPerSecond() {
+        return uploadBytesPerSecond;
+    }
+
+    public ServerConfig setUploadBytesPerSecond(long uploadBytesPerSecond) {
+        this.uploadBytesPerSecond = uploadBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Limit on the rate of all downloads together, in bytes per second, or 0 for no limit.
+     */
+    public long getDownloadBytesPerSecond() {
+        return downloadBytesPerSecond;
+    }
+
+    public ServerConfig setDownloadBytesPerSecond(long downloadBytesPerSecond) {
+        this.downloadBytesPerSecond = downloadBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * File ranges served at once. Further range requests wait for a slot, interactive ones first.
+     */
+    public int getMaxUploads() {
+        return maxUploads;
+    }
+
+    public ServerConfig setMaxUploads(int maxUploads) {
+        this.maxUploads = maxUploads;
+        return this;
+    }
+
+    /**
+     * File ranges served at once to any one peer, so one peer cannot take every upload slot.
+     */
+    public int getMaxUploadsPerPeer() {
+        return maxUploadsPerPeer;
+    }
+
+    public ServerConfig setMaxUploadsPerPeer(int maxUploadsPerPeer) {
+        this.maxUploadsPerPeer = maxUploadsPerPeer;
+        return this;
+    }
+
+    /**
+     * Downloads running at once. Further downloads are queued, interactive ones first.
+     */
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public ServerConfig setMaxDownloads(int maxDownloads) {
+        this.maxDownloads = maxDownloads;
+        return this;
+    }
+
+    /**
+     * Chunk requests in flight to any one peer, across all downloads.
+     */
+    public int getMaxDownloadRequestsPerPeer() {
+        return maxDownloadRequestsPerPeer;
+    }
+
+    public ServerConfig setMaxDownloadRequestsPerPeer(int maxDownloadRequestsPerPeer) {
+        this.maxDownloadRequestsPerPeer = maxDownloadRequestsPerPeer;
+        return this;
+    }
+
+    /**
+     * Direct memory for serving popular files from, or 0 to always read from disk.
+     */
+    public long getFileCacheBytes() {
+        return fileCacheBytes;
+    }
+
+    public ServerConfig setFileCacheBytes(long fileCacheBytes) {
+        this.fileCacheBytes = fileCacheBytes;
+        return this;
+    }
+
+    /**
+     * Files larger than this are never cached. Large files are streamed from disk with sendfile,
+     * which costs little.
+     */
+    public long getMaxCachedFileBytes() {
+        return maxCachedFileBytes;
+    }
+
+    public ServerConfig setMaxCachedFileBytes(long maxCachedFileBytes) {
+        this.maxCachedFileBytes = maxCachedFileBytes;
+        return this;
+    }
+
+    /**
+     * Where the node keeps what it shares, with the content hashes, so a restart shares the same
+     * files again without hashing them anew. Null, the default, keeps nothing.
+     */
+    public Path getStateDirectory() {
+        return stateDirectory;
+    }
+
+    public ServerConfig setStateDirectory(Path stateDirectory) {
+        this.stateDirectory = stateDirectory;
+        return this;
+    }
+
+    /**
+     * Local port for Prometheus to scrape the node's metrics from, on the loopback address only, or
+     * 0, the default, to serve none. The metrics are always available over JMX.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    /**
+     * Parses a comma-separated list of seeds.
+     */
+    static List<String> parseSeeds(String value) {
+        List<String> seeds = new ArrayList<>();
+        for (String seed : value.split(",")) {
+            if (!seed.isBlank()) {
+                seeds.add(seed.trim());
+            }
+        }
+        return List.copyOf(seeds);
+    }
+}
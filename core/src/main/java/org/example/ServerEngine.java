@@ -0,0 +1,935 @@
+package org.example;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking server core. One selector thread accepts connections, decodes request frames and
+ * writes replies; a fixed pool of worker threads prepares the replies. File bodies are streamed by
+ * the selector thread with {@link FileChannel#transferTo} as the socket becomes writable, so a slow
+ * reader costs a queued reply rather than a thread.
+ *
+ * <p>Replies to different requests on one connection are interleaved frame by frame, so a large
+ * download does not hold up a listing sent on the same connection. A client can abandon a reply
+ * with {@link Protocol#CANCEL}.
+ *
+ * <p>Resource use is bounded by {@link ServerConfig}: past {@code maxConnections} the server stops
+ * accepting, past {@code maxRequestsPerConnection} unfinished replies it stops reading from that
+ * connection, and requests that find the worker queue full are refused with
+ * {@link Protocol#ERROR_BUSY}.
+ */
+public class ServerEngine {
+    private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    // Error messages often echo a name from the request, which may be as long as the request
+    private static final int MAX_ERROR_MESSAGE_LENGTH = 1024;
+    private static final ThreadLocal<FrameEncoder> SCRATCH_ENCODER =
+            ThreadLocal.withInitial(() -> new FrameEncoder(ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE)));
+
+    /**
+     * Turns a decoded request into work. Called on the selector thread, so it must read everything
+     * it needs from the frame before returning and must not block.
+     */
+    public interface RequestHandler {
+
+        /**
+         * @return the work that produces the reply on a worker thread, or null if the handler
+         * already replied or will {@link ServerEngine#submit} the work later
+         */
+        Task handle(Frame request, Reply reply) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * Holds back the frames of a reply, such as to keep uploads to a rate.
+     */
+    @FunctionalInterface
+    public interface Pacer {
+
+        /**
+         * @return a future completed once a frame of {@code bytes} may be written
+         */
+        CompletableFuture<Void> reserve(long bytes);
+    }
+
+    /**
+     * The reply stream of one request. Every reply must finish with {@link #end()} or
+     * {@link #sendError}; frames sent after that are dropped.
+     */
+    public interface Reply {
+
+        void send(int opcode, int flags, Consumer<FrameEncoder> payload);
+
+        default void send(int opcode, Consumer<FrameEncoder> payload) {
+            send(opcode, 0, payload);
+        }
+
+        /**
+         * Queues {@code count} bytes of {@code file} as {@link Protocol#DATA} frames. The reply takes
+         * ownership of the channel and closes it once the bytes are sent.
+         */
+        void sendFile(FileChannel file, long position, long count);
+
+        /**
+         * Queues the remaining bytes of {@code data} as {@link Protocol#DATA} frames, written from
+         * the buffer without copying. The bytes must not change until the reply is finished.
+         */
+        void sendData(ByteBuffer data);
+
+        /**
+         * Sends {@link Protocol#END} and finishes the reply.
+         */
+        void end();
+
+        /**
+         * Sends an {@link Protocol#ERROR} frame and finishes the reply.
+         */
+        void sendError(int code, String message);
+
+        boolean isEnded();
+
+        /**
+         * Runs {@code listener} once the reply is finished: written out in full, cancelled by the
+         * client or dropped with its connection. Runs at once if it already is. The listener runs
+         * with the connection locked, so it must be quick and must not use the reply.
+         */
+        void whenFinished(Runnable listener);
+
+        /**
+         * Address of the peer that sent the request.
+         */
+        InetSocketAddress getRemoteAddress();
+
+        /**
+         * Makes each frame of the reply wait for {@code pacer} before it is written, so the reply
+         * is charged as it goes out rather than all at once. Other replies on the connection are
+         * written meanwhile.
+         */
+        void pace(Pacer pacer);
+    }
+
+    private final ServerConfig config;
+    private final RequestHandler handler;
+    private final Metrics metrics;
+    private final ThreadPoolExecutor workers;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    public ServerEngine(ServerConfig config, RequestHandler handler) {
+        this(config, handler, new Metrics());
+    }
+
+    public ServerEngine(ServerConfig config, RequestHandler handler, Metrics metrics) {
+        this.config = config;
+        this.handler = handler;
+        this.metrics = metrics;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.getMaxQueuedRequests()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "p2p-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        running = true;
+        selectorThread = new Thread(this::run, "p2p-selector");
+        selectorThread.start();
+    }
+
+    /**
+     * Stops accepting, closes every connection and waits for running replies to finish.
+     */
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (selectorThread != null) {
+            try {
+                selectorThread.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public int getQueuedRequestCount() {
+        return workers.getQueue().size();
+    }
+
+    public int getActiveWorkerCount() {
+        return workers.getActiveCount();
+    }
+
+    public int getWorkerThreadCount() {
+        return workers.getPoolSize();
+    }
+
+    private void run() {
+        long lastIdleCheck = System.nanoTime();
+        try {
+            while (running) {
+                if (pendingWrites.isEmpty()) {
+                    selector.select(SELECT_TIMEOUT_MILLIS);
+                } else {
+                    selector.selectNow();
+                }
+                processPendingWrites();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key == acceptKey) {
+                        accept();
+                    } else {
+                        processConnection(key);
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastIdleCheck >= TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS)) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while (connections.size() < config.getMaxConnections() && (channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+                connectionCount.incrementAndGet();
+                metrics.connectionsAccepted.increment();
+            } catch (IOException e) {
+                channel.close();
+                e.printStackTrace();
+            }
+        }
+        if (connections.size() >= config.getMaxConnections()) {
+            // Leave further clients in the listen backlog until a connection closes
+            acceptKey.interestOps(0);
+        }
+    }
+
+    private void processConnection(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (EOFException e) {
+            connection.close();
+        } catch (IOException | CancelledKeyException e) {
+            if (running && connection.channel.isOpen()) {
+                System.err.println("Closing connection " + connection.remoteAddress + ": " + e.getMessage());
+            }
+            connection.close();
+        } catch (RuntimeException e) {
+            // Only this connection is lost, not the server
+            e.printStackTrace();
+            connection.close();
+        }
+    }
+
+    private void processPendingWrites() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            synchronized (connection) {
+                connection.writeRequested = false;
+            }
+            if (connection.closed) {
+                continue;
+            }
+            try {
+                connection.write();
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                connection.close();
+            }
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (connection.isIdle(now, idleNanos)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Runs {@code task} on a worker to produce {@code reply}. For handlers that return null and
+     * start the work later, once whatever it waits for is ready.
+     */
+    public void submit(Reply reply, Task task) {
+        long queuedNanos = System.nanoTime();
+        try {
+            workers.execute(() -> {
+                metrics.queueWait.recordNanos(System.nanoTime() - queuedNanos);
+                runTask(task, reply);
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.requestsRejected.increment();
+            reply.sendError(Protocol.ERROR_BUSY, "Server busy");
+        }
+    }
+
+    private void runTask(Task task, Reply reply) {
+        try {
+            task.run();
+        } catch (IOException | RuntimeException e) {
+            if (!reply.isEnded()) {
+                reply.sendError(Protocol.ERROR_INTERNAL, String.valueOf(e.getMessage()));
+            }
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Server side of one client connection. Reading, writing and closing happen on the selector
+     * thread; workers only append to reply streams, under the connection's monitor.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final InetSocketAddress remoteAddress;
+        final FrameDecoder decoder = new FrameDecoder(INITIAL_READ_BUFFER_SIZE);
+        final Frame frame = new Frame();
+        // Streams with frames ready to write, in round-robin order; guarded by this
+        final ArrayDeque<ReplyStream> ready = new ArrayDeque<>();
+        // Replies that have not finished, by request id; guarded by this
+        final Map<Integer, ReplyStream> streams = new HashMap<>();
+        // Stream whose frame is partially written and must be finished before switching
+        ReplyStream current;
+        int unfinishedReplies;
+        boolean writeRequested;
+        SelectionKey key;
+        boolean readPaused;
+        long lastActivityNanos = System.nanoTime();
+        volatile boolean closed;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        void read() throws IOException {
+            int count = channel.read(decoder.buffer());
+            if (count < 0) {
+                throw new EOFException();
+            }
+            metrics.bytesReceived.add(count);
+            lastActivityNanos = System.nanoTime();
+            decodeRequests();
+        }
+
+        private void decodeRequests() throws IOException {
+            while (!readPaused && decoder.next(frame)) {
+                dispatch();
+                synchronized (this) {
+                    if (unfinishedReplies >= config.getMaxRequestsPerConnection()) {
+                        readPaused = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                }
+            }
+        }
+
+        private void dispatch() throws IOException {
+            metrics.requests.increment(frame.getOpcode());
+            if (frame.getOpcode() == Protocol.CANCEL) {
+                cancel(frame.getVarInt());
+                return;
+            }
+            ReplyStream reply = new ReplyStream(this, frame.getRequestId());
+            boolean duplicate;
+            synchronized (this) {
+                unfinishedReplies++;
+                duplicate = streams.putIfAbsent(reply.requestId, reply) != null;
+            }
+            if (duplicate) {
+                // The reply in progress keeps the id; this one is answered without being registered
+                reply.sendError(Protocol.ERROR_BAD_REQUEST, "Request id " + reply.requestId + " is already in use");
+                return;
+            }
+            Task task;
+            try {
+                task = handler.handle(frame, reply);
+            } catch (IOException e) {
+                reply.sendError(Protocol.ERROR_BAD_REQUEST, String.valueOf(e.getMessage()));
+                return;
+            } catch (RuntimeException e) {
+                // A request the handler did not expect must not take the selector thread down
+                System.err.println("Bad request from " + remoteAddress + ": " + e);
+                reply.sendError(Protocol.ERROR_BAD_REQUEST, String.valueOf(e.getMessage()));
+                return;
+            }
+            if (task != null) {
+                submit(reply, task);
+            }
+        }
+
+        /**
+         * Writes queued frames until the socket is full or nothing is left, switching between reply
+         * streams at frame boundaries.
+         */
+        void write() throws IOException {
+            while (true) {
+                ReplyStream stream;
+                Outbound item;
+                synchronized (this) {
+                    if (current == null) {
+                        current = ready.poll();
+                    }
+                    if (current == null) {
+                        break;
+                    }
+                    stream = current;
+                    item = stream.queue.peek();
+                    if (stream.pacer != null && !stream.frameReserved && !reserveFrame(stream, item)) {
+                        current = null;
+                        continue;
+                    }
+                }
+                long writtenBefore = item.written;
+                int status = item.writeTo(channel);
+                metrics.bytesSent.add(item.written - writtenBefore);
+                if (status == Outbound.BLOCKED) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                lastActivityNanos = System.nanoTime();
+                synchronized (this) {
+                    stream.frameReserved = false;
+                    if (status == Outbound.COMPLETE) {
+                        stream.queue.poll();
+                        item.release();
+                        if (item.last) {
+                            finish(stream);
+                        }
+                    }
+                    current = null;
+                    if (stream.cancelled) {
+                        stream.releaseAll();
+                        finish(stream);
+                    }
+                    if (stream.queue.isEmpty()) {
+                        stream.scheduled = false;
+                    } else {
+                        ready.add(stream);
+                    }
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            resumeReading();
+        }
+
+        /**
+         * Reserves the next frame of a paced stream. Called at a frame boundary with this
+         * connection's monitor held.
+         *
+         * @return false if the stream must wait for the reservation; it is scheduled again once
+         *         it is granted
+         */
+        private boolean reserveFrame(ReplyStream stream, Outbound item) {
+            stream.frameReserved = true;
+            long bytes = item.nextFrameBytes();
+            if (bytes == 0) {
+                return true;
+            }
+            CompletableFuture<Void> reserved = stream.pacer.reserve(bytes);
+            if (reserved.isDone()) {
+                return true;
+            }
+            stream.scheduled = false;
+            stream.paced = true;
+            reserved.whenComplete((granted, error) -> stream.resumePaced());
+            return false;
+        }
+
+        /**
+         * Stops a reply the client no longer wants. A frame that is partly written is finished first
+         * so the client can keep decoding the connection.
+         */
+        private synchronized void cancel(int requestId) {
+            ReplyStream stream = streams.get(requestId);
+            if (stream == null) {
+                return;
+            }
+            stream.cancelled = true;
+            stream.ended = true;
+            if (stream != current) {
+                stream.releaseAll();
+                ready.remove(stream);
+                stream.scheduled = false;
+                finish(stream);
+            }
+        }
+
+        // Called with this connection's monitor held
+        private void finish(ReplyStream stream) {
+            if (!stream.finished) {
+                stream.finished = true;
+                unfinishedReplies--;
+                streams.remove(stream.requestId, stream);
+                if (stream.finishListeners != null) {
+                    for (Runnable listener : stream.finishListeners) {
+                        listener.run();
+                    }
+                    stream.finishListeners = null;
+                }
+            }
+        }
+
+        private void resumeReading() throws IOException {
+            synchronized (this) {
+                if (!readPaused || unfinishedReplies >= config.getMaxRequestsPerConnection()) {
+                    return;
+                }
+                readPaused = false;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            decodeRequests();
+        }
+
+        /**
+         * Called by reply streams, from any thread, when they have new frames.
+         */
+        void requestWrite() {
+            synchronized (this) {
+                if (writeRequested || closed) {
+                    return;
+                }
+                writeRequested = true;
+            }
+            pendingWrites.add(this);
+            if (Thread.currentThread() != selectorThread) {
+                selector.wakeup();
+            }
+        }
+
+        synchronized boolean isIdle(long now, long idleNanos) {
+            return unfinishedReplies == 0 && now - lastActivityNanos >= idleNanos;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (current != null) {
+                    current.releaseAll();
+                }
+                for (ReplyStream stream : new ArrayList<>(streams.values())) {
+                    finish(stream);
+                }
+                for (ReplyStream stream : ready) {
+                    stream.releaseAll();
+                }
+                ready.clear();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (connections.remove(this)) {
+                connectionCount.decrementAndGet();
+            }
+            if (running && acceptKey.isValid() && acceptKey.interestOps() == 0) {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+    }
+
+    private class ReplyStream implements Reply {
+        final Connection connection;
+        final int requestId;
+        // Guarded by the connection
+        final ArrayDeque<Outbound> queue = new ArrayDeque<>();
+        boolean scheduled;
+        boolean ended;
+        boolean cancelled;
+        boolean finished;
+        List<Runnable> finishListeners;
+        Pacer pacer;
+        // The next frame of a paced stream has been reserved
+        boolean frameReserved;
+        // Waiting for a reservation, so not to be scheduled
+        boolean paced;
+
+        ReplyStream(Connection connection, int requestId) {
+            this.connection = connection;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void send(int opcode, int flags, Consumer<FrameEncoder> payload) {
+            enqueue(new BufferOutbound(encode(opcode, flags, payload)), false);
+        }
+
+        @Override
+        public void sendFile(FileChannel file, long position, long count) {
+            enqueue(new FileOutbound(requestId, file, position, count), false);
+        }
+
+        @Override
+        public void sendData(ByteBuffer data) {
+            enqueue(new DataOutbound(requestId, data.slice()), false);
+        }
+
+        @Override
+        public void end() {
+            enqueue(new BufferOutbound(encode(Protocol.END, 0, null)), true);
+        }
+
+        @Override
+        public void sendError(int code, String message) {
+            String text = String.valueOf(message);
+            String bounded = text.length() > MAX_ERROR_MESSAGE_LENGTH
+                    ? text.substring(0, MAX_ERROR_MESSAGE_LENGTH) + "..."
+                    : text;
+            enqueue(new BufferOutbound(encode(Protocol.ERROR, 0,
+                    encoder -> encoder.putVarInt(code).putString(bounded))), true);
+        }
+
+        @Override
+        public boolean isEnded() {
+            synchronized (connection) {
+                return ended;
+            }
+        }
+
+        @Override
+        public void whenFinished(Runnable listener) {
+            synchronized (connection) {
+                if (!finished) {
+                    if (finishListeners == null) {
+                        finishListeners = new ArrayList<>();
+                    }
+                    finishListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return connection.remoteAddress;
+        }
+
+        @Override
+        public void pace(Pacer pacer) {
+            synchronized (connection) {
+                this.pacer = pacer;
+            }
+        }
+
+        void resumePaced() {
+            synchronized (connection) {
+                paced = false;
+                if (finished || queue.isEmpty() || scheduled) {
+                    return;
+                }
+                scheduled = true;
+                connection.ready.add(this);
+            }
+            connection.requestWrite();
+        }
+
+        private ByteBuffer encode(int opcode, int flags, Consumer<FrameEncoder> payload) {
+            FrameEncoder encoder = SCRATCH_ENCODER.get();
+            ByteBuffer scratch = encoder.buffer();
+            encoder.reset();
+            try {
+                encoder.beginFrame(opcode, flags, requestId);
+                if (payload != null) {
+                    payload.accept(encoder);
+                }
+                encoder.endFrame();
+                scratch.flip();
+                ByteBuffer frame = ByteBuffer.allocate(scratch.remaining());
+                frame.put(scratch).flip();
+                return frame;
+            } finally {
+                // A payload that overflowed must not leave the thread's encoder mid-frame
+                encoder.reset();
+            }
+        }
+
+        private void enqueue(Outbound item, boolean last) {
+            synchronized (connection) {
+                if (ended || connection.closed) {
+                    item.release();
+                    return;
+                }
+                item.last = last;
+                ended = last;
+                queue.add(item);
+                if (!scheduled && !paced) {
+                    scheduled = true;
+                    connection.ready.add(this);
+                }
+            }
+            connection.requestWrite();
+        }
+
+        void releaseAll() {
+            for (Outbound item : queue) {
+                item.release();
+            }
+            queue.clear();
+        }
+    }
+
+    /**
+     * A unit of reply data. Streams only switch at the boundaries this reports.
+     */
+    private abstract static class Outbound {
+        /** The socket is full in the middle of a frame. */
+        static final int BLOCKED = 0;
+        /** A frame was finished and more remain. */
+        static final int BOUNDARY = 1;
+        /** Everything was written. */
+        static final int COMPLETE = 2;
+
+        boolean last;
+        // Bytes written to the socket so far
+        long written;
+
+        abstract int writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * Size of the frame the next write starts, or 0 if nothing is left. Only asked at a frame
+         * boundary.
+         */
+        abstract long nextFrameBytes();
+
+        void release() {
+        }
+    }
+
+    private static class BufferOutbound extends Outbound {
+        private final ByteBuffer buffer;
+
+        BufferOutbound(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        int writeTo(SocketChannel channel) throws IOException {
+            written += channel.write(buffer);
+            return buffer.hasRemaining() ? BLOCKED : COMPLETE;
+        }
+
+        @Override
+        long nextFrameBytes() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Bytes in memory sent as {@link Protocol#DATA} frames, each written together with its header
+     * straight from the buffer.
+     */
+    private static class DataOutbound extends Outbound {
+        private final int requestId;
+        private final ByteBuffer data;
+        private final ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+        private final ByteBuffer[] frame = {header, ByteBuffer.allocate(0)};
+
+        DataOutbound(int requestId, ByteBuffer data) {
+            this.requestId = requestId;
+            this.data = data;
+            header.flip();
+        }
+
+        @Override
+        int writeTo(SocketChannel channel) throws IOException {
+            if (!header.hasRemaining() && !frame[1].hasRemaining()) {
+                if (!data.hasRemaining()) {
+                    return COMPLETE;
+                }
+                int length = Math.min(Protocol.MAX_PAYLOAD_SIZE, data.remaining());
+                frame[1] = data.slice().limit(length);
+                data.position(data.position() + length);
+                header.clear();
+                FrameEncoder.putHeader(header, Protocol.DATA, 0, requestId, length);
+                header.flip();
+            }
+            written += channel.write(frame);
+            if (header.hasRemaining() || frame[1].hasRemaining()) {
+                return BLOCKED;
+            }
+            return data.hasRemaining() ? BOUNDARY : COMPLETE;
+        }
+
+        @Override
+        long nextFrameBytes() {
+            return data.hasRemaining() ? Protocol.HEADER_SIZE + Math.min(Protocol.MAX_PAYLOAD_SIZE, data.remaining()) : 0;
+        }
+    }
+
+    /**
+     * File bytes sent as {@link Protocol#DATA} frames straight from the file channel to the socket.
+     */
+    private static class FileOutbound extends Outbound {
+        private final int requestId;
+        private final FileChannel file;
+        private final long end;
+        private final ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+        private long position;
+        private int chunkRemaining;
+
+        FileOutbound(int requestId, FileChannel file, long position, long count) {
+            this.requestId = requestId;
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+            header.flip();
+        }
+
+        @Override
+        int writeTo(SocketChannel channel) throws IOException {
+            if (chunkRemaining == 0 && !header.hasRemaining()) {
+                if (position >= end) {
+                    return COMPLETE;
+                }
+                chunkRemaining = (int) Math.min(Protocol.MAX_PAYLOAD_SIZE, end - position);
+                header.clear();
+                FrameEncoder.putHeader(header, Protocol.DATA, 0, requestId, chunkRemaining);
+                header.flip();
+            }
+            if (header.hasRemaining()) {
+                written += channel.write(header);
+                if (header.hasRemaining()) {
+                    return BLOCKED;
+                }
+            }
+            while (chunkRemaining > 0) {
+                long sent = file.transferTo(position, chunkRemaining, channel);
+                if (sent == 0) {
+                    if (position >= file.size()) {
+                        // The client cannot resynchronise after a short frame
+                        throw new ProtocolException("File truncated during transfer");
+                    }
+                    return BLOCKED;
+                }
+                position += sent;
+                chunkRemaining -= sent;
+                written += sent;
+            }
+            return position >= end ? COMPLETE : BOUNDARY;
+        }
+
+        @Override
+        long nextFrameBytes() {
+            return position < end ? Protocol.HEADER_SIZE + Math.min(Protocol.MAX_PAYLOAD_SIZE, end - position) : 0;
+        }
+
+        @Override
+        void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps what a node shares across restarts: the shared directories, and for every shared file its
+ * name, size, modification time and hash tree. The state lives in a snapshot, written whole from
+ * time to time, and a log of the changes since, appended to as they happen.
+ *
+ * <p>The snapshot lists files sorted by path, each name and path stored as the length of the
+ * prefix it has in common with the previous one and the rest, so a tree of files takes little
+ * more than their names. Both files are sequences of records
+ * with a length and a CRC-32, so a record torn by a crash is recognized and dropped together with
+ * anything after it.
+ *
+ * <p>Once the log outgrows the snapshot, a new snapshot is written on a background thread from the
+ * node's current state and the log starts over.
+ */
+final class ShareStore implements Closeable {
+    private static final String SNAPSHOT_FILE = "shares.snapshot";
+    private static final String LOG_FILE = "shares.log";
+    private static final int MAGIC = 0x50325053; // "P2PS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final long MIN_COMPACTION_LOG_BYTES = 4L * 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte FILE_SHARED = 1;
+    private static final byte FILE_REMOVED = 2;
+    private static final byte DIRECTORY_SHARED = 3;
+    private static final byte DIRECTORY_REMOVED = 4;
+
+    private final Path directory;
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Supplier<State> currentState;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "share-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel log;
+    private long logBytes;
+    private long snapshotBytes;
+    private boolean compactionPending;
+    private boolean closed;
+
+    /**
+     * @param directory where the snapshot and log are kept; created if missing
+     * @param currentState the node's state, written as the next snapshot. It is called with the
+     *        store locked, so no change is logged while it runs.
+     */
+    ShareStore(Path directory, Supplier<State> currentState) {
+        this.directory = directory;
+        this.snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        this.logFile = directory.resolve(LOG_FILE);
+        this.currentState = currentState;
+    }
+
+    /**
+     * Reads the snapshot and replays the log over it. A torn record at the end of the log is cut
+     * off so later changes are appended after the last whole one.
+     */
+    synchronized State load() throws IOException {
+        State state = new State();
+        Files.createDirectories(directory);
+        try {
+            // Read rather than mapped: a mapping lives until it is collected, and on Windows it
+            // keeps compactions from replacing the file
+            ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+            snapshotBytes = contents.capacity();
+            if (hasHeader(contents)) {
+                readRecords(contents, true, state);
+            }
+        } catch (NoSuchFileException e) {
+            snapshotBytes = 0;
+        }
+        if (log != null) {
+            log.close();
+        }
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // The log is truncated by compactions, so it is read into memory rather than mapped
+        ByteBuffer contents = ByteBuffer.allocate((int) Math.min(log.size(), Integer.MAX_VALUE));
+        while (contents.hasRemaining() && log.read(contents, contents.position()) >= 0) {
+            // Reads the whole file
+        }
+        contents.flip();
+        long end = hasHeader(contents) ? readRecords(contents, false, state) : 0;
+        if (end == 0) {
+            startLog();
+        } else {
+            log.truncate(end);
+            log.position(end);
+            logBytes = end;
+        }
+        return state;
+    }
+
+    private static boolean hasHeader(ByteBuffer data) {
+        return data.remaining() >= HEADER_SIZE && data.getInt(0) == MAGIC && data.getInt(Integer.BYTES) == FORMAT_VERSION;
+    }
+
+    private void startLog() throws IOException {
+        log.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        while (header.hasRemaining()) {
+            log.write(header, header.position());
+        }
+        log.position(HEADER_SIZE);
+        logBytes = HEADER_SIZE;
+    }
+
+    /**
+     * Applies the records after the header to {@code state}.
+     *
+     * @param frontCoded whether names and paths are stored relative to the previous record's
+     * @return the offset after the last whole record
+     */
+    private static long readRecords(ByteBuffer data, boolean frontCoded, State state) {
+        int position = HEADER_SIZE;
+        byte[] previousName = EMPTY;
+        byte[] previousPath = EMPTY;
+        CRC32 crc = new CRC32();
+        while (data.limit() - position >= RECORD_HEADER_SIZE) {
+            int length = data.getInt(position);
+            int checksum = data.getInt(position + Integer.BYTES);
+            int start = position + RECORD_HEADER_SIZE;
+            if (length <= 0 || length > data.limit() - start) {
+                break;
+            }
+            ByteBuffer body = data.duplicate().position(start).limit(start + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            try {
+                byte type = body.get();
+                if (type == FILE_SHARED) {
+                    byte[] name = getPrefixed(body, frontCoded ? previousName : EMPTY);
+                    byte[] path = getPrefixed(body, frontCoded ? previousPath : EMPTY);
+                    FileRecord record = readFile(body, name, path);
+                    state.files.put(record.file, record);
+                    previousName = name;
+                    previousPath = path;
+                } else if (type == FILE_REMOVED) {
+                    state.files.remove(new File(getString(body)));
+                } else if (type == DIRECTORY_SHARED) {
+                    state.directories.add(new File(getString(body)));
+                } else if (type == DIRECTORY_REMOVED) {
+                    state.directories.remove(new File(getString(body)));
+                }
+                // Unknown record types come from a newer version and are skipped
+            } catch (RuntimeException e) {
+                System.err.println("Skipping a malformed record in the share store: " + e);
+            }
+            position = start + length;
+        }
+        return position;
+    }
+
+    private static FileRecord readFile(ByteBuffer body, byte[] name, byte[] path) {
+        long size = getVarLong(body);
+        long lastModified = body.getLong();
+        byte[] root = null;
+        byte[] leaves = null;
+        if (body.get() != 0) {
+            root = new byte[MerkleTree.HASH_SIZE];
+            body.get(root);
+            int leafCount = (int) getVarLong(body);
+            if (leafCount != MerkleTree.chunkCount(size)) {
+                throw new IllegalArgumentException("Hash tree does not fit a file of " + size + " bytes");
+            }
+            if (leafCount > 1) {
+                leaves = new byte[leafCount * MerkleTree.HASH_SIZE];
+                body.get(leaves);
+            }
+        }
+        return new FileRecord(new File(new String(path, StandardCharsets.UTF_8)),
+                new FileInfo(new String(name, StandardCharsets.UTF_8), size, lastModified, root), leaves);
+    }
+
+    /**
+     * Logs files that were shared, or hashed since.
+     */
+    synchronized void filesShared(Collection<FileRecord> records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (FileRecord record : records) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writeFile(body, record, EMPTY, EMPTY);
+            putRecord(out, body);
+        }
+        append(out);
+    }
+
+    synchronized void filesRemoved(Collection<File> files) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (File file : files) {
+            putRecord(out, pathRecord(FILE_REMOVED, file));
+        }
+        append(out);
+    }
+
+    synchronized void directoryShared(File directory) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        putRecord(out, pathRecord(DIRECTORY_SHARED, directory));
+        append(out);
+    }
+
+    synchronized void directoryRemoved(File directory) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        putRecord(out, pathRecord(DIRECTORY_REMOVED, directory));
+        append(out);
+    }
+
+    private static ByteArrayOutputStream pathRecord(byte type, File path) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(type);
+        putPrefixed(body, EMPTY, path.getPath().getBytes(StandardCharsets.UTF_8));
+        return body;
+    }
+
+    private void append(ByteArrayOutputStream records) {
+        if (closed || records.size() == 0) {
+            return;
+        }
+        try {
+            if (log == null) {
+                // Changes made before the state was loaded
+                Files.createDirectories(directory);
+                log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                if (log.size() < HEADER_SIZE) {
+                    startLog();
+                } else {
+                    logBytes = log.size();
+                    log.position(logBytes);
+                }
+            }
+            ByteBuffer data = ByteBuffer.wrap(records.toByteArray());
+            while (data.hasRemaining()) {
+                log.write(data);
+            }
+            logBytes += data.limit();
+        } catch (IOException e) {
+            System.err.println("Could not record shared files in " + logFile + ": " + e.getMessage());
+            return;
+        }
+        if (!compactionPending && logBytes > Math.max(MIN_COMPACTION_LOG_BYTES, snapshotBytes)) {
+            compactionPending = true;
+            try {
+                compactor.execute(() -> {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile
+            }
+        }
+    }
+
+    /**
+     * Writes the node's current state as the snapshot and empties the log.
+     */
+    synchronized void compact() throws IOException {
+        compactionPending = false;
+        if (closed) {
+            return;
+        }
+        State state = currentState.get();
+        List<FileRecord> files = new ArrayList<>(state.files.values());
+        files.sort(Comparator.comparing(record -> record.file.getPath()));
+        Path temporary = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        long written = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(WRITE_BUFFER_SIZE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION);
+            out.write(header.array(), 0, HEADER_SIZE);
+            for (File directory : state.directories) {
+                putRecord(out, pathRecord(DIRECTORY_SHARED, directory));
+            }
+            byte[] previousName = EMPTY;
+            byte[] previousPath = EMPTY;
+            for (FileRecord record : files) {
+                byte[] name = record.info.getName().getBytes(StandardCharsets.UTF_8);
+                byte[] path = record.file.getPath().getBytes(StandardCharsets.UTF_8);
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                writeFile(body, record, previousName, previousPath);
+                putRecord(out, body);
+                previousName = name;
+                previousPath = path;
+                if (out.size() >= WRITE_BUFFER_SIZE) {
+                    written += write(channel, out);
+                }
+            }
+            written += write(channel, out);
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotBytes = written;
+        if (log == null) {
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        startLog();
+    }
+
+    private static long write(FileChannel channel, ByteArrayOutputStream out) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(out.toByteArray());
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        out.reset();
+        return data.limit();
+    }
+
+    private static void writeFile(ByteArrayOutputStream body, FileRecord record, byte[] previousName,
+                                  byte[] previousPath) {
+        FileInfo info = record.info;
+        body.write(FILE_SHARED);
+        putPrefixed(body, previousName, info.getName().getBytes(StandardCharsets.UTF_8));
+        putPrefixed(body, previousPath, record.file.getPath().getBytes(StandardCharsets.UTF_8));
+        putVarLong(body, info.getSize());
+        ByteBuffer lastModified = ByteBuffer.allocate(Long.BYTES).putLong(info.getLastModified());
+        body.write(lastModified.array(), 0, Long.BYTES);
+        if (info.getContentHash() == null) {
+            body.write(0);
+            return;
+        }
+        body.write(1);
+        body.writeBytes(info.getContentHash());
+        putVarLong(body, MerkleTree.chunkCount(info.getSize()));
+        if (record.leaves != null) {
+            body.writeBytes(record.leaves);
+        }
+    }
+
+    /**
+     * Frames a record body with its length and checksum.
+     */
+    private static void putRecord(ByteArrayOutputStream out, ByteArrayOutputStream body) {
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).putInt(bytes.length).putInt((int) crc.getValue());
+        out.write(header.array(), 0, RECORD_HEADER_SIZE);
+        out.writeBytes(bytes);
+    }
+
+    private static void putPrefixed(ByteArrayOutputStream out, byte[] previous, byte[] value) {
+        int common = 0;
+        int max = Math.min(previous.length, value.length);
+        while (common < max && previous[common] == value[common]) {
+            common++;
+        }
+        putVarLong(out, common);
+        putVarLong(out, value.length - common);
+        out.write(value, common, value.length - common);
+    }
+
+    private static byte[] getPrefixed(ByteBuffer in, byte[] previous) {
+        int common = (int) getVarLong(in);
+        int rest = (int) getVarLong(in);
+        if (common > previous.length) {
+            throw new IllegalArgumentException("Prefix longer than the previous value");
+        }
+        byte[] value = new byte[common + rest];
+        System.arraycopy(previous, 0, value, 0, common);
+        in.get(value, common, rest);
+        return value;
+    }
+
+    private static String getString(ByteBuffer in) {
+        return new String(getPrefixed(in, EMPTY), StandardCharsets.UTF_8);
+    }
+
+    private static void putVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Stops logging. Changes logged since the last snapshot are first folded into a new one, so the
+     * next start reads the snapshot alone.
+     */
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (this) {
+            if (!closed && log != null && logBytes > HEADER_SIZE) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            closed = true;
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A shared file as recorded: its path, and the record peers see for it with its content hash if
+     * it was hashed. The hash tree is kept as its leaves and built only when it is asked for; files
+     * of one chunk, most of them, need no more than the content hash.
+     */
+    static final class FileRecord {
+        final File file;
+        final FileInfo info;
+        // Null unless the tree has more than one leaf; a single leaf is the root itself
+        private final byte[] leaves;
+
+        FileRecord(File file, FileInfo info, byte[] leaves) {
+            this.file = file;
+            this.info = info;
+            this.leaves = leaves;
+        }
+
+        /**
+         * @param tree the file's hash tree, or null if it is not known. A content hash without its
+         *        tree is not recorded.
+         */
+        static FileRecord of(File file, FileInfo info, MerkleTree tree) {
+            byte[] contentHash = info.getContentHash();
+            if (contentHash == null || tree == null || tree.getSize() != info.getSize() || !tree.hasRoot(contentHash)) {
+                FileInfo unhashed = contentHash == null
+                        ? info
+                        : new FileInfo(info.getName(), info.getSize(), info.getLastModified(), null);
+                return new FileRecord(file, unhashed, null);
+            }
+            byte[] leaves = null;
+            int leafCount = tree.getLeafCount();
+            if (leafCount > 1) {
+                ByteBuffer buffer = ByteBuffer.allocate(leafCount * MerkleTree.HASH_SIZE);
+                tree.putLeaves(buffer, 0, leafCount);
+                leaves = buffer.array();
+            }
+            return new FileRecord(file, info, leaves);
+        }
+
+        /**
+         * The recorded hash tree, or null.
+         */
+        MerkleTree tree() {
+            byte[] root = info.getContentHash();
+            if (root == null) {
+                return null;
+            }
+            long size = info.getSize();
+            byte[] allLeaves = leaves != null ? leaves : size > 0 ? root.clone() : new byte[0];
+            return new MerkleTree(size, allLeaves, root.clone());
+        }
+    }
+
+    /**
+     * The shared directories and files.
+     */
+    static final class State {
+        // Concurrent, since the hash index takes trees from it while the node runs
+        final Map<File, FileRecord> files = new ConcurrentHashMap<>();
+        final Set<File> directories = new LinkedHashSet<>();
+    }
+}
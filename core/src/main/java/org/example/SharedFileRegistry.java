@@ -0,0 +1,482 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The files this peer shares, indexed by shared name, by file and by content hash. Lookups are
+ * constant time and never block, and adding or removing a file does not copy the others. Changes
+ * are serialized so the indexes stay consistent with each other. Listing goes through
+ * {@link #snapshot()}, which is rebuilt at most once per change.
+ *
+ * <p>The registry has a version that grows with every change, and an epoch that identifies this
+ * instance so versions from before a restart are not mistaken for current ones. The most recent
+ * changes are logged, so a peer that has seen version N can be sent just the
+ * changes since then by {@link #changesSince}.
+ *
+ * <p>A file shared on its own is named after the file. Files shared as part of a directory are
+ * named by their path relative to the directory's parent, with {@code /} as separator. Names are
+ * unique and a file is shared under at most one name.
+ */
+public class SharedFileRegistry {
+    private static final int MAX_LOGGED_CHANGES = 100_000;
+    private static final int INDEX_BATCH_SIZE = 10_000;
+
+    private final Map<String, SharedFile> byName = new ConcurrentHashMap<>();
+    private final Map<File, SharedFile> byFile = new ConcurrentHashMap<>();
+    // Keyed by the content hash wrapped as is; the arrays are never changed
+    private final Map<ByteBuffer, SharedFile> byContent = new ConcurrentHashMap<>();
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final ArrayDeque<Change> log = new ArrayDeque<>();
+    // Changes up to this version are no longer in the log
+    private long logFloor;
+    private long version;
+    private volatile Listing listing = new Listing(epoch, 0, List.of());
+
+    /**
+     * Shares {@code file} under its own name.
+     *
+     * @return whether the file was added
+     */
+    public boolean add(File file) {
+        return add(file.getName(), file);
+    }
+
+    /**
+     * Shares {@code file} as {@code name} unless the name is taken or the file is already shared.
+     *
+     * @return whether the file was added
+     */
+    public boolean add(String name, File file) {
+        FileInfo info = describe(name, file);
+        synchronized (this) {
+            if (!put(name, file, info)) {
+                return false;
+            }
+            version++;
+            record(name, info);
+            return true;
+        }
+    }
+
+    /**
+     * Shares every file in {@code files}, keyed by name, whose name is not taken and which is not
+     * already shared.
+     *
+     * @return the files that were added
+     */
+    public List<File> addAll(Map<String, File> files) {
+        // Read the metadata before taking the lock, lookups and other changes need not wait for it
+        Map<String, FileInfo> infos = new LinkedHashMap<>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            infos.put(entry.getKey(), describe(entry.getKey(), entry.getValue()));
+        }
+        synchronized (this) {
+            List<FileInfo> recorded = new ArrayList<>();
+            List<File> added = new ArrayList<>();
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                FileInfo info = infos.get(entry.getKey());
+                if (put(entry.getKey(), entry.getValue(), info)) {
+                    added.add(entry.getValue());
+                    recorded.add(info);
+                }
+            }
+            if (!added.isEmpty()) {
+                version++;
+                for (FileInfo info : recorded) {
+                    record(info.getName(), info);
+                }
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Shares files as they were recorded before a restart, trusting the recorded size, modification
+     * time and content hash instead of reading the files. Files whose name is taken or which are
+     * already shared are skipped. The files are left out of searches until {@link #indexRestored}
+     * is called, and the change is not logged: peers that knew an earlier version get the whole
+     * catalog.
+     *
+     * @return the number of files added
+     */
+    synchronized int restore(Collection<ShareStore.FileRecord> records) {
+        int added = 0;
+        for (ShareStore.FileRecord record : records) {
+            if (put(record.info.getName(), record.file, record.info, false)) {
+                added++;
+            }
+        }
+        if (added > 0) {
+            version++;
+            log.clear();
+            logFloor = version;
+        }
+        return added;
+    }
+
+    /**
+     * Makes restored files findable by {@link #search}, a batch at a time so other changes need
+     * not wait for all of them.
+     */
+    public void indexRestored(Collection<File> files) {
+        Iterator<File> it = files.iterator();
+        while (it.hasNext()) {
+            synchronized (this) {
+                for (int i = 0; i < INDEX_BATCH_SIZE && it.hasNext(); i++) {
+                    SharedFile entry = byFile.get(it.next());
+                    if (entry != null) {
+                        searchIndex.add(entry.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    private static FileInfo describe(String name, File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return new FileInfo(name, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+        } catch (IOException | InvalidPathException e) {
+            // Listed as empty until it can be read; hashing reports the problem
+            return new FileInfo(name, 0, 0, null);
+        }
+    }
+
+    private boolean put(String name, File file, FileInfo info) {
+        return put(name, file, info, true);
+    }
+
+    private boolean put(String name, File file, FileInfo info, boolean searchable) {
+        if (byName.containsKey(name) || byFile.containsKey(file)) {
+            return false;
+        }
+        SharedFile entry = new SharedFile(file, info);
+        byName.put(name, entry);
+        byFile.put(file, entry);
+        if (info.getContentHash() != null) {
+            byContent.put(ByteBuffer.wrap(info.getContentHash()), entry);
+        }
+        if (searchable) {
+            searchIndex.add(name);
+        }
+        return true;
+    }
+
+    /**
+     * Stops sharing {@code file}.
+     *
+     * @return whether it was shared
+     */
+    public synchronized boolean remove(File file) {
+        SharedFile entry = byFile.get(file);
+        if (entry == null) {
+            return false;
+        }
+        unindex(entry);
+        version++;
+        record(entry.getName(), null);
+        return true;
+    }
+
+    /**
+     * Stops sharing {@code path} and every shared file below it.
+     *
+     * @return the files that were shared
+     */
+    public synchronized List<File> removeUnder(File path) {
+        String prefix = path.getPath() + File.separator;
+        List<SharedFile> removed = new ArrayList<>();
+        for (SharedFile entry : byFile.values()) {
+            if (entry.file.equals(path) || entry.file.getPath().startsWith(prefix)) {
+                unindex(entry);
+                removed.add(entry);
+            }
+        }
+        List<File> files = new ArrayList<>();
+        if (!removed.isEmpty()) {
+            version++;
+            for (SharedFile entry : removed) {
+                record(entry.getName(), null);
+                files.add(entry.file);
+            }
+        }
+        return files;
+    }
+
+    private void record(String name, FileInfo info) {
+        log.addLast(new Change(version, name, info));
+        while (log.size() > MAX_LOGGED_CHANGES) {
+            logFloor = log.removeFirst().version;
+        }
+    }
+
+    private void unindex(SharedFile entry) {
+        byName.remove(entry.getName());
+        byFile.remove(entry.file);
+        searchIndex.remove(entry.getName());
+        byte[] contentHash = entry.info.getContentHash();
+        if (contentHash != null) {
+            byContent.remove(ByteBuffer.wrap(contentHash), entry);
+        }
+    }
+
+    /**
+     * Records the size, modification time and content hash a shared file was hashed with, so it can
+     * be found by {@link #findByContent} and peers see the change. Does nothing if the file is no
+     * longer shared or already recorded with these values.
+     *
+     * @return whether the record changed
+     */
+    public synchronized boolean update(File file, long size, long lastModified, byte[] contentHash) {
+        SharedFile entry = byFile.get(file);
+        if (entry == null) {
+            return false;
+        }
+        FileInfo current = entry.info;
+        if (current.getSize() == size && current.getLastModified() == lastModified
+                && Arrays.equals(current.getContentHash(), contentHash)) {
+            return false;
+        }
+        unindex(entry);
+        FileInfo info = new FileInfo(entry.getName(), size, lastModified, contentHash.clone());
+        SharedFile updated = new SharedFile(file, info);
+        byName.put(info.getName(), updated);
+        byFile.put(file, updated);
+        byContent.put(ByteBuffer.wrap(info.getContentHash()), updated);
+        searchIndex.add(info.getName());
+        version++;
+        record(info.getName(), info);
+        return true;
+    }
+
+    public SharedFile findByName(String name) {
+        return byName.get(name);
+    }
+
+    public SharedFile findByFile(File file) {
+        return byFile.get(file);
+    }
+
+    /**
+     * A shared file with the given content hash, or null. If several shared files have the same
+     * content, any one of them.
+     */
+    public SharedFile findByContent(byte[] contentHash) {
+        return byContent.get(ByteBuffer.wrap(contentHash));
+    }
+
+    /**
+     * The shared files whose names contain words starting with each word of {@code query}, ordered
+     * by name, at most {@code limit} of them. See {@link SearchIndex} for how names are split into
+     * words.
+     */
+    public List<SharedFile> search(String query, int limit) {
+        List<SharedFile> found = new ArrayList<>();
+        for (String name : searchIndex.search(query, limit)) {
+            SharedFile entry = byName.get(name);
+            // Skip names removed since the lookup
+            if (entry != null) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * An immutable list of the shared files ordered by name. Repeated calls return the same list
+     * until the registry changes.
+     */
+    public List<SharedFile> snapshot() {
+        return listing().getFiles();
+    }
+
+    /**
+     * The shared files together with the version they are current for.
+     */
+    public Listing listing() {
+        Listing cached = listing;
+        long current;
+        List<SharedFile> files;
+        synchronized (this) {
+            current = version;
+            if (cached.version == current) {
+                return cached;
+            }
+            files = new ArrayList<>(byName.values());
+        }
+        files.sort(Comparator.comparing(SharedFile::getName));
+        Listing updated = new Listing(epoch, current, List.copyOf(files));
+        listing = updated;
+        return updated;
+    }
+
+    /**
+     * The changes after {@code since}, or null if they are no longer all logged or {@code since} is
+     * not a version of this registry.
+     */
+    public synchronized Delta changesSince(long since) {
+        if (since < logFloor || since > version) {
+            return null;
+        }
+        ArrayDeque<Change> changes = new ArrayDeque<>();
+        for (Iterator<Change> it = log.descendingIterator(); it.hasNext(); ) {
+            Change change = it.next();
+            if (change.version <= since) {
+                break;
+            }
+            changes.addFirst(change);
+        }
+        return new Delta(version, new ArrayList<>(changes));
+    }
+
+    /**
+     * A shared file and the record peers see for it.
+     */
+    public static final class SharedFile {
+        private final File file;
+        private final FileInfo info;
+
+        SharedFile(File file, FileInfo info) {
+            this.file = file;
+            this.info = info;
+        }
+
+        public String getName() {
+            return info.getName();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * The name, size and modification time the file was shared or last hashed with, and its
+         * content hash once it has been hashed.
+         */
+        public FileInfo getInfo() {
+            return info;
+        }
+
+        /**
+         * The root of the file's hash tree, or null if it has not been hashed yet.
+         */
+        public byte[] getContentHash() {
+            byte[] contentHash = info.getContentHash();
+            return contentHash != null ? contentHash.clone() : null;
+        }
+    }
+
+    /**
+     * The shared files, ordered by name, as of one version of the registry.
+     */
+    public static final class Listing {
+        private final long epoch;
+        private final long version;
+        private final List<SharedFile> files;
+
+        Listing(long epoch, long version, List<SharedFile> files) {
+            this.epoch = epoch;
+            this.version = version;
+            this.files = files;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<SharedFile> getFiles() {
+            return files;
+        }
+    }
+
+    /**
+     * The changes that bring a copy of the catalog up to a version.
+     */
+    public static final class Delta {
+        private final long version;
+        private final List<Change> changes;
+
+        Delta(long version, List<Change> changes) {
+            this.version = version;
+            this.changes = changes;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * The changes, oldest first.
+         */
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+
+    /**
+     * A file added, updated or removed, and the version the registry had after the change.
+     */
+    public static final class Change {
+        private final long version;
+        private final String name;
+        private final FileInfo info;
+
+        Change(long version, String name, FileInfo info) {
+            this.version = version;
+            this.name = name;
+            this.info = info;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The file's new record, or null if it was removed.
+         */
+        public FileInfo getInfo() {
+            return info;
+        }
+
+        public boolean isRemoved() {
+            return info == null;
+        }
+    }
+}
@@ -0,0 +1,710 @@
+package org.example;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads one file from every peer that shares it. The file is split into
+ * {@link #CHUNK_SIZE} chunks that are requested as ranges from all sources in parallel, so
+ * throughput grows with the number of seeders instead of being capped by one peer's uplink.
+ *
+ * <p>Each chunk is checked against the file's {@link MerkleTree} as it arrives. A chunk that fails
+ * the check is fetched again from another peer, and the peer that sent it is dropped.
+ *
+ * <p>Scheduling runs on a single coordinator thread. Chunks are handed out rarest first, which
+ * matters once a peer has failed to serve some of them, and in file order otherwise. Fast peers
+ * keep several requests in flight while peers far slower than the fastest get one at a time.
+ * Once no chunk is left unrequested the download enters endgame mode: idle peers duplicate the
+ * chunks held by slower peers, and the losing requests are cancelled when the first copy lands.
+ */
+public class SwarmDownload {
+    public static final int CHUNK_SIZE = MerkleTree.CHUNK_SIZE;
+    private static final int MAX_REQUESTS_PER_PEER = 4;
+    private static final int MAX_REQUESTS_PER_NEW_PEER = 2;
+    private static final int MAX_REQUESTS_PER_SLOW_PEER = 1;
+    private static final double SLOW_PEER_RATIO = 0.25;
+    private static final int MAX_REQUESTS_PER_CHUNK = 2;
+    private static final int MAX_PEER_FAILURES = 3;
+    private static final int MAX_CHUNK_FAILURES = 5;
+    private static final long STAT_TIMEOUT_SECONDS = 10;
+    // Generous because the peer may have to hash the file first
+    private static final long HASH_TIMEOUT_SECONDS = 600;
+    private static final double SPEED_SMOOTHING = 0.3;
+    private static final String PART_SUFFIX = ".part";
+    private static final String JOURNAL_SUFFIX = ".part.journal";
+
+    private static final byte MISSING = 0;
+    private static final byte REQUESTED = 1;
+    private static final byte DONE = 2;
+
+    private final PeerClient client;
+    private final TransferManager transfers;
+    private final TransferManager.Priority priority;
+    private final String fileName;
+    private final Path target;
+    private final TransferListener listener;
+    private final ExecutorService coordinator;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    // Everything below is only touched on the coordinator thread once the download has started
+    private final Map<Integer, List<ChunkRequest>> requests = new HashMap<>();
+    private List<Source> sources;
+    private long size;
+    private byte[] contentHash;
+    private MerkleTree tree;
+    private int chunkCount;
+    private byte[] chunkState;
+    private int[] chunkFailures;
+    private Integer[] pickOrder;
+    private int pickCursor;
+    private int doneCount;
+    private int activeRequests;
+    private FileChannel fileChannel;
+    private DownloadJournal journal;
+    private TransferMeter meter;
+
+    public SwarmDownload(PeerClient client, TransferManager transfers, TransferManager.Priority priority,
+                         String fileName, Path target, TransferListener listener) {
+        this.client = client;
+        this.transfers = transfers;
+        this.priority = priority;
+        this.fileName = fileName;
+        this.target = target;
+        this.listener = listener;
+        this.coordinator = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "swarm-" + fileName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Downloads the file from whichever of {@code peers} share it, blocking until it is complete.
+     * Data goes into a {@code .part} file next to the target, with a journal of the chunks already
+     * written, and is renamed to the target once complete. If the download fails both are kept, so
+     * a later download of the same content to the same target resumes where this one stopped.
+     */
+    public void run(List<String> peers) throws IOException {
+        Path partFile = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+        Path journalFile = target.resolveSibling(target.getFileName() + JOURNAL_SUFFIX);
+        try {
+            sources = locate(peers);
+            tree = fetchTree();
+            chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            chunkState = new byte[chunkCount];
+            chunkFailures = new int[chunkCount];
+            try (RandomAccessFile file = new RandomAccessFile(partFile.toFile(), "rw");
+                 DownloadJournal opened = DownloadJournal.open(journalFile, size, contentHash, chunkCount)) {
+                file.setLength(size);
+                fileChannel = file.getChannel();
+                journal = opened;
+                long resumedBytes = resume();
+                meter = new TransferMeter(fileName, size, resumedBytes, listener, client.getMetrics());
+                if (doneCount < chunkCount) {
+                    post(() -> {
+                        rebuildPickOrder();
+                        schedule();
+                    });
+                    try {
+                        PeerClient.await(result, 0);
+                    } finally {
+                        // Whatever landed so far is kept for the next attempt
+                        awaitCoordinator(this::cancelAll);
+                        journal.sync(fileChannel);
+                    }
+                }
+            }
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(journalFile);
+            meter.finish();
+        } finally {
+            coordinator.shutdown();
+        }
+    }
+
+    /**
+     * Marks the chunks recorded in the journal as done.
+     *
+     * @return the number of bytes they hold
+     */
+    private long resume() {
+        BitSet completed = journal.getCompleted();
+        long bytes = 0;
+        for (int chunk = completed.nextSetBit(0); chunk >= 0; chunk = completed.nextSetBit(chunk + 1)) {
+            chunkState[chunk] = DONE;
+            doneCount++;
+            bytes += Math.min(CHUNK_SIZE, size - (long) chunk * CHUNK_SIZE);
+        }
+        return bytes;
+    }
+
+    /**
+     * Runs {@code task} on the coordinator and waits for it, so no request is left writing.
+     */
+    private void awaitCoordinator(Runnable task) {
+        try {
+            coordinator.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Asks every peer about the file and keeps those that agree with the majority on its size and,
+     * where they know it, its content hash.
+     */
+    private List<Source> locate(List<String> peers) throws IOException {
+        Map<String, CompletableFuture<FileInfo>> replies = new LinkedHashMap<>();
+        for (String peer : peers) {
+            replies.put(peer, client.stat(peer, fileName).orTimeout(STAT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        Map<Long, List<Source>> bySize = new HashMap<>();
+        for (Map.Entry<String, CompletableFuture<FileInfo>> reply : replies.entrySet()) {
+            try {
+                FileInfo info = PeerClient.await(reply.getValue(), 0);
+                bySize.computeIfAbsent(info.getSize(), k -> new ArrayList<>()).add(new Source(reply.getKey(), info));
+            } catch (FileNotFoundException e) {
+                // This peer does not share the file
+            } catch (IOException e) {
+                System.err.println("Peer " + reply.getKey() + " did not answer for " + fileName + ": " + e.getMessage());
+            }
+        }
+        List<Source> located = null;
+        for (Map.Entry<Long, List<Source>> group : bySize.entrySet()) {
+            if (located == null || group.getValue().size() > located.size()) {
+                located = group.getValue();
+                size = group.getKey();
+            }
+        }
+        if (located == null) {
+            throw new FileNotFoundException("No peer is sharing " + fileName);
+        }
+
+        // Of the peers that have already hashed the file, keep those with the most common content
+        Map<String, Integer> hashVotes = new HashMap<>();
+        String majorityHash = null;
+        for (Source source : located) {
+            if (source.contentHash != null) {
+                String hash = MerkleTree.toHex(source.contentHash);
+                int votes = hashVotes.merge(hash, 1, Integer::sum);
+                if (majorityHash == null || votes > hashVotes.get(majorityHash)) {
+                    majorityHash = hash;
+                    contentHash = source.contentHash;
+                }
+            }
+        }
+        List<Source> agreeing = new ArrayList<>();
+        for (Source source : located) {
+            if (source.contentHash == null || Arrays.equals(source.contentHash, contentHash)) {
+                agreeing.add(source);
+            }
+        }
+        return agreeing;
+    }
+
+    /**
+     * Fetches the hash tree from the first source that can provide one matching the content hash,
+     * asking sources that already know the hash first. Returns null, and the download continues
+     * unverified, only if no source can provide a tree.
+     */
+    private MerkleTree fetchTree() {
+        List<Source> candidates = new ArrayList<>(sources);
+        candidates.sort(Comparator.comparing((Source source) -> source.contentHash == null));
+        for (Source source : candidates) {
+            try {
+                MerkleTree candidate = PeerClient.await(client.getHashes(source.address, fileName)
+                        .orTimeout(HASH_TIMEOUT_SECONDS, TimeUnit.SECONDS), 0);
+                if (candidate.getSize() == size && (contentHash == null || candidate.hasRoot(contentHash))) {
+                    contentHash = candidate.getRoot();
+                    return candidate;
+                }
+                System.err.println("Peer " + source.address + " sent a hash tree for different content of " + fileName);
+            } catch (IOException e) {
+                System.err.println("Peer " + source.address + " could not send hashes for " + fileName + ": " + e.getMessage());
+            }
+        }
+        System.err.println("Downloading " + fileName + " without verification: no peer sent its hashes");
+        return null;
+    }
+
+    /**
+     * @return false if the download is over, in which case {@code event} is dropped
+     */
+    private boolean post(Runnable event) {
+        try {
+            coordinator.execute(event);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The download is over; late replies are ignored
+            return false;
+        }
+    }
+
+    /**
+     * Hands out chunks until every active peer has as many requests in flight as its speed allows,
+     * one chunk per peer per round so that the fastest peers pick first.
+     */
+    private void schedule() {
+        if (result.isDone()) {
+            return;
+        }
+        List<Source> bySpeed = new ArrayList<>();
+        for (Source source : sources) {
+            if (source.active) {
+                bySpeed.add(source);
+            }
+        }
+        bySpeed.sort(Comparator.comparingDouble((Source source) -> source.bytesPerSecond).reversed());
+        double fastest = bySpeed.isEmpty() ? 0 : bySpeed.get(0).bytesPerSecond;
+
+        boolean assigned = true;
+        while (assigned) {
+            assigned = false;
+            for (Source source : bySpeed) {
+                if (!source.active || source.inFlight >= maxRequests(source, fastest)) {
+                    continue;
+                }
+                int chunk = pickMissing(source);
+                if (chunk < 0) {
+                    chunk = pickEndgame(source);
+                }
+                if (chunk >= 0) {
+                    send(source, chunk);
+                    assigned = true;
+                }
+            }
+        }
+
+        if (activeRequests == 0 && doneCount < chunkCount) {
+            if (clearUnavailable()) {
+                schedule();
+            } else {
+                result.completeExceptionally(new IOException("No peer could provide the rest of " + fileName));
+            }
+        }
+    }
+
+    private static int maxRequests(Source source, double fastest) {
+        if (source.bytesPerSecond == 0) {
+            return MAX_REQUESTS_PER_NEW_PEER;
+        }
+        if (source.bytesPerSecond < fastest * SLOW_PEER_RATIO) {
+            return MAX_REQUESTS_PER_SLOW_PEER;
+        }
+        return MAX_REQUESTS_PER_PEER;
+    }
+
+    /**
+     * The rarest unrequested chunk this peer can serve, or -1.
+     */
+    private int pickMissing(Source source) {
+        for (int i = pickCursor; i < chunkCount; i++) {
+            int chunk = pickOrder[i];
+            if (chunkState[chunk] != MISSING) {
+                if (i == pickCursor) {
+                    pickCursor++;
+                }
+                continue;
+            }
+            if (!source.unavailable.get(chunk)) {
+                return chunk;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * In endgame, the in-flight chunk whose current holders are slowest, provided this peer is not
+     * slower than them, or -1.
+     */
+    private int pickEndgame(Source source) {
+        int best = -1;
+        double bestHolderSpeed = Double.MAX_VALUE;
+        long bestStart = Long.MAX_VALUE;
+        for (Map.Entry<Integer, List<ChunkRequest>> entry : requests.entrySet()) {
+            int chunk = entry.getKey();
+            List<ChunkRequest> holders = entry.getValue();
+            if (holders.size() >= MAX_REQUESTS_PER_CHUNK || source.unavailable.get(chunk)) {
+                continue;
+            }
+            double holderSpeed = 0;
+            long start = Long.MAX_VALUE;
+            boolean ownRequest = false;
+            for (ChunkRequest holder : holders) {
+                ownRequest |= holder.source == source;
+                holderSpeed = Math.max(holderSpeed, holder.source.bytesPerSecond);
+                start = Math.min(start, holder.startNanos);
+            }
+            if (ownRequest || (source.bytesPerSecond > 0 && source.bytesPerSecond < holderSpeed)) {
+                continue;
+            }
+            if (holderSpeed < bestHolderSpeed || (holderSpeed == bestHolderSpeed && start < bestStart)) {
+                best = chunk;
+                bestHolderSpeed = holderSpeed;
+                bestStart = start;
+            }
+        }
+        return best;
+    }
+
+    private void send(Source source, int chunk) {
+        List<ChunkRequest> holders = requests.computeIfAbsent(chunk, k -> new ArrayList<>());
+        ChunkRequest request = new ChunkRequest(source, chunk, !holders.isEmpty());
+        holders.add(request);
+        chunkState[chunk] = REQUESTED;
+        source.inFlight++;
+        activeRequests++;
+        // Counted as in flight while it waits, so the peer is not handed more chunks meanwhile
+        transfers.acquireChunk(this, source.address, request.length, priority).thenRun(() -> {
+            if (!post(() -> start(request))) {
+                transfers.releaseChunk(source.address);
+            }
+        });
+    }
+
+    /**
+     * Sends a request once it has its slot, unless it was dropped while waiting.
+     */
+    private void start(ChunkRequest request) {
+        List<ChunkRequest> holders = requests.get(request.chunk);
+        if (holders == null || !holders.contains(request)) {
+            transfers.releaseChunk(request.source.address);
+            return;
+        }
+        request.slotHeld = true;
+        request.startNanos = System.nanoTime();
+        try {
+            request.pending = client.getRange(request.source.address, fileName, request.offset, request.length,
+                    priority == TransferManager.Priority.BULK, request);
+        } catch (IOException e) {
+            recordFailure(request, e);
+        }
+    }
+
+    private void onChunkDone(ChunkRequest request) {
+        if (!removeRequest(request)) {
+            return;
+        }
+        Source source = request.source;
+        source.failures = 0;
+        double sample = request.length * 1e9 / Math.max(1, System.nanoTime() - request.startNanos);
+        source.bytesPerSecond = source.bytesPerSecond == 0
+                ? sample
+                : SPEED_SMOOTHING * sample + (1 - SPEED_SMOOTHING) * source.bytesPerSecond;
+
+        int chunk = request.chunk;
+        if (chunkState[chunk] != DONE) {
+            List<ChunkRequest> others = requests.get(chunk);
+            if (others != null) {
+                // Cancelling waits for a write in progress, so nothing lands after the winner's copy
+                for (ChunkRequest other : new ArrayList<>(others)) {
+                    removeRequest(other);
+                    other.cancel();
+                }
+            }
+            if (request.duplicate) {
+                try {
+                    request.spill.flip();
+                    while (request.spill.hasRemaining()) {
+                        fileChannel.write(request.spill, request.offset + request.spill.position());
+                    }
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+            }
+            chunkState[chunk] = DONE;
+            doneCount++;
+            meter.add(request.length);
+            if (journal.markDone(chunk)) {
+                try {
+                    journal.sync(fileChannel);
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+            }
+        }
+        if (doneCount == chunkCount) {
+            result.complete(null);
+            return;
+        }
+        schedule();
+    }
+
+    private void onChunkFailed(ChunkRequest request, IOException cause) {
+        recordFailure(request, cause);
+        schedule();
+    }
+
+    private void recordFailure(ChunkRequest request, IOException cause) {
+        if (!removeRequest(request)) {
+            return;
+        }
+        Source source = request.source;
+        int chunk = request.chunk;
+        if (chunkState[chunk] == REQUESTED && !requests.containsKey(chunk)) {
+            chunkState[chunk] = MISSING;
+            pickCursor = 0;
+        }
+        if (++chunkFailures[chunk] > MAX_CHUNK_FAILURES) {
+            result.completeExceptionally(new IOException("Chunk " + chunk + " of " + fileName
+                    + " failed " + MAX_CHUNK_FAILURES + " times", cause));
+            return;
+        }
+        source.failures++;
+        if (cause instanceof FileNotFoundException || cause instanceof CorruptChunkException
+                || source.failures >= MAX_PEER_FAILURES) {
+            System.err.println("Dropping peer " + source.address + " for " + fileName + ": " + cause.getMessage());
+            deactivate(source);
+        } else {
+            // Let other peers try this chunk first
+            source.unavailable.set(chunk);
+        }
+        rebuildPickOrder();
+    }
+
+    private void deactivate(Source source) {
+        source.active = false;
+        for (List<ChunkRequest> holders : new ArrayList<>(requests.values())) {
+            for (ChunkRequest request : new ArrayList<>(holders)) {
+                if (request.source == source) {
+                    removeRequest(request);
+                    request.cancel();
+                    if (chunkState[request.chunk] == REQUESTED && !requests.containsKey(request.chunk)) {
+                        chunkState[request.chunk] = MISSING;
+                        pickCursor = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean removeRequest(ChunkRequest request) {
+        List<ChunkRequest> holders = requests.get(request.chunk);
+        if (holders == null || !holders.remove(request)) {
+            return false;
+        }
+        if (holders.isEmpty()) {
+            requests.remove(request.chunk);
+        }
+        request.source.inFlight--;
+        activeRequests--;
+        releaseSlot(request);
+        return true;
+    }
+
+    /**
+     * Orders chunks by how many active peers can serve them, rarest first, then by position.
+     */
+    private void rebuildPickOrder() {
+        int[] availability = new int[chunkCount];
+        for (Source source : sources) {
+            if (source.active) {
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    if (!source.unavailable.get(chunk)) {
+                        availability[chunk]++;
+                    }
+                }
+            }
+        }
+        if (pickOrder == null) {
+            pickOrder = new Integer[chunkCount];
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                pickOrder[chunk] = chunk;
+            }
+        }
+        Arrays.sort(pickOrder, Comparator.comparingInt((Integer chunk) -> availability[chunk])
+                .thenComparingInt(chunk -> chunk));
+        pickCursor = 0;
+    }
+
+    /**
+     * Forgets per-chunk failures so the remaining peers get another try.
+     *
+     * @return whether there was anything to forget
+     */
+    private boolean clearUnavailable() {
+        boolean cleared = false;
+        for (Source source : sources) {
+            if (source.active && !source.unavailable.isEmpty()) {
+                source.unavailable.clear();
+                cleared = true;
+            }
+        }
+        if (cleared) {
+            rebuildPickOrder();
+        }
+        return cleared;
+    }
+
+    private void cancelAll() {
+        for (List<ChunkRequest> holders : requests.values()) {
+            for (ChunkRequest request : holders) {
+                request.cancel();
+                releaseSlot(request);
+            }
+        }
+        requests.clear();
+    }
+
+    private void releaseSlot(ChunkRequest request) {
+        if (request.slotHeld) {
+            request.slotHeld = false;
+            transfers.releaseChunk(request.source.address);
+        }
+    }
+
+    /**
+     * A peer that shares the file, with the speed and failures observed so far.
+     */
+    private static class Source {
+        final String address;
+        final byte[] contentHash;
+        final BitSet unavailable = new BitSet();
+        boolean active = true;
+        int inFlight;
+        int failures;
+        double bytesPerSecond;
+
+        Source(String address, FileInfo info) {
+            this.address = address;
+            this.contentHash = info.getContentHash();
+        }
+    }
+
+    private static class CorruptChunkException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptChunkException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One range request for one chunk. The first request for a chunk writes its data frames straight
+     * into the target file on the connection's reader thread. Endgame duplicates keep their copy in
+     * memory instead, so an unverified copy can never overwrite a verified one; the coordinator
+     * writes a duplicate's copy only if it wins. Completion and failure are handed to the
+     * coordinator.
+     */
+    private class ChunkRequest implements PeerConnection.ReplyHandler {
+        final Source source;
+        final int chunk;
+        final long offset;
+        final int length;
+        final boolean duplicate;
+        final MessageDigest digest;
+        final ByteBuffer spill;
+        PeerClient.PendingRequest pending;
+        // Set on the coordinator once the request has its slot and is sent
+        boolean slotHeld;
+        long startNanos = System.nanoTime();
+        boolean headerReceived;
+        long received;
+        private volatile boolean cancelled;
+
+        ChunkRequest(Source source, int chunk, boolean duplicate) {
+            this.source = source;
+            this.chunk = chunk;
+            this.offset = (long) chunk * CHUNK_SIZE;
+            this.length = (int) Math.min(CHUNK_SIZE, size - offset);
+            this.duplicate = duplicate;
+            this.digest = tree != null ? MerkleTree.newLeafDigest() : null;
+            this.spill = duplicate ? ByteBuffer.allocate(length) : null;
+        }
+
+        @Override
+        public boolean onFrame(Frame frame) throws IOException {
+            if (!headerReceived) {
+                PeerConnection.checkReply(frame, Protocol.FILE_HEADER);
+                long fileSize = frame.getVarSize();
+                long rangeOffset = frame.getVarSize();
+                long rangeLength = frame.getVarSize();
+                if (fileSize != size || rangeOffset != offset || rangeLength != length) {
+                    throw new ProtocolException("Peer's copy of " + fileName + " changed");
+                }
+                headerReceived = true;
+                return false;
+            }
+            if (frame.getOpcode() == Protocol.DATA) {
+                ByteBuffer data = frame.payload();
+                int count = data.remaining();
+                if (received + count > length) {
+                    throw new ProtocolException("Peer sent more than the requested " + length + " bytes");
+                }
+                if (digest != null) {
+                    data.mark();
+                    digest.update(data);
+                    data.reset();
+                }
+                if (duplicate) {
+                    spill.put(data);
+                } else {
+                    write(data);
+                }
+                received += count;
+                return false;
+            }
+            PeerConnection.checkReply(frame, Protocol.END);
+            if (received != length) {
+                throw new EOFException("Chunk ended after " + received + " of " + length + " bytes");
+            }
+            if (digest != null && !tree.leafMatches(chunk, digest.digest())) {
+                throw new CorruptChunkException("Chunk " + chunk + " of " + fileName + " from "
+                        + source.address + " failed verification");
+            }
+            post(() -> onChunkDone(this));
+            return true;
+        }
+
+        private synchronized void write(ByteBuffer data) throws IOException {
+            long position = offset + received;
+            while (data.hasRemaining() && !cancelled) {
+                position += fileChannel.write(data, position);
+            }
+        }
+
+        @Override
+        public void onFailure(IOException cause) {
+            post(() -> onChunkFailed(this, cause));
+        }
+
+        /**
+         * Stops the request. Returns only once no write of this request is in progress.
+         */
+        void cancel() {
+            cancelled = true;
+            synchronized (this) {
+                if (pending != null) {
+                    pending.cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.example;
+
+/**
+ * Receives progress updates while a file is being transferred. Updates are delivered on the
+ * transferring thread, so implementations that touch the UI must hand off to the FX thread.
+ */
+@FunctionalInterface
+public interface TransferListener {
+
+    void onProgress(TransferProgress progress);
+}
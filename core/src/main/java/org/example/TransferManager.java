@@ -0,0 +1,205 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the file transfers of a node. Downloads wait in a queue for one of a few download
+ * slots; their chunk requests and the ranges served to peers each take a slot per peer, so no
+ * peer is flooded and no peer takes every upload. Uploads and downloads each pass a token bucket
+ * that holds them to a configured rate, shared round robin between the transfers that are
+ * running.
+ *
+ * <p>Everything that waits is granted by {@link Priority}: a download the user asked for goes
+ * ahead of background syncs, and ranges a peer requests in bulk are served after the others.
+ */
+public class TransferManager implements Closeable {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final int GRANT_THREADS = 4;
+    private static final long GRANT_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    public enum Priority {
+        /** Started by the user, who is waiting for it. */
+        INTERACTIVE,
+        NORMAL,
+        /** Background work such as syncing a folder. */
+        BULK
+    }
+
+    /**
+     * A transfer run in a queue slot.
+     */
+    @FunctionalInterface
+    public interface Transfer<T> {
+        T run() throws IOException;
+    }
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transfer-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Continuations of granted slots and reservations run here, off the threads that free them.
+    // They only hand work on, so a few threads keep up. The queue is not bounded: a rejected grant
+    // would lose its slot, and there is at most one grant per waiting transfer anyway.
+    private final ThreadPoolExecutor grantExecutor = newGrantExecutor();
+    private final TransferSlots downloads;
+    private final TransferSlots downloadRequests;
+    private final TransferSlots uploads;
+    private final BandwidthLimiter downloadLimiter;
+    private final BandwidthLimiter uploadLimiter;
+
+    private static ThreadPoolExecutor newGrantExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(GRANT_THREADS, GRANT_THREADS,
+                GRANT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "transfer-grant-" + THREAD_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public TransferManager(ServerConfig config) {
+        downloads = new TransferSlots(config.getMaxDownloads(), Integer.MAX_VALUE, grantExecutor);
+        downloadRequests = new TransferSlots(Integer.MAX_VALUE, config.getMaxDownloadRequestsPerPeer(), grantExecutor);
+        uploads = new TransferSlots(config.getMaxUploads(), config.getMaxUploadsPerPeer(), grantExecutor);
+        downloadLimiter = new BandwidthLimiter(config.getDownloadBytesPerSecond(), timer, grantExecutor);
+        uploadLimiter = new BandwidthLimiter(config.getUploadBytesPerSecond(), timer, grantExecutor);
+    }
+
+    /**
+     * Runs {@code download} once a download slot is free, blocking until it is done.
+     *
+     * @return what the download returned
+     */
+    public <T> T runDownload(Priority priority, Transfer<T> download) throws IOException {
+        CompletableFuture<Void> slot = downloads.acquire("", priority);
+        try {
+            slot.get();
+        } catch (InterruptedException e) {
+            // If the slot was granted meanwhile it is handed back here, otherwise by the slots
+            if (!slot.cancel(false)) {
+                downloads.release("");
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a download slot");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        try {
+            return download.run();
+        } finally {
+            downloads.release("");
+        }
+    }
+
+    /**
+     * Waits for a chunk request slot for {@code peer} and for {@code bytes} of download bandwidth.
+     * Once the returned future completes the slot is held and must be handed back with
+     * {@link #releaseChunk}.
+     *
+     * @param download identifies the download, so bandwidth is shared between downloads rather than
+     *        between their requests
+     */
+    CompletableFuture<Void> acquireChunk(Object download, String peer, long bytes, Priority priority) {
+        return downloadRequests.acquire(peer, priority)
+                .thenCompose(granted -> reserveDownload(download, bytes, priority));
+    }
+
+    /**
+     * Waits for {@code bytes} of download bandwidth, reserved a chunk at a time. Each reservation
+     * takes its turn with the other downloads', so a large request leaves the limiter at most a
+     * chunk in debt rather than stalling every other download until its whole size is paid off.
+     */
+    private CompletableFuture<Void> reserveDownload(Object download, long bytes, Priority priority) {
+        long left = bytes;
+        while (true) {
+            long piece = Math.min(left, MerkleTree.CHUNK_SIZE);
+            CompletableFuture<Void> granted = downloadLimiter.acquire(download, piece, priority);
+            left -= piece;
+            if (left == 0) {
+                return granted;
+            }
+            // Loops while grants are immediate, so an unlimited rate costs no deep chain
+            if (!granted.isDone()) {
+                long rest = left;
+                return granted.thenCompose(reserved -> reserveDownload(download, rest, priority));
+            }
+        }
+    }
+
+    void releaseChunk(String peer) {
+        downloadRequests.release(peer);
+    }
+
+    /**
+     * Waits for an upload slot for {@code peer}. Once the returned future completes the slot is
+     * held and must be handed back with {@link #releaseUpload}.
+     */
+    CompletableFuture<Void> acquireUpload(String peer, Priority priority) {
+        return uploads.acquire(peer, priority);
+    }
+
+    void releaseUpload(String peer) {
+        uploads.release(peer);
+    }
+
+    /**
+     * Waits for {@code bytes} of upload bandwidth for {@code upload}, any object identifying it.
+     */
+    CompletableFuture<Void> reserveUpload(Object upload, long bytes, Priority priority) {
+        return uploadLimiter.acquire(upload, bytes, priority);
+    }
+
+    /**
+     * @param bytesPerSecond the limit on all uploads together, or 0 for none
+     */
+    public void setUploadRate(long bytesPerSecond) {
+        uploadLimiter.setRate(bytesPerSecond);
+    }
+
+    public long getUploadRate() {
+        return uploadLimiter.getRate();
+    }
+
+    /**
+     * @param bytesPerSecond the limit on all downloads together, or 0 for none
+     */
+    public void setDownloadRate(long bytesPerSecond) {
+        downloadLimiter.setRate(bytesPerSecond);
+    }
+
+    public long getDownloadRate() {
+        return downloadLimiter.getRate();
+    }
+
+    /**
+     * Downloads that hold a slot.
+     */
+    public int getActiveDownloads() {
+        return downloads.getBusy();
+    }
+
+    /**
+     * Downloads waiting for a slot.
+     */
+    public int getQueuedDownloads() {
+        return downloads.getWaiting();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        grantExecutor.shutdownNow();
+    }
+}
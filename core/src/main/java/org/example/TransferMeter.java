@@ -0,0 +1,82 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts transferred bytes, keeps a smoothed transfer rate and reports it to a
+ * {@link TransferListener} at most every {@link #REPORT_INTERVAL_NANOS}. The time to the first
+ * byte and the average rate of the transfer go to {@link Metrics}.
+ */
+class TransferMeter {
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final double SMOOTHING = 0.3;
+
+    private final String fileName;
+    private final long totalBytes;
+    private final TransferListener listener;
+    private final Metrics metrics;
+    private final long startNanos;
+    private final long startBytes;
+    private long bytes;
+    private long lastReportNanos;
+    private long lastReportBytes;
+    private double bytesPerSecond;
+
+    /**
+     * A meter for a transfer that starts with {@code startBytes} already transferred. Those bytes
+     * count towards progress but not towards the rate.
+     */
+    TransferMeter(String fileName, long totalBytes, long startBytes, TransferListener listener, Metrics metrics) {
+        this.fileName = fileName;
+        this.totalBytes = totalBytes;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.startNanos = System.nanoTime();
+        this.startBytes = startBytes;
+        this.bytes = startBytes;
+        this.lastReportNanos = startNanos;
+        this.lastReportBytes = startBytes;
+    }
+
+    synchronized void add(long count) {
+        long now = System.nanoTime();
+        if (bytes == startBytes && count > 0) {
+            metrics.timeToFirstByte.recordNanos(now - startNanos);
+        }
+        bytes += count;
+        metrics.bytesDownloaded.add(count);
+        if (now - lastReportNanos >= REPORT_INTERVAL_NANOS) {
+            report(now);
+        }
+    }
+
+    synchronized void finish() {
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed > 0) {
+            bytesPerSecond = (bytes - startBytes) * 1e9 / elapsed;
+        }
+        metrics.transfersCompleted.increment();
+        if (bytes > startBytes) {
+            metrics.transferThroughput.record(bytesPerSecond);
+        }
+        notifyListener();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void report(long now) {
+        double sample = (bytes - lastReportBytes) * 1e9 / (now - lastReportNanos);
+        bytesPerSecond = lastReportBytes == startBytes ? sample : SMOOTHING * sample + (1 - SMOOTHING) * bytesPerSecond;
+        lastReportNanos = now;
+        lastReportBytes = bytes;
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        if (listener != null) {
+            listener.onProgress(new TransferProgress(fileName, bytes, totalBytes, bytesPerSecond));
+        }
+    }
+}
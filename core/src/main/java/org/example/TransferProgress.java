@@ -0,0 +1,55 @@
+package org.example;
+
+/**
+ * Snapshot of a running transfer: how much has arrived, how fast, and how long is left.
+ */
+public class TransferProgress {
+    private final String fileName;
+    private final long bytesTransferred;
+    private final long totalBytes;
+    private final double bytesPerSecond;
+
+    public TransferProgress(String fileName, long bytesTransferred, long totalBytes, double bytesPerSecond) {
+        this.fileName = fileName;
+        this.bytesTransferred = bytesTransferred;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public double getFraction() {
+        return totalBytes > 0 ? (double) bytesTransferred / totalBytes : 1.0;
+    }
+
+    public boolean isComplete() {
+        return bytesTransferred >= totalBytes;
+    }
+
+    /**
+     * Estimated seconds until the transfer completes, or -1 while the rate is still unknown.
+     */
+    public long getEtaSeconds() {
+        if (isComplete()) {
+            return 0;
+        }
+        if (bytesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil((totalBytes - bytesTransferred) / bytesPerSecond);
+    }
+}
@@ -0,0 +1,140 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Caps how many transfers run at once, in total and per peer. A transfer that finds no free slot
+ * waits; freed slots go to waiting transfers by priority and, within a priority, in the order
+ * they asked, skipping those whose peer is still at its cap.
+ */
+class TransferSlots {
+    private final int maxTotal;
+    private final int maxPerPeer;
+    private final Executor grantExecutor;
+    private final Map<String, Integer> busyByPeer = new HashMap<>();
+    private final TreeSet<Waiter> waiters = new TreeSet<>();
+    private int busy;
+    private long sequence;
+
+    /**
+     * @param grantExecutor completes the slots granted to waiting transfers, so their
+     *        continuations do not run inside {@link #release}
+     */
+    TransferSlots(int maxTotal, int maxPerPeer, Executor grantExecutor) {
+        this.maxTotal = maxTotal;
+        this.maxPerPeer = maxPerPeer;
+        this.grantExecutor = grantExecutor;
+    }
+
+    /**
+     * @return a future completed once the transfer holds a slot; it must then call
+     *         {@link #release} with the same peer when it ends. Cancelling the future gives up
+     *         waiting.
+     */
+    CompletableFuture<Void> acquire(String peer, TransferManager.Priority priority) {
+        CompletableFuture<Void> granted = new CompletableFuture<>();
+        synchronized (this) {
+            if (hasRoom(peer) && !hasRunnableWaiter(priority.ordinal())) {
+                take(peer);
+                granted.complete(null);
+            } else {
+                waiters.add(new Waiter(peer, priority.ordinal(), sequence++, granted));
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * Whether a transfer of priority {@code level} or higher is waiting and could take a slot now.
+     * Waiters whose peer is at its cap do not count, so they hold up no other peer.
+     */
+    private boolean hasRunnableWaiter(int level) {
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (waiter.level > level) {
+                return false;
+            }
+            if (waiter.granted.isDone()) {
+                it.remove();
+            } else if (hasRoom(waiter.peer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void release(String peer) {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            busy--;
+            busyByPeer.computeIfPresent(peer, (key, count) -> count > 1 ? count - 1 : null);
+            // In order of priority, so a waiter is only passed over while its own peer is at its cap
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext() && busy < maxTotal; ) {
+                Waiter waiter = it.next();
+                if (waiter.granted.isDone()) {
+                    it.remove();
+                } else if (hasRoom(waiter.peer)) {
+                    it.remove();
+                    take(waiter.peer);
+                    granted.add(waiter);
+                }
+            }
+        }
+        for (Waiter waiter : granted) {
+            try {
+                grantExecutor.execute(() -> {
+                    // Cancelled while the grant was on its way
+                    if (!waiter.granted.complete(null)) {
+                        release(waiter.peer);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down; nobody waits for the slot any more
+            }
+        }
+    }
+
+    synchronized int getBusy() {
+        return busy;
+    }
+
+    synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    private boolean hasRoom(String peer) {
+        return busy < maxTotal && busyByPeer.getOrDefault(peer, 0) < maxPerPeer;
+    }
+
+    private void take(String peer) {
+        busy++;
+        busyByPeer.merge(peer, 1, Integer::sum);
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final String peer;
+        final int level;
+        final long sequence;
+        final CompletableFuture<Void> granted;
+
+        Waiter(String peer, int level, long sequence, CompletableFuture<Void> granted) {
+            this.peer = peer;
+            this.level = level;
+            this.sequence = sequence;
+            this.granted = granted;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            return level != other.level ? Integer.compare(level, other.level) : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * Download throughput of a compressible and an incompressible file over links of a few speeds,
+ * with {@link FrameCompression} on and off. The links are loopback connections through a proxy
+ * that holds what the server sends to a set rate. Run with
+ * {@code java -cp core/target/classes:core/target/test-classes org.example.CompressionBenchmark [MB]}.
+ *
+ * <p>The client asks for the file a chunk at a time, as a download does, and sets
+ * {@link Protocol#FLAG_ACCEPTS_DEFLATE} or not. Throughput counts the file's bytes, not the wire's.
+ * Server, proxy and client share the machine, so on the fastest links compressing and inflating
+ * compete with each other for the CPU.
+ */
+public class CompressionBenchmark {
+    private static final int PORT = 19941;
+    private static final int PROXY_PORT = 19942;
+    private static final long[] MEGABITS_PER_SECOND = {10, 100, 1000};
+    private static final long MAX_IDLE_CREDIT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final ExecutorService proxyThreads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong wireBytes = new AtomicLong();
+    private volatile long bytesPerSecond;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        Path directory = Files.createTempDirectory("compression-benchmark");
+        Path text = directory.resolve("requests.csv");
+        Path random = directory.resolve("random.bin");
+        try {
+            writeCsv(text, (long) megabytes << 20);
+            byte[] noise = new byte[megabytes << 20];
+            new Random(1).nextBytes(noise);
+            Files.write(random, noise);
+            new CompressionBenchmark().run(text, random);
+        } finally {
+            Files.deleteIfExists(text);
+            Files.deleteIfExists(random);
+            Files.deleteIfExists(directory);
+        }
+        System.exit(0);
+    }
+
+    private void run(Path text, Path random) throws Exception {
+        P2P node = new P2P(new ServerConfig().setPort(PORT).setFileCacheBytes(0));
+        node.startServer();
+        node.addSharedFile(text.toFile());
+        node.addSharedFile(random.toFile());
+        try (ServerSocket proxy = new ServerSocket(PROXY_PORT, 50, InetAddress.getLoopbackAddress())) {
+            proxyThreads.execute(() -> serveProxy(proxy));
+
+            // Unthrottled, to warm up both ends
+            bytesPerSecond = 0;
+            download(text, true);
+            download(random, true);
+
+            System.out.printf("%d MB files%n", Files.size(text) >> 20);
+            for (long megabits : MEGABITS_PER_SECOND) {
+                bytesPerSecond = megabits * 1_000_000 / 8;
+                System.out.printf("%d Mbit/s link%n", megabits);
+                for (Path file : new Path[] {text, random}) {
+                    for (boolean deflate : new boolean[] {true, false}) {
+                        measure(file, deflate);
+                    }
+                }
+            }
+        } finally {
+            node.stopServer();
+        }
+    }
+
+    private void measure(Path file, boolean deflate) throws IOException {
+        long size = Files.size(file);
+        wireBytes.set(0);
+        long start = System.nanoTime();
+        download(file, deflate);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %-14s compression %-3s %8.1f Mbit/s %7.1f MB on the wire%n", file.getFileName(),
+                deflate ? "on" : "off", size * 8 / seconds / 1e6, wireBytes.get() / 1e6);
+    }
+
+    /**
+     * Downloads {@code file} through the proxy a chunk at a time and checks what arrived.
+     */
+    private void download(Path file, boolean deflate) throws IOException {
+        String name = file.getFileName().toString();
+        long size = Files.size(file);
+        CRC32 received = new CRC32();
+        Inflater inflater = new Inflater(true);
+        ByteBuffer inflated = FrameCompression.newInflateBuffer();
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), PROXY_PORT));
+        socket.socket().setTcpNoDelay(true);
+        try (FrameChannel channel = new FrameChannel(socket)) {
+            int requestId = 0;
+            for (long offset = 0; offset < size; offset += MerkleTree.CHUNK_SIZE) {
+                long length = Math.min(MerkleTree.CHUNK_SIZE, size - offset);
+                long from = offset;
+                channel.send(Protocol.GET, deflate ? Protocol.FLAG_ACCEPTS_DEFLATE : 0, ++requestId,
+                        encoder -> encoder.putString(name).putVarLong(from).putVarLong(length));
+                channel.flush();
+                while (true) {
+                    Frame frame = channel.read();
+                    if (frame.getOpcode() == Protocol.END) {
+                        break;
+                    }
+                    if (frame.getOpcode() == Protocol.FILE_HEADER) {
+                        continue;
+                    }
+                    if (frame.getOpcode() != Protocol.DATA) {
+                        throw new IOException("Unexpected reply " + frame);
+                    }
+                    ByteBuffer data = frame.payload();
+                    if (frame.hasFlag(Protocol.FLAG_DEFLATED)) {
+                        FrameCompression.inflate(data, inflater, inflated);
+                        data = inflated;
+                    }
+                    received.update(data);
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        CRC32 expected = new CRC32();
+        expected.update(Files.readAllBytes(file));
+        if (received.getValue() != expected.getValue()) {
+            throw new IllegalStateException(name + " arrived corrupted");
+        }
+    }
+
+    private void serveProxy(ServerSocket proxy) {
+        while (!proxy.isClosed()) {
+            try {
+                Socket client = proxy.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), PORT);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                proxyThreads.execute(() -> copy(client, server, false));
+                proxyThreads.execute(() -> copy(server, client, true));
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * Copies what {@code from} sends to {@code to}, held to {@link #bytesPerSecond} if
+     * {@code throttled}.
+     */
+    private void copy(Socket from, Socket to, boolean throttled) {
+        byte[] buffer = new byte[64 * 1024];
+        // When the link is free again. Time it sat idle earns at most a short burst, enough to
+        // make up for sleeping too long.
+        long free = System.nanoTime();
+        try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                long rate = bytesPerSecond;
+                if (throttled && rate > 0) {
+                    free = Math.max(free, System.nanoTime() - MAX_IDLE_CREDIT_NANOS)
+                            + count * TimeUnit.SECONDS.toNanos(1) / rate;
+                    long wait = free - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                if (throttled) {
+                    wireBytes.addAndGet(count);
+                }
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            // Closed at the end of a download
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                to.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes {@code size} bytes of request log lines, as a service might leave them.
+     */
+    private static void writeCsv(Path file, long size) throws IOException {
+        Random random = new Random(1);
+        String[] paths = {"/api/items", "/api/users", "/api/orders", "/static/app.js", "/health"};
+        String[] statuses = {"200", "200", "200", "304", "404", "500"};
+        StringBuilder csv = new StringBuilder();
+        csv.append("timestamp,worker,method,path,status,bytes,millis\n");
+        for (int i = 0; csv.length() < size; i++) {
+            csv.append(String.format("2026-10-17T%02d:%02d:%02d.%03dZ,worker-%d,%s,%s/%d,%s,%d,%d\n",
+                    i / 3_600_000 % 24, i / 60_000 % 60, i / 1000 % 60, i % 1000, random.nextInt(16),
+                    random.nextInt(4) == 0 ? "POST" : "GET", paths[random.nextInt(paths.length)],
+                    random.nextInt(100_000), statuses[random.nextInt(statuses.length)], random.nextInt(50_000),
+                    random.nextInt(250)));
+        }
+        csv.setLength((int) size);
+        Files.write(file, csv.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+}
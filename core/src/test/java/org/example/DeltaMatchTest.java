@@ -0,0 +1,144 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeltaMatchTest {
+    private static final int BLOCK = BlockChecksums.MIN_BLOCK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(42);
+
+    @Test
+    void rollingMatchesChecksumComputedAfresh() {
+        byte[] data = randomBytes(4 * BLOCK);
+        BlockChecksums.Rolling rolling = new BlockChecksums.Rolling().reset(data, 0, BLOCK);
+        BlockChecksums.Rolling fresh = new BlockChecksums.Rolling();
+        for (int start = 1; start + BLOCK <= data.length; start++) {
+            rolling.roll(data[start - 1], data[start + BLOCK - 1]);
+            assertEquals(fresh.reset(data, start, BLOCK).value(), rolling.value(), "window at " + start);
+        }
+    }
+
+    @Test
+    void findsBlocksThatMoved() throws IOException {
+        byte[] current = randomBytes(5 * BLOCK + 100);
+        byte[] prefix = randomBytes(37);
+        byte[] noise = randomBytes(500);
+        // Blocks 2, 0 and 3 in a new order and at unaligned offsets; 1, 4 and the short tail are gone
+        byte[] old = concat(prefix, block(current, 2), block(current, 0), noise, block(current, 3));
+
+        long[] found = match(current, old);
+
+        long[] expected = {37 + BLOCK, -1, 37, 37 + 2 * BLOCK + 500, -1, -1};
+        assertArrayEquals(expected, found);
+    }
+
+    @Test
+    void findsBlockAcrossScanBufferRefill() throws IOException {
+        byte[] current = randomBytes(2 * BLOCK);
+        // The scan reads 64 blocks at a time; put block 1 across the end of the first read
+        int offset = 64 * BLOCK - 1000;
+        byte[] old = concat(randomBytes(offset), block(current, 1), randomBytes(3 * BLOCK));
+
+        long[] found = match(current, old);
+
+        assertArrayEquals(new long[] {-1, offset}, found);
+    }
+
+    @Test
+    void repeatedBlocksAllMatchOneCopy() throws IOException {
+        byte[] same = randomBytes(BLOCK);
+        byte[] current = concat(same, same, randomBytes(BLOCK));
+        byte[] old = concat(randomBytes(10), same);
+
+        long[] found = match(current, old);
+
+        assertArrayEquals(new long[] {10, 10, -1}, found);
+    }
+
+    @Test
+    void weakCollisionIsRejectedByStrongChecksum() throws IOException {
+        byte[] current = randomBytes(BLOCK);
+        // Swapping the bytes at i < j keeps the plain sum and adds (v[j] - v[i]) * (j - i) to the
+        // weighted one; these two swaps add 2 * 10 and -2 * 10
+        current[10] = 5;
+        current[20] = 7;
+        current[21] = 9;
+        current[31] = 7;
+        byte[] old = current.clone();
+        swap(old, 10, 20);
+        swap(old, 31, 21);
+        assertEquals(new BlockChecksums.Rolling().reset(current, 0, BLOCK).value(),
+                new BlockChecksums.Rolling().reset(old, 0, BLOCK).value());
+
+        long[] found = match(current, old);
+
+        assertArrayEquals(new long[] {-1}, found);
+    }
+
+    private long[] match(byte[] current, byte[] old) throws IOException {
+        Path file = Files.write(directory.resolve("old"), old);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return DeltaDownload.match(signaturesOf(current), channel);
+        }
+    }
+
+    private static BlockChecksums.Signatures signaturesOf(byte[] data) {
+        MessageDigest digest = MerkleTree.newDigest();
+        int count = BlockChecksums.blockCount(data.length, BLOCK);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * BlockChecksums.STRONG_SIZE];
+        BlockChecksums.Rolling rolling = new BlockChecksums.Rolling();
+        for (int index = 0; index < count; index++) {
+            int length = Math.min(BLOCK, data.length - index * BLOCK);
+            weak[index] = rolling.reset(data, index * BLOCK, length).value();
+            System.arraycopy(BlockChecksums.strong(digest, data, index * BLOCK, length), 0,
+                    strong, index * BlockChecksums.STRONG_SIZE, BlockChecksums.STRONG_SIZE);
+        }
+        return new BlockChecksums.Signatures(data.length, BLOCK, new byte[0], weak, strong);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] block(byte[] data, int index) {
+        return Arrays.copyOfRange(data, index * BLOCK, (index + 1) * BLOCK);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] joined = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, joined, position, part.length);
+            position += part.length;
+        }
+        return joined;
+    }
+
+    private static void swap(byte[] data, int i, int j) {
+        byte value = data[i];
+        data[i] = data[j];
+        data[j] = value;
+    }
+}
@@ -0,0 +1,187 @@
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encode and decode cost, allocation and bytes on the wire of {@link FrameEncoder} and
+ * {@link FrameDecoder} against the object streams they replaced, for a GET request and for a
+ * listing of 1000 files. Run with
+ * {@code java -cp core/target/classes:core/target/test-classes org.example.FrameCodecBenchmark}.
+ *
+ * <p>The object streams are opened per exchange, as they were. The frame listing carries size,
+ * modification time and a 32-byte content hash for every file; the serialized listing only the
+ * paths.
+ */
+public class FrameCodecBenchmark {
+    private static final int FILES = 1000;
+    private static final int ROUNDS = 5;
+    private static final String NAME = "music/Some Artist/Some Album/07 - A Track Title.flac";
+
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+    private final List<FileInfo> infos = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+    private long sink;
+
+    public static void main(String[] args) throws Exception {
+        new FrameCodecBenchmark().run();
+    }
+
+    private FrameCodecBenchmark() {
+        Random random = new Random(1);
+        for (int i = 0; i < FILES; i++) {
+            String name = String.format("shared/photos/%d/IMG_%05d.jpg", 2020 + i % 4, i);
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            infos.add(new FileInfo(name, 1_000_000 + random.nextInt(9_000_000), 1_600_000_000_000L + i, hash));
+            files.add(new File("/home/user", name));
+        }
+        infos.sort((a, b) -> a.getName().compareTo(b.getName()));
+    }
+
+    private void run() throws Exception {
+        System.out.println("Bytes on the wire");
+        System.out.printf("  GET request      frames %7d   object streams %7d%n", frameGet(), objectGet());
+        System.out.printf("  %d-file listing frames %7d   object streams %7d%n", FILES, frameListing(), objectListing());
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("Round " + round);
+            time("GET, frames", 200_000, this::frameGet);
+            time("GET, object streams", 20_000, this::objectGet);
+            time("listing, frames", 2_000, this::frameListing);
+            time("listing, object streams", 200, this::objectListing);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private interface Exchange {
+        int run() throws Exception;
+    }
+
+    private void time(String what, int operations, Exchange exchange) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            sink += exchange.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("  %-24s %10.0f ns/op %10d B allocated/op%n", what, (double) nanos / operations,
+                allocated / operations);
+    }
+
+    /**
+     * Encodes and decodes one GET request.
+     *
+     * @return the bytes on the wire
+     */
+    private int frameGet() throws IOException {
+        encoder.beginFrame(Protocol.GET, 1).putString(NAME).putVarLong(0).putVarLong(-1L >>> 1);
+        encoder.endFrame();
+        int wire = transfer();
+        if (!decoder.next(frame)) {
+            throw new IllegalStateException("No frame decoded");
+        }
+        sink += frame.getString().length() + frame.getVarSize() + frame.getVarSize();
+        return wire;
+    }
+
+    private int objectGet() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject("GET:" + NAME);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            sink += ((String) in.readObject()).length();
+        }
+        return bytes.size();
+    }
+
+    /**
+     * Encodes and decodes the listing as the server batches it: frames of a count and as many
+     * records as fit.
+     *
+     * @return the bytes on the wire
+     */
+    private int frameListing() throws IOException {
+        int wire = 0;
+        int next = 0;
+        do {
+            int count = 0;
+            int size = FrameEncoder.varIntLength(FILES);
+            String previous = null;
+            while (next + count < FILES) {
+                int length = CatalogCodec.encodedLength(infos.get(next + count), previous);
+                if (size + length > Protocol.MAX_PAYLOAD_SIZE) {
+                    break;
+                }
+                size += length;
+                previous = infos.get(next + count).getName();
+                count++;
+            }
+            encoder.beginFrame(Protocol.LIST, 1).putVarInt(count);
+            previous = null;
+            for (int i = next; i < next + count; i++) {
+                CatalogCodec.put(encoder, infos.get(i), previous);
+                previous = infos.get(i).getName();
+            }
+            encoder.endFrame();
+            next += count;
+            wire += transfer();
+            if (!decoder.next(frame)) {
+                throw new IllegalStateException("No frame decoded");
+            }
+            int received = frame.getVarInt();
+            previous = null;
+            for (int i = 0; i < received; i++) {
+                FileInfo info = CatalogCodec.get(frame, previous);
+                previous = info.getName();
+                sink += info.getSize();
+            }
+        } while (next < FILES);
+        return wire;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int objectListing() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new ArrayList<>(files));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            sink += ((List<File>) in.readObject()).size();
+        }
+        return bytes.size();
+    }
+
+    /**
+     * Moves what the encoder holds into the decoder, as the socket would.
+     *
+     * @return the number of bytes moved
+     */
+    private int transfer() throws IOException {
+        // Finds nothing left and compacts, as a read loop's last call does
+        if (decoder.next(frame)) {
+            throw new IllegalStateException("Frame left undecoded");
+        }
+        ByteBuffer encoded = encoder.buffer().flip();
+        int length = encoded.remaining();
+        decoder.buffer().put(encoded);
+        encoder.buffer().clear();
+        return length;
+    }
+}
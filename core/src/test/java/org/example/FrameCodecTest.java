@@ -0,0 +1,159 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class FrameCodecTest {
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final FrameDecoder decoder = new FrameDecoder(64);
+    private final Frame frame = new Frame();
+
+    @Test
+    void roundTripsEveryFieldType() throws Exception {
+        encoder.beginFrame(Protocol.GET, 3, 42)
+                .putByte(7)
+                .putInt(-1)
+                .putLong(Long.MIN_VALUE)
+                .putVarInt(300)
+                .putVarLong(Long.MAX_VALUE)
+                .putString("caf\u00e9 \u20ac \ud83d\ude00")
+                .putBytes(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        encoder.endFrame();
+
+        Frame decoded = decode();
+        assertEquals(Protocol.GET, decoded.getOpcode());
+        assertEquals(3, decoded.getFlags());
+        assertEquals(42, decoded.getRequestId());
+        assertEquals(7, decoded.getByte());
+        assertEquals(-1, decoded.getInt());
+        assertEquals(Long.MIN_VALUE, decoded.getLong());
+        assertEquals(300, decoded.getVarInt());
+        assertEquals(Long.MAX_VALUE, decoded.getVarSize());
+        assertEquals("caf\u00e9 \u20ac \ud83d\ude00", decoded.getString());
+        assertArrayEquals(new byte[] {1, 2, 3}, decoded.getBytes(3));
+        assertFalse(decoded.hasRemaining());
+    }
+
+    @Test
+    void decodesFramesSplitAcrossReads() throws Exception {
+        for (int id = 0; id < 3; id++) {
+            encoder.beginFrame(Protocol.STAT, id).putString("file-" + id);
+            encoder.endFrame();
+        }
+        ByteBuffer bytes = encoder.buffer().flip();
+        for (int id = 0; id < 3; id++) {
+            while (!decoder.next(frame)) {
+                decoder.buffer().put(bytes.get());
+            }
+            assertEquals(id, frame.getRequestId());
+            assertEquals("file-" + id, frame.getString());
+        }
+        assertFalse(bytes.hasRemaining());
+    }
+
+    @Test
+    void growsForFramesLargerThanItsBuffer() throws Exception {
+        String name = "x".repeat(1000);
+        encoder.beginFrame(Protocol.SEARCH, 1).putString(name);
+        encoder.endFrame();
+
+        assertEquals(name, decode().getString());
+    }
+
+    @Test
+    void rejectsNegativeVarInt() throws Exception {
+        encoder.beginFrame(Protocol.GET, 1).putVarInt(-1);
+        encoder.endFrame();
+
+        assertThrows(ProtocolException.class, () -> decode().getVarInt());
+    }
+
+    @Test
+    void rejectsNegativeSize() throws Exception {
+        encoder.beginFrame(Protocol.GET, 1).putVarLong(-5);
+        encoder.endFrame();
+
+        assertThrows(ProtocolException.class, () -> decode().getVarSize());
+    }
+
+    @Test
+    void rejectsNegativeStringLength() throws Exception {
+        encoder.beginFrame(Protocol.GET, 1).putVarInt(-2);
+        encoder.endFrame();
+
+        assertThrows(ProtocolException.class, () -> decode().getString());
+    }
+
+    @Test
+    void rejectsStringLongerThanPayload() throws Exception {
+        encoder.beginFrame(Protocol.GET, 1).putVarInt(10).putByte('a');
+        encoder.endFrame();
+
+        assertThrows(ProtocolException.class, () -> decode().getString());
+    }
+
+    @Test
+    void rejectsTruncatedVarint() throws Exception {
+        encoder.beginFrame(Protocol.GET, 1).putByte(0x80);
+        encoder.endFrame();
+
+        assertThrows(ProtocolException.class, () -> decode().getVarLong());
+    }
+
+    @Test
+    void rejectsOverlongVarint() throws Exception {
+        encoder.beginFrame(Protocol.GET, 1);
+        for (int i = 0; i < 10; i++) {
+            encoder.putByte(0xFF);
+        }
+        encoder.putByte(0x01);
+        encoder.endFrame();
+
+        assertThrows(ProtocolException.class, () -> decode().getVarLong());
+    }
+
+    @Test
+    void rejectsUnsupportedVersion() {
+        decoder.buffer().put((byte) (Protocol.VERSION + 1)).put(new byte[Protocol.HEADER_SIZE - 1]);
+
+        assertThrows(ProtocolException.class, () -> decoder.next(frame));
+    }
+
+    @Test
+    void rejectsOversizedFrameLength() {
+        FrameEncoder.putHeader(decoder.buffer(), Protocol.GET, 0, 1, Protocol.MAX_PAYLOAD_SIZE + 1);
+
+        assertThrows(ProtocolException.class, () -> decoder.next(frame));
+    }
+
+    @Test
+    void resetDropsUnfinishedFrame() throws Exception {
+        encoder.beginFrame(Protocol.GET, 1).putString("abandoned");
+        encoder.reset();
+        encoder.beginFrame(Protocol.LIST, 2);
+        encoder.endFrame();
+
+        Frame decoded = decode();
+        assertEquals(Protocol.LIST, decoded.getOpcode());
+        assertEquals(2, decoded.getRequestId());
+    }
+
+    private Frame decode() throws ProtocolException {
+        ByteBuffer bytes = encoder.buffer().flip();
+        while (!decoder.next(frame)) {
+            ByteBuffer target = decoder.buffer();
+            int count = Math.min(bytes.remaining(), target.remaining());
+            assertTrue(count > 0, "decoder wants more bytes than were encoded");
+            target.put(bytes.slice().limit(count));
+            bytes.position(bytes.position() + count);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,239 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and peak heap of whole-file GETs served by a node, against the old path that read
+ * the file with {@code Files.readAllBytes} and sent it with {@code ObjectOutputStream}. Several
+ * clients download the same file at once over loopback. Run with
+ * {@code java -Xmx2g -cp core/target/classes:core/target/test-classes org.example.GetBenchmark [MB] [clients]}.
+ *
+ * <p>Clients and servers share the JVM. The clients count bytes and drop them, so the heap
+ * measured is what serving takes.
+ */
+public class GetBenchmark {
+    private static final int PORT = 19931;
+    private static final int OLD_PORT = 19932;
+    private static final int ROUNDS = 3;
+
+    // The stream and array headers around the file's bytes
+    private static final long SERIALIZATION_OVERHEAD = serializedSize(new byte[0]);
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ExecutorService clientThreads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Path file = Files.createTempFile("get-benchmark", ".bin");
+        try {
+            write(file, (long) megabytes << 20);
+            new GetBenchmark().run(file, clients);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.exit(0);
+    }
+
+    private void run(Path file, int clients) throws Exception {
+        long size = Files.size(file);
+        String name = file.getFileName().toString();
+
+        P2P node = new P2P(new ServerConfig().setPort(PORT).setFileCacheBytes(0));
+        node.startServer();
+        node.addSharedFile(file.toFile());
+        List<PeerClient> peers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            peers.add(new PeerClient(PORT));
+        }
+
+        ExecutorService oldServer = Executors.newCachedThreadPool();
+        ServerSocket oldSocket = new ServerSocket(OLD_PORT, 50, InetAddress.getLoopbackAddress());
+        oldServer.execute(() -> serveOld(oldSocket, file.toFile(), oldServer));
+
+        System.out.printf("%d MB file, %d clients at once%n", size >> 20, clients);
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("Round " + round);
+            measure("frames, FileChannel", size, clients, i -> getFramed(peers.get(i), name, size));
+            measure("readAllBytes, writeObject", size, clients, i -> getOld(name));
+        }
+        for (PeerClient peer : peers) {
+            peer.close();
+        }
+        oldSocket.close();
+        node.stopServer();
+    }
+
+    private interface Download {
+        long run(int client) throws Exception;
+    }
+
+    private void measure(String what, long size, int clients, Download download) throws Exception {
+        System.gc();
+        long baseline = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong peak = new AtomicLong(baseline);
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+        long start = System.nanoTime();
+        List<CompletableFuture<Long>> downloads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            downloads.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return download.run(client);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, clientThreads));
+        }
+        long received = 0;
+        for (CompletableFuture<Long> future : downloads) {
+            received += future.get();
+        }
+        long nanos = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+        if (received != size * clients) {
+            throw new IllegalStateException("Received " + received + " of " + size * clients + " bytes");
+        }
+        System.out.printf("  %-26s %8.0f MB/s %8d MB peak heap above idle%n", what,
+                received / (nanos / 1e9) / (1 << 20), (peak.get() - baseline) >> 20);
+    }
+
+    private static long getFramed(PeerClient peer, String name, long size) throws Exception {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        long[] received = {0};
+        peer.getRange("127.0.0.1", name, 0, size, true, new PeerConnection.ReplyHandler() {
+            @Override
+            public boolean onFrame(Frame frame) {
+                if (frame.getOpcode() == Protocol.DATA) {
+                    received[0] += frame.payload().remaining();
+                } else if (frame.getOpcode() == Protocol.END) {
+                    done.complete(received[0]);
+                    return true;
+                } else if (frame.getOpcode() == Protocol.ERROR) {
+                    done.completeExceptionally(new IOException("Error reply"));
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void onFailure(IOException cause) {
+                done.completeExceptionally(cause);
+            }
+        });
+        return done.get();
+    }
+
+    /**
+     * The old request: a {@code GET:<name>} string over a fresh object stream, the reply a
+     * serialized byte array counted as it arrives.
+     */
+    private static long getOld(String name) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), OLD_PORT)) {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.writeObject("GET:" + name);
+            out.flush();
+            CountingStream counter = new CountingStream();
+            socket.getInputStream().transferTo(counter);
+            return counter.count - SERIALIZATION_OVERHEAD;
+        }
+    }
+
+    private static void serveOld(ServerSocket server, File file, ExecutorService workers) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                workers.execute(() -> {
+                    try (socket) {
+                        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                        in.readObject();
+                        byte[] contents = Files.readAllBytes(file.toPath());
+                        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                        out.writeObject(contents);
+                        out.flush();
+                    } catch (IOException | ClassNotFoundException e) {
+                        e.printStackTrace();
+                    }
+                });
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private static long serializedSize(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.size();
+    }
+
+    private static void write(Path file, long size) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < block.capacity(); i++) {
+            block.put((byte) (i * 31 + (i >> 8)));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += block.capacity()) {
+                block.clear().limit((int) Math.min(block.capacity(), size - written));
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+            }
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rounds until the {@link GossipMembership} views of a cluster converge, run in process for
+ * several cluster sizes. Run with
+ * {@code java -cp core/target/classes:core/target/test-classes org.example.GossipSimulation [nodes...]}.
+ *
+ * <p>Each round every node does what {@link PeerExchange} does: ticks, then exchanges samples with
+ * {@link PeerExchange#FANOUT} random members, and with the seed while it knows nobody and every
+ * {@link PeerExchange#SEED_ROUNDS} rounds. Every node starts knowing only the seed, node 0. The
+ * exchanges are direct calls in turn and the clock moves {@link PeerExchange#ROUND_MILLIS} a
+ * round, so the wall time is what the merging and sampling cost, not what the network would.
+ */
+public class GossipSimulation {
+    private static final int MAX_ROUNDS = 60;
+    private static final double[] COVERAGE = {0.90, 0.99};
+
+    private final List<GossipMembership> nodes = new ArrayList<>();
+    private final Map<String, Integer> hosts = new HashMap<>();
+
+    public static void main(String[] args) {
+        int[] sizes = {10, 100, 500, 1000, 2000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("Fanout %d, sample %d, %d ms rounds, seed-only bootstrap%n", PeerExchange.FANOUT,
+                PeerExchange.SAMPLE_SIZE, PeerExchange.ROUND_MILLIS);
+        for (int size : sizes) {
+            new GossipSimulation(size).run();
+        }
+    }
+
+    private GossipSimulation(int size) {
+        for (int i = 0; i < size; i++) {
+            nodes.add(new GossipMembership(UUID.randomUUID(), ServerConfig.DEFAULT_PORT, PeerExchange.MAX_MEMBERS,
+                    TimeUnit.SECONDS.toNanos(PeerExchange.FAIL_TIMEOUT_SECONDS)));
+            hosts.put(host(i), i);
+        }
+    }
+
+    private static String host(int node) {
+        return "node-" + node;
+    }
+
+    private void run() {
+        int size = nodes.size();
+        System.out.printf("%d nodes%n", size);
+        int reached = 0;
+        long now = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < MAX_ROUNDS && reached < COVERAGE.length; round++) {
+            now += TimeUnit.MILLISECONDS.toNanos(PeerExchange.ROUND_MILLIS);
+            for (int i = 0; i < size; i++) {
+                runRound(i, round, now);
+            }
+            // The share of the other nodes known by the node that knows fewest, and on average
+            long known = 0;
+            int fewest = Integer.MAX_VALUE;
+            for (GossipMembership node : nodes) {
+                known += node.size();
+                fewest = Math.min(fewest, node.size());
+            }
+            double least = size > 1 ? (double) fewest / (size - 1) : 1;
+            double mean = size > 1 ? (double) known / size / (size - 1) : 1;
+            while (reached < COVERAGE.length && least >= COVERAGE[reached]) {
+                System.out.printf("  every view %5.1f%% complete after %3d rounds, %8.1f ms wall time%n",
+                        COVERAGE[reached] * 100, round + 1, (System.nanoTime() - start) / 1e6);
+                reached++;
+            }
+            if (reached < COVERAGE.length && round + 1 == MAX_ROUNDS) {
+                System.out.printf("  not converged after %d rounds, %.1f ms wall time: views %.1f%% complete"
+                        + " on average, %.1f%% at least%n", MAX_ROUNDS, (System.nanoTime() - start) / 1e6,
+                        mean * 100, least * 100);
+            }
+        }
+    }
+
+    /**
+     * What {@link PeerExchange} does in a round, with each request answered at once.
+     */
+    private void runRound(int node, int round, long now) {
+        GossipMembership membership = nodes.get(node);
+        membership.tick(now);
+        List<GossipMembership.Member> targets = membership.targets(PeerExchange.FANOUT);
+        for (GossipMembership.Member target : targets) {
+            exchange(node, hosts.get(target.getHost()), now);
+        }
+        if (node != 0 && (targets.isEmpty() || round % PeerExchange.SEED_ROUNDS == 0)) {
+            exchange(node, 0, now);
+        }
+    }
+
+    private void exchange(int from, int to, long now) {
+        GossipMembership sender = nodes.get(from);
+        GossipMembership receiver = nodes.get(to);
+        receiver.merge(sender.sample(PeerExchange.SAMPLE_SIZE, now), host(from), now);
+        sender.merge(receiver.sample(PeerExchange.SAMPLE_SIZE, now), host(to), now);
+    }
+}
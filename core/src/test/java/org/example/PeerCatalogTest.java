@@ -0,0 +1,91 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PeerCatalogTest {
+    private final PeerCatalog catalog = new PeerCatalog(7, 3, List.of(file("b", 1), file("d", 1), file("f", 1)));
+
+    @Test
+    void emptyChangesOnlyAdvanceVersion() {
+        PeerCatalog applied = catalog.apply(4, List.of());
+
+        assertEquals(7, applied.getEpoch());
+        assertEquals(4, applied.getVersion());
+        assertSame(catalog.getFiles().get(0), applied.getFiles().get(0));
+        assertEquals(List.of("b", "d", "f"), applied.getNames());
+    }
+
+    @Test
+    void mergesAdditionsInNameOrder() {
+        PeerCatalog applied = catalog.apply(4, List.of(add("g", 1), add("a", 1), add("c", 1), add("e", 1)));
+
+        assertEquals(List.of("a", "b", "c", "d", "e", "f", "g"), applied.getNames());
+    }
+
+    @Test
+    void replacesUpdatedFiles() {
+        PeerCatalog applied = catalog.apply(4, List.of(add("d", 2)));
+
+        assertEquals(List.of("b", "d", "f"), applied.getNames());
+        assertEquals(2, applied.getFiles().get(1).getSize());
+    }
+
+    @Test
+    void dropsRemovedFiles() {
+        PeerCatalog applied = catalog.apply(4, List.of(remove("b"), remove("f"), remove("missing")));
+
+        assertEquals(List.of("d"), applied.getNames());
+    }
+
+    @Test
+    void laterChangesToANameWin() {
+        PeerCatalog applied = catalog.apply(4, List.of(
+                remove("d"), add("d", 5),
+                add("c", 1), remove("c"),
+                add("f", 2), add("f", 3)));
+
+        assertEquals(List.of("b", "d", "f"), applied.getNames());
+        assertEquals(5, applied.getFiles().get(1).getSize());
+        assertEquals(3, applied.getFiles().get(2).getSize());
+    }
+
+    @Test
+    void leavesOriginalUnchanged() {
+        catalog.apply(4, List.of(remove("b"), add("a", 1)));
+
+        assertEquals(3, catalog.getVersion());
+        assertEquals(List.of("b", "d", "f"), catalog.getNames());
+    }
+
+    @Test
+    void buildsCatalogFromEmpty() {
+        List<PeerCatalog.Change> changes = new ArrayList<>();
+        for (int i = 99; i >= 0; i--) {
+            changes.add(add(String.format("file-%03d", i), i));
+        }
+        PeerCatalog applied = PeerCatalog.EMPTY.apply(1, changes);
+
+        assertEquals(100, applied.getFiles().size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(String.format("file-%03d", i), applied.getFiles().get(i).getName());
+            assertEquals(i, applied.getFiles().get(i).getSize());
+        }
+    }
+
+    private static FileInfo file(String name, long size) {
+        return new FileInfo(name, size, 0, null);
+    }
+
+    private static PeerCatalog.Change add(String name, long size) {
+        return new PeerCatalog.Change(name, file(name, size));
+    }
+
+    private static PeerCatalog.Change remove(String name) {
+        return new PeerCatalog.Change(name, null);
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registration and lookup cost of {@link SharedFileRegistry} at 100k entries, against the
+ * {@code CopyOnWriteArrayList} scanned by name that it replaced. Run with
+ * {@code java -cp core/target/classes:core/target/test-classes org.example.RegistryBenchmark}.
+ *
+ * <p>The files do not exist, so registering costs one failed stat per file; the list never stats.
+ */
+public class RegistryBenchmark {
+    private static final int ENTRIES = 100_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        File[] files = new File[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            files[i] = new File("/benchmark/dir" + i % 100, "file-" + i + ".dat");
+        }
+        String[] lookups = new String[ENTRIES];
+        Random random = new Random(1);
+        for (int i = 0; i < ENTRIES; i++) {
+            lookups[i] = files[random.nextInt(ENTRIES)].getName();
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("Round " + round);
+
+            long start = System.nanoTime();
+            SharedFileRegistry registry = new SharedFileRegistry();
+            for (File file : files) {
+                registry.add(file);
+            }
+            report("registry add one by one", start, ENTRIES);
+
+            start = System.nanoTime();
+            Map<String, File> batch = new LinkedHashMap<>();
+            for (File file : files) {
+                batch.put(file.getName(), file);
+            }
+            SharedFileRegistry bulk = new SharedFileRegistry();
+            bulk.addAll(batch);
+            report("registry addAll", start, ENTRIES);
+
+            start = System.nanoTime();
+            List<File> list = new CopyOnWriteArrayList<>();
+            for (File file : files) {
+                list.add(file);
+            }
+            report("list add one by one", start, ENTRIES);
+
+            long found = 0;
+            start = System.nanoTime();
+            for (String name : lookups) {
+                found += registry.findByName(name) != null ? 1 : 0;
+            }
+            report("registry findByName", start, lookups.length);
+
+            // A full scan per lookup; a thousand are plenty to time
+            int scans = 1_000;
+            start = System.nanoTime();
+            for (int i = 0; i < scans; i++) {
+                String name = lookups[i];
+                Optional<File> match = list.stream().filter(f -> f.getName().equals(name)).findFirst();
+                found += match.isPresent() ? 1 : 0;
+            }
+            report("list stream filter", start, scans);
+
+            start = System.nanoTime();
+            found += registry.snapshot().size();
+            report("registry snapshot, built", start, 1);
+
+            start = System.nanoTime();
+            for (int i = 0; i < 1_000; i++) {
+                found += registry.snapshot().size();
+            }
+            report("registry snapshot, cached", start, 1_000);
+            if (found == 0) {
+                System.out.println("Nothing found");
+            }
+        }
+    }
+
+    private static void report(String what, long startNanos, int operations) {
+        long nanos = System.nanoTime() - startNanos;
+        System.out.printf("  %-26s %10.1f ms total %12.1f ns/op%n", what, nanos / 1e6, (double) nanos / operations);
+    }
+}
@@ -0,0 +1,62 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class SearchIndexTest {
+    private final SearchIndex index = new SearchIndex();
+
+    @Test
+    void returnsFirstMatchesInNameOrder() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            names.add(String.format("photos/img-%03d.jpg", i));
+        }
+        Collections.shuffle(names, new Random(3));
+        names.forEach(index::add);
+
+        assertEquals(List.of("photos/img-000.jpg", "photos/img-001.jpg", "photos/img-002.jpg"), index.search("im", 3));
+        assertEquals(500, index.search("p", 1000).size());
+    }
+
+    @Test
+    void keepsNameMatchingSeveralTokensOnce() {
+        index.add("report/report-draft.txt");
+        index.add("reports.zip");
+        index.add("summary.txt");
+
+        assertEquals(List.of("report/report-draft.txt", "reports.zip"), index.search("rep", 10));
+    }
+
+    @Test
+    void requiresEveryTermToMatch() {
+        index.add("music/live-2019.flac");
+        index.add("music/studio-2019.flac");
+        index.add("video/live-2020.mkv");
+
+        assertEquals(List.of("music/live-2019.flac"), index.search("live 2019", 10));
+        assertEquals(List.of("music/live-2019.flac", "video/live-2020.mkv"), index.search("LIVE", 10));
+    }
+
+    @Test
+    void forgetsRemovedNames() {
+        index.add("a/notes.md");
+        index.add("b/notes.md");
+        index.remove("a/notes.md");
+
+        assertEquals(List.of("b/notes.md"), index.search("notes", 10));
+    }
+
+    @Test
+    void emptyQueryOrLimitFindsNothing() {
+        index.add("anything.txt");
+
+        assertEquals(List.of(), index.search(" - ", 10));
+        assertEquals(List.of(), index.search("any", 0));
+    }
+}